@@ -1,9 +1,32 @@
 package org.unbiquitous.unbihealth.avatar;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.math3.complex.Quaternion;
+import org.unbiquitous.unbihealth.avatar.analytics.JointAnalytics;
+import org.unbiquitous.unbihealth.avatar.analytics.JointDefinition;
+import org.unbiquitous.unbihealth.avatar.analytics.MovementMatcher;
+import org.unbiquitous.unbihealth.avatar.analytics.Repetition;
+import org.unbiquitous.unbihealth.avatar.analytics.Similarity;
+import org.unbiquitous.unbihealth.avatar.analytics.TemplateDefinition;
 import org.unbiquitous.unbihealth.avatar.data.AvatarBone;
 import org.unbiquitous.unbihealth.avatar.data.AvatarSkeleton;
+import org.unbiquitous.unbihealth.avatar.data.LodProfile;
+import org.unbiquitous.unbihealth.avatar.data.PoseHistory;
+import org.unbiquitous.unbihealth.avatar.data.Calibration;
+import org.unbiquitous.unbihealth.avatar.data.PoseData;
+import org.unbiquitous.unbihealth.avatar.data.SkeletonSnapshot;
+import org.unbiquitous.unbihealth.avatar.data.SkeletonTopology;
+import org.unbiquitous.unbihealth.avatar.export.PoseExporter;
+import org.unbiquitous.unbihealth.avatar.ingest.ClockOffsetEstimator;
+import org.unbiquitous.unbihealth.avatar.ingest.ConflatingMailbox;
+import org.unbiquitous.unbihealth.avatar.ingest.EventTimeTracker;
+import org.unbiquitous.unbihealth.avatar.listener.EmitScheduler;
+import org.unbiquitous.unbihealth.avatar.listener.ListenerHealth;
+import org.unbiquitous.unbihealth.avatar.listener.ListenerRegistry;
+import org.unbiquitous.unbihealth.avatar.local.PosePublisher;
+import org.unbiquitous.unbihealth.avatar.local.PoseSubscriber;
 import org.unbiquitous.unbihealth.imu.IMUDriver;
 import org.unbiquitous.unbihealth.imu.SensorData;
 import org.unbiquitous.uos.core.InitialProperties;
@@ -18,16 +41,26 @@ import org.unbiquitous.uos.core.driverManager.UosDriver;
 import org.unbiquitous.uos.core.driverManager.UosEventDriver;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
-import org.unbiquitous.uos.core.messageEngine.dataType.UpNetworkInterface;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpService;
 import org.unbiquitous.uos.core.messageEngine.messages.Call;
 import org.unbiquitous.uos.core.messageEngine.messages.Notify;
 import org.unbiquitous.uos.core.messageEngine.messages.Response;
-import org.unbiquitous.uos.core.network.model.NetworkDevice;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,13 +73,80 @@ public class AvatarDriver implements UosEventDriver, UosEventListener {
     public static final String DRIVER_NAME = "org.unbiquitous.ubihealth.AvatarDriver";
     public static final String CHANGE_EVENT_NAME = "change";
     public static final String CHANGE_NEW_DATA_PARAM_NAME = "newData";
+    public static final String AVATAR_ID_PARAM_NAME = "avatarId";
+    public static final String AVATAR_ID_KEY = "avatardriver.avatarId";
     public static final String SKELETON_KEY = "avatardriver.skeleton";
     public static final String DEFAULT_SKELETON = "[{\"id\":\"root\",\"sensorId\":\"root\"}]";
+    public static final String GET_STRUCTURE_NAME = "getStructure";
+    public static final String STRUCTURE_PARAM_NAME = "structure";
+    public static final String RETARGET_NAME = "retarget";
+    public static final String SKELETON_PARAM_NAME = "skeleton";
+    public static final String JOINTS_KEY = "avatardriver.joints";
+    public static final String JOINT_EVENT_NAME = "joint";
+    public static final String JOINT_DATA_PARAM_NAME = "jointData";
+    public static final String JOINT_INTERVAL_KEY = "avatardriver.joints.interval";
+    public static final long DEFAULT_JOINT_INTERVAL = 100;
+    public static final String REPETITION_EVENT_NAME = "repetition";
+    public static final String REPETITION_DATA_PARAM_NAME = "repetitionData";
+    public static final String TEMPLATES_KEY = "avatardriver.templates";
+    public static final String SIMILARITY_EVENT_NAME = "similarity";
+    public static final String SIMILARITY_DATA_PARAM_NAME = "similarityData";
+    public static final String LOD_KEY = "avatardriver.lod";
+    public static final String LOD_PARAM_NAME = "lod";
+    public static final String EXPORT_FILE_KEY = "avatardriver.export.file";
+    public static final String SNAPSHOT_FILE_KEY = "avatardriver.snapshot.file";
+    public static final String SNAPSHOT_INTERVAL_KEY = "avatardriver.snapshot.interval";
+    public static final String CONFLATE_KEY = "avatardriver.ingest.conflate";
+    public static final String ALIGN_CLOCKS_KEY = "avatardriver.ingest.alignClocks";
+    public static final String FAILURE_THRESHOLD_KEY = "avatardriver.listeners.failureThreshold";
+    public static final String EVICT_AFTER_KEY = "avatardriver.listeners.evictAfter";
+    public static final String HISTORY_CAPACITY_KEY = "avatardriver.history.capacity";
+    public static final String HISTORY_DURATION_KEY = "avatardriver.history.duration";
+    public static final String HISTORY_RATE_KEY = "avatardriver.history.rate";
+    public static final double DEFAULT_HISTORY_RATE = 100;
+    public static final String EMIT_MAX_RATE_KEY = "avatardriver.emit.maxRate";
+    public static final String EMIT_HEARTBEAT_RATE_KEY = "avatardriver.emit.heartbeatRate";
+    public static final String EMIT_IDLE_SPEED_KEY = "avatardriver.emit.idleSpeed";
+    public static final String EMIT_MOTION_SPEED_KEY = "avatardriver.emit.motionSpeed";
+    public static final String GET_HISTORY_NAME = "getHistory";
+    public static final String BONE_PARAM_NAME = "bone";
+    public static final String FROM_PARAM_NAME = "from";
+    public static final String TO_PARAM_NAME = "to";
+    public static final String HISTORY_PARAM_NAME = "history";
+    public static final String GET_METRICS_NAME = "getMetrics";
+    public static final String METRICS_PARAM_NAME = "metrics";
+    public static final String CALIBRATE_NAME = "calibrate";
+    public static final String DURATION_PARAM_NAME = "duration";
+    public static final long DEFAULT_CALIBRATION_DURATION = 3000;
+    public static final String GET_JOINT_STATS_NAME = "getJointStats";
+    public static final String JOINTS_PARAM_NAME = "joints";
+    public static final String RESET_JOINT_STATS_NAME = "resetJointStats";
 
     private static final UpDriver _driver = new UpDriver(DRIVER_NAME) {
         {
+            addService(GET_STRUCTURE_NAME)
+                    .addParameter(LOD_PARAM_NAME, UpService.ParameterType.OPTIONAL);
+            addService(RETARGET_NAME)
+                    .addParameter(SKELETON_PARAM_NAME, UpService.ParameterType.MANDATORY);
+            addService(CALIBRATE_NAME)
+                    .addParameter(DURATION_PARAM_NAME, UpService.ParameterType.OPTIONAL);
+            addService(GET_HISTORY_NAME)
+                    .addParameter(BONE_PARAM_NAME, UpService.ParameterType.OPTIONAL)
+                    .addParameter(FROM_PARAM_NAME, UpService.ParameterType.OPTIONAL)
+                    .addParameter(TO_PARAM_NAME, UpService.ParameterType.OPTIONAL)
+                    .addParameter(DURATION_PARAM_NAME, UpService.ParameterType.OPTIONAL);
+            addService(GET_METRICS_NAME);
+            addService(GET_JOINT_STATS_NAME);
+            addService(RESET_JOINT_STATS_NAME);
             addEvent(CHANGE_EVENT_NAME)
-                    .addParameter(CHANGE_NEW_DATA_PARAM_NAME, UpService.ParameterType.MANDATORY);
+                    .addParameter(CHANGE_NEW_DATA_PARAM_NAME, UpService.ParameterType.MANDATORY)
+                    .addParameter(AVATAR_ID_PARAM_NAME, UpService.ParameterType.OPTIONAL);
+            addEvent(JOINT_EVENT_NAME)
+                    .addParameter(JOINT_DATA_PARAM_NAME, UpService.ParameterType.MANDATORY);
+            addEvent(REPETITION_EVENT_NAME)
+                    .addParameter(REPETITION_DATA_PARAM_NAME, UpService.ParameterType.MANDATORY);
+            addEvent(SIMILARITY_EVENT_NAME)
+                    .addParameter(SIMILARITY_DATA_PARAM_NAME, UpService.ParameterType.MANDATORY);
         }
     };
     private static Logger logger = UOSLogging.getLogger();
@@ -54,19 +154,89 @@ public class AvatarDriver implements UosEventDriver, UosEventListener {
 
     private Gateway gateway;
     private String instanceId;
-    private Map<UpNetworkInterface, UpDevice> listeners = new ConcurrentHashMap<UpNetworkInterface, UpDevice>();
+    private String avatarId;
+    private final ListenerRegistry listeners = new ListenerRegistry(DRIVER_NAME);
+    private EmitScheduler emitScheduler;
     private Map<DriverData, Set<String>> driverToSensor = new HashMap<>();
-    private Map<String, DriverData> sensorToDriver = new HashMap<>();
-    private AvatarSkeleton skeleton;
+    private Map<String, DriverData> sensorToDriver = new ConcurrentHashMap<>();
+    private volatile AvatarSkeleton skeleton;
+    private JointAnalytics analytics;
+    private long jointInterval = DEFAULT_JOINT_INTERVAL;
+    // When each joint was last sent, by joint id; only touched under the ingest lock.
+    private final Map<String, Long> jointSent = new HashMap<>();
+    private MovementMatcher matcher;
+    private volatile Calibration calibration;
+    private PoseExporter exporter;
+    private volatile ExecutorService ingestExecutor;
+    private final Object ingestLock = new Object();
+    private volatile ConflatingMailbox<SensorData> mailbox;
+    private volatile EventTimeTracker eventTimes;
+    private volatile PoseHistory history;
+    private volatile PosePublisher publisher;
+    private Map<String, List<String>> lodDefinitions = Collections.emptyMap();
+    private volatile Map<String, LodProfile> lods = Collections.emptyMap();
+    private Map<DriverData, ClockOffsetEstimator> clocks;
+    private File snapshotFile;
+    private long snapshotInterval;
+    private long sourceHash;
+    private volatile ScheduledExecutorService snapshotExecutor;
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+    private final Object snapshotLock = new Object();
+    private volatile long lastTimestamp;
 
     public String getInstanceId() {
         return instanceId;
     }
 
+    /**
+     * @return The id of the avatar, sent with every change event so streams from many drivers can be told apart.
+     */
+    public String getAvatarId() {
+        return avatarId;
+    }
+
     public Skeleton getSkeleton() {
         return skeleton;
     }
 
+    public JointAnalytics getAnalytics() {
+        return analytics;
+    }
+
+    public MovementMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * Subscribes an in-process consumer to pose updates, delivered as primitive views in the common fork-join pool.
+     * Unlike change events, no serialization or network is involved. Must be called after
+     * {@link #init(Gateway, InitialProperties, String)}; subscriptions complete when the driver is destroyed.
+     *
+     * @param subscriber The subscriber.
+     * @see PosePublisher
+     */
+    public void subscribe(PoseSubscriber subscriber) {
+        publisher.subscribe(subscriber);
+    }
+
+    /**
+     * Subscribes an in-process consumer to pose updates, delivered in given executor.
+     *
+     * @param subscriber The subscriber.
+     * @param executor   The executor; a direct one delivers in the thread that handles sensor data.
+     * @see PosePublisher
+     */
+    public void subscribe(PoseSubscriber subscriber, Executor executor) {
+        publisher.subscribe(subscriber, executor);
+    }
+
+    /**
+     * @return The recent poses of the current skeleton, or null, if history is disabled.
+     */
+    public PoseHistory getHistory() {
+        return history;
+    }
+
     /**
      * Associates a bone, given its id, with given sensor id.
      * <p>
@@ -132,6 +302,7 @@ public class AvatarDriver implements UosEventDriver, UosEventListener {
             if (sensorDriver != null)
                 removeSensorDriver(previous, sensorDriver);
         }
+        saveSnapshotSoon();
     }
 
     private void removeSensorDriver(String sensorId, DriverData sensorDriver) {
@@ -145,9 +316,274 @@ public class AvatarDriver implements UosEventDriver, UosEventListener {
                 logger.log(Level.WARNING, "Failed to unregister to IMUDriver.", t);
             }
             driverToSensor.remove(sensorDriver);
+            if (clocks != null)
+                clocks.remove(sensorDriver);
+        }
+    }
+
+    /**
+     * Service that retrieves the current skeleton structure (including the current sensor mapping) as a JSON list of
+     * {@link org.unbiquitous.unbihealth.avatar.data.BoneData}, in parameter {@link #STRUCTURE_PARAM_NAME}.
+     * <p>
+     * If parameter {@link #LOD_PARAM_NAME} is given, the structure is reduced to that level of detail.
+     *
+     * @see AvatarSkeleton#toJson()
+     */
+    public void getStructure(Call call, Response response, CallContext context) {
+        String lod = call == null ? null : call.getParameterString(LOD_PARAM_NAME);
+        try {
+            if (lod == null)
+                response.addParameter(STRUCTURE_PARAM_NAME, skeleton.toJson());
+            else {
+                AvatarSkeleton s = skeleton;
+                LodProfile profile = lodProfile(lod, s);
+                if (profile == null) {
+                    response.setError("Unknown level of detail '" + lod + "'.");
+                    return;
+                }
+                response.addParameter(STRUCTURE_PARAM_NAME, mapper.writeValueAsString(profile.toBoneData(s)));
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, DRIVER_NAME + ": failed to serialize skeleton.", e);
+            response.setError(e.getMessage());
         }
     }
 
+    /**
+     * Replaces the skeleton at runtime, without dropping listeners or sensor registrations.
+     * <p>
+     * The new skeleton is parsed and compiled off the calling thread. Then, bones are matched by id: current (absolute)
+     * rotations are carried over and bones keep the sensors they are bound to. This, and publishing the new skeleton,
+     * happen on the ingest path, like sensor data (see {@link #CONFLATE_KEY}), so no sample is applied to the old
+     * skeleton after its state was carried over. Finally, sensors bound to bones that no longer exist are
+     * unregistered.
+     *
+     * @param json The new skeleton description.
+     * @return A future that completes with the published skeleton, or exceptionally, if the skeleton is invalid.
+     * @see AvatarSkeleton#parse(String)
+     * @see AvatarSkeleton#inherit(AvatarSkeleton, Set)
+     */
+    public CompletableFuture<AvatarSkeleton> retarget(final String json) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return AvatarSkeleton.parse(json);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }).thenApply(this::publish);
+    }
+
+    private synchronized AvatarSkeleton publish(AvatarSkeleton next) {
+        // Swapped in along with the samples, so none of them lands in the old skeleton once it's been inherited from.
+        ingestAndWait(() -> {
+            next.inherit(skeleton, sensorToDriver.keySet());
+            skeleton = next;
+            analytics.bind(next);
+            matcher.bind(next);
+            lods = compileLods(next);
+            eventTimes = eventTimes.retarget(next.getTopology());
+            // Recorded poses are laid out for the old topology, so history starts over.
+            if (history != null)
+                history = new PoseHistory(next.getTopology(), history.capacity());
+            if (mailbox != null)
+                mailbox = mailbox.resize(next.getTopology().size());
+            return next;
+        });
+        for (String sensorId : new ArrayList<>(sensorToDriver.keySet()))
+            if (next.getBoneBySensorId(sensorId) == null)
+                removeSensorDriver(sensorId, sensorToDriver.get(sensorId));
+        saveSnapshotSoon();
+        logger.info(DRIVER_NAME + ": skeleton retargeted on instance [" + instanceId + "].");
+        return next;
+    }
+
+    /**
+     * Service that replaces the skeleton, given its description in parameter {@link #SKELETON_PARAM_NAME}.
+     *
+     * @see #retarget(String)
+     */
+    public void retarget(Call call, Response response, CallContext context) {
+        try {
+            retarget(call.getParameterString(SKELETON_PARAM_NAME)).get();
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, DRIVER_NAME + ": failed to retarget skeleton.", e.getCause());
+            response.setError(e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.setError(e.getMessage());
+        }
+    }
+
+    /**
+     * Starts capturing sensor data for calibration. The subject is expected to hold the reference pose (every
+     * segment aligned to the identity rotation, e.g., a T-pose) during the capture window. When it's over, the sensor
+     * to segment alignment of every bone that got data is computed and applied to all further samples.
+     *
+     * @param duration The duration of the capture window, in milliseconds.
+     * @see Calibration
+     */
+    public void startCalibration(long duration) {
+        calibration = new Calibration(System.currentTimeMillis(), duration);
+        logger.info(DRIVER_NAME + ": calibrating instance [" + instanceId + "] for " + duration + "ms.");
+    }
+
+    /**
+     * Service that starts a calibration, optionally given the capture window duration (in milliseconds) in parameter
+     * {@link #DURATION_PARAM_NAME}.
+     *
+     * @see #startCalibration(long)
+     */
+    public void calibrate(Call call, Response response, CallContext context) {
+        String duration = call.getParameterString(DURATION_PARAM_NAME);
+        try {
+            startCalibration(duration == null ? DEFAULT_CALIBRATION_DURATION : Long.parseLong(duration));
+        } catch (IllegalArgumentException e) {
+            response.setError(e.getMessage());
+        }
+    }
+
+    /**
+     * Called on the ingest path only (see {@link #ingest(Runnable)}), like every other change to the pose.
+     */
+    private void finishCalibration(Calibration c) {
+        if (calibration != c)
+            return;
+        calibration = null;
+        int count = c.apply(skeleton);
+        saveSnapshotSoon();
+        logger.info(DRIVER_NAME + ": calibrated " + count + " bone(s) on instance [" + instanceId + "].");
+    }
+
+    /**
+     * Service that retrieves recent poses from the {@link PoseHistory}, in parameter {@link #HISTORY_PARAM_NAME}.
+     * <p>
+     * If parameter {@link #BONE_PARAM_NAME} is given, the result is that bone's
+     * {@link org.unbiquitous.unbihealth.avatar.data.Trajectory}; otherwise, it's a list of
+     * {@link org.unbiquitous.unbihealth.avatar.data.PoseData}. The time range is given either by parameters
+     * {@link #FROM_PARAM_NAME} and {@link #TO_PARAM_NAME} (both inclusive and optional) or by parameter
+     * {@link #DURATION_PARAM_NAME}, meaning the last milliseconds up to now.
+     */
+    public void getHistory(Call call, Response response, CallContext context) {
+        PoseHistory h = history;
+        if (h == null) {
+            response.setError("History is disabled.");
+            return;
+        }
+        try {
+            long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+            String duration = call.getParameterString(DURATION_PARAM_NAME);
+            if (duration != null)
+                from = System.currentTimeMillis() - Long.parseLong(duration);
+            else {
+                String param = call.getParameterString(FROM_PARAM_NAME);
+                if (param != null)
+                    from = Long.parseLong(param);
+                param = call.getParameterString(TO_PARAM_NAME);
+                if (param != null)
+                    to = Long.parseLong(param);
+            }
+            String boneId = call.getParameterString(BONE_PARAM_NAME);
+            response.addParameter(HISTORY_PARAM_NAME,
+                    boneId == null ? h.getPoses(from, to) : h.getTrajectory(boneId, from, to));
+        } catch (IllegalArgumentException e) {
+            response.setError(e.getMessage());
+        }
+    }
+
+    /**
+     * Retrieves the driver's counters.
+     *
+     * @return The counters, by name.
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        ConflatingMailbox<SensorData> m = mailbox;
+        metrics.put("ingest.conflating", m != null);
+        if (m != null) {
+            metrics.put("ingest.offered", m.getOffered());
+            metrics.put("ingest.conflated", m.getConflated());
+            metrics.put("ingest.applied", m.getDelivered());
+        }
+        metrics.put("ingest.late", eventTimes.getLate());
+        if (clocks != null) {
+            Map<String, Long> offsets = new TreeMap<>();
+            for (Map.Entry<DriverData, ClockOffsetEstimator> e : clocks.entrySet())
+                offsets.put(clockName(e.getKey()), e.getValue().getOffset());
+            metrics.put("ingest.clockOffsets", offsets);
+        }
+        metrics.put("listeners", listeners.getHealth());
+        metrics.put("listeners.evicted", listeners.getEvicted());
+        if (emitScheduler != null) {
+            metrics.put("emit.speed", emitScheduler.getSpeed());
+            metrics.put("emit.rate", emitScheduler.getRate());
+            metrics.put("emit.sent", emitScheduler.getEmitted());
+            metrics.put("emit.suppressed", emitScheduler.getSuppressed());
+        }
+        metrics.put("local.subscribers", publisher.getSubscriberCount());
+        return metrics;
+    }
+
+    /**
+     * Service that retrieves the driver's counters, in parameter {@link #METRICS_PARAM_NAME}.
+     *
+     * @see #getMetrics()
+     */
+    public void getMetrics(Call call, Response response, CallContext context) {
+        response.addParameter(METRICS_PARAM_NAME, getMetrics());
+    }
+
+    /**
+     * Service that retrieves the current angle and session statistics of every tracked joint, as a list of
+     * {@link org.unbiquitous.unbihealth.avatar.analytics.JointStats}, in parameter {@link #JOINTS_PARAM_NAME}.
+     */
+    public void getJointStats(Call call, Response response, CallContext context) {
+        response.addParameter(JOINTS_PARAM_NAME, analytics.getStats());
+    }
+
+    /**
+     * Service that starts a new session, clearing the statistics of every tracked joint and the match counts of every
+     * movement template.
+     */
+    public void resetJointStats(Call call, Response response, CallContext context) {
+        analytics.reset();
+        matcher.reset();
+    }
+
+    private final JointAnalytics.Listener jointListener = new JointAnalytics.Listener() {
+        @Override
+        public void onJointUpdate(JointAnalytics.Joint joint) {
+            if (listeners.isEmpty())
+                return;
+            // At most one event per joint per interval. Statistics are cumulative, so the next event covers the
+            // skipped updates.
+            long now = System.nanoTime();
+            Long last = jointSent.get(joint.getId());
+            if (last != null && now - last < TimeUnit.MILLISECONDS.toNanos(jointInterval))
+                return;
+            jointSent.put(joint.getId(), now);
+            doNotify(new Notify(JOINT_EVENT_NAME, DRIVER_NAME, instanceId)
+                    .addParameter(JOINT_DATA_PARAM_NAME, joint.getStats()));
+        }
+
+        @Override
+        public void onRepetition(JointAnalytics.Joint joint, Repetition repetition) {
+            logger.fine(DRIVER_NAME + ": repetition " + repetition.getCount() + " of joint " + joint.getId() + ".");
+            if (!listeners.isEmpty())
+                doNotify(new Notify(REPETITION_EVENT_NAME, DRIVER_NAME, instanceId)
+                        .addParameter(REPETITION_DATA_PARAM_NAME, repetition));
+        }
+    };
+
+    private final MovementMatcher.Listener matchListener = new MovementMatcher.Listener() {
+        @Override
+        public void onMatch(Similarity similarity) {
+            logger.fine(DRIVER_NAME + ": movement matched template " + similarity.getTemplateId() + ".");
+            if (!listeners.isEmpty())
+                doNotify(new Notify(SIMILARITY_EVENT_NAME, DRIVER_NAME, instanceId)
+                        .addParameter(SIMILARITY_DATA_PARAM_NAME, similarity));
+        }
+    };
+
     @Override
     public UpDriver getDriver() {
         return _driver;
@@ -160,6 +596,52 @@ public class AvatarDriver implements UosEventDriver, UosEventListener {
 
     /**
      * User UOS init properties field {@link #SKELETON_KEY} to set the (json) skeleton description.
+     * <p>
+     * Field {@link #AVATAR_ID_KEY} may hold the avatar's id (defaults to the instance id), sent in change events'
+     * parameter {@link #AVATAR_ID_PARAM_NAME}.
+     * <p>
+     * Field {@link #LOD_KEY} may hold a (json) map from level of detail names to the ids of the bones kept in each
+     * (see {@link LodProfile}); listeners choose one when registering, through parameter {@link #LOD_PARAM_NAME}.
+     * <p>
+     * Field {@link #JOINTS_KEY} may hold a (json) list of {@link JointDefinition}s to be tracked, and field
+     * {@link #TEMPLATES_KEY} a (json) list of {@link TemplateDefinition}s to match movements against. Joint events are
+     * sent at most once per joint every {@link #JOINT_INTERVAL_KEY} milliseconds (defaults to
+     * {@link #DEFAULT_JOINT_INTERVAL}); repetition events are never skipped.
+     * <p>
+     * Field {@link #EXPORT_FILE_KEY} may hold the path of a file to which every pose is published, for co-located
+     * readers (see {@link PoseExporter}).
+     * <p>
+     * If field {@link #CONFLATE_KEY} is "true", IMU samples are handed to a {@link ConflatingMailbox} and applied by a
+     * dedicated thread, which skips samples superseded by newer ones for the same bone. Frames and skeleton
+     * replacements are then applied by that thread as well, so the pose is only ever changed by it.
+     * <p>
+     * Samples older than the newest one applied to their bone are discarded (see {@link EventTimeTracker}), so bones
+     * never move backward in time. If field {@link #ALIGN_CLOCKS_KEY} is "true", the clock offset of each IMU device
+     * is estimated and sample timestamps are converted to the local clock before being used in analytics, export and
+     * change events.
+     * <p>
+     * Listeners that fail {@link #FAILURE_THRESHOLD_KEY} consecutive notifications (defaults to 3) are skipped, except
+     * for periodic probes, and evicted if still failing after {@link #EVICT_AFTER_KEY} milliseconds (defaults to 5
+     * minutes). See {@link ListenerHealth}.
+     * <p>
+     * If field {@link #EMIT_MAX_RATE_KEY} is set (hertz), change events follow the avatar's motion through an
+     * {@link EmitScheduler}: at that rate while moving at {@link #EMIT_MOTION_SPEED_KEY} degrees per second (defaults
+     * to 90) or faster, down to {@link #EMIT_HEARTBEAT_RATE_KEY} (defaults to 1) while at or below
+     * {@link #EMIT_IDLE_SPEED_KEY} (defaults to 5). Otherwise, every pose is sent. Local subscribers, the history and
+     * the export file still get every pose.
+     * <p>
+     * If field {@link #HISTORY_CAPACITY_KEY} is set, the last poses (up to that many) are kept in a
+     * {@link PoseHistory}, which can be queried through service {@link #GET_HISTORY_NAME}. Each sample or frame
+     * applied is a pose, so the history may instead be sized by duration: field {@link #HISTORY_DURATION_KEY}
+     * (milliseconds) times the expected rate of poses in field {@link #HISTORY_RATE_KEY} (hertz, defaults to
+     * {@link #DEFAULT_HISTORY_RATE}). Poses are laid out for the skeleton they were recorded with, so
+     * {@link #retarget(String)} starts a new, empty history of the same capacity.
+     * <p>
+     * If field {@link #SNAPSHOT_FILE_KEY} is set, a {@link SkeletonSnapshot} is kept in that file: it's saved right
+     * away when the sensor mapping, calibration or skeleton change and at most once every
+     * {@link #SNAPSHOT_INTERVAL_KEY} milliseconds (defaults to 1000) when only the pose changes. At init, if the
+     * snapshot derives from the same configured skeleton, it's restored and the IMU drivers it was bound to are
+     * registered with again.
      *
      * @see UosDriver#init(Gateway, InitialProperties, String)
      * @see AvatarSkeleton
@@ -168,6 +650,9 @@ public class AvatarDriver implements UosEventDriver, UosEventListener {
     public void init(Gateway gateway, InitialProperties props, String id) {
         this.gateway = gateway;
         this.instanceId = id;
+        // The previous one, if any, was closed on destroy.
+        this.publisher = new PosePublisher();
+        this.avatarId = props.getString(AVATAR_ID_KEY, id);
         String skeletonJson = props.getString(SKELETON_KEY, DEFAULT_SKELETON);
         try {
             this.skeleton = AvatarSkeleton.parse(skeletonJson);
@@ -175,6 +660,95 @@ public class AvatarDriver implements UosEventDriver, UosEventListener {
             logger.log(Level.SEVERE, DRIVER_NAME + ": failed to parse skeleton.", e);
             throw new RuntimeException(e);
         }
+        String snapshotPath = props.getString(SNAPSHOT_FILE_KEY, null);
+        Map<DriverData, Set<String>> restoredBindings = Collections.emptyMap();
+        if (snapshotPath != null) {
+            this.snapshotFile = new File(snapshotPath);
+            this.snapshotInterval = Long.parseLong(props.getString(SNAPSHOT_INTERVAL_KEY, "1000"));
+            this.sourceHash = SkeletonSnapshot.hash(skeletonJson);
+            if (snapshotFile.exists())
+                restoredBindings = restore();
+            this.snapshotExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, DRIVER_NAME + "-snapshot-" + id);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        String jointsJson = props.getString(JOINTS_KEY, "[]");
+        try {
+            List<JointDefinition> joints = mapper.readValue(jointsJson, new TypeReference<List<JointDefinition>>() {
+            });
+            this.jointInterval = Long.parseLong(props.getString(JOINT_INTERVAL_KEY,
+                    Long.toString(DEFAULT_JOINT_INTERVAL)));
+            this.analytics = new JointAnalytics(joints, jointListener);
+            this.analytics.bind(skeleton);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, DRIVER_NAME + ": failed to parse joints.", e);
+            throw new RuntimeException(e);
+        }
+        String templatesJson = props.getString(TEMPLATES_KEY, "[]");
+        try {
+            List<TemplateDefinition> templates = mapper.readValue(templatesJson,
+                    new TypeReference<List<TemplateDefinition>>() {
+                    });
+            this.matcher = new MovementMatcher(templates, matchListener);
+            this.matcher.bind(skeleton);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, DRIVER_NAME + ": failed to parse movement templates.", e);
+            throw new RuntimeException(e);
+        }
+        String lodJson = props.getString(LOD_KEY, "{}");
+        try {
+            this.lodDefinitions = mapper.readValue(lodJson, new TypeReference<Map<String, List<String>>>() {
+            });
+            this.lods = compileLods(skeleton);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, DRIVER_NAME + ": failed to parse levels of detail.", e);
+            throw new RuntimeException(e);
+        }
+        String exportFile = props.getString(EXPORT_FILE_KEY, null);
+        if (exportFile != null) {
+            try {
+                this.exporter = new PoseExporter(new File(exportFile));
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, DRIVER_NAME + ": failed to create pose export file.", e);
+                throw new RuntimeException(e);
+            }
+        }
+        listeners.init(gateway, Integer.parseInt(props.getString(FAILURE_THRESHOLD_KEY,
+                Integer.toString(ListenerHealth.DEFAULT_FAILURE_THRESHOLD))),
+                Long.parseLong(props.getString(EVICT_AFTER_KEY, Long.toString(ListenerHealth.DEFAULT_EVICT_AFTER))));
+        double emitMaxRate = Double.parseDouble(props.getString(EMIT_MAX_RATE_KEY, "0"));
+        if (emitMaxRate > 0)
+            this.emitScheduler = new EmitScheduler(emitMaxRate,
+                    Double.parseDouble(props.getString(EMIT_HEARTBEAT_RATE_KEY,
+                            Double.toString(EmitScheduler.DEFAULT_HEARTBEAT_RATE))),
+                    Double.parseDouble(props.getString(EMIT_IDLE_SPEED_KEY,
+                            Double.toString(EmitScheduler.DEFAULT_IDLE_SPEED))),
+                    Double.parseDouble(props.getString(EMIT_MOTION_SPEED_KEY,
+                            Double.toString(EmitScheduler.DEFAULT_MOTION_SPEED))));
+        int historyCapacity = Integer.parseInt(props.getString(HISTORY_CAPACITY_KEY, "0"));
+        long historyDuration = Long.parseLong(props.getString(HISTORY_DURATION_KEY, "0"));
+        if (historyCapacity <= 0 && historyDuration > 0)
+            historyCapacity = (int) Math.ceil(historyDuration / 1000.0 * Double.parseDouble(
+                    props.getString(HISTORY_RATE_KEY, Double.toString(DEFAULT_HISTORY_RATE))));
+        if (historyCapacity > 0)
+            this.history = new PoseHistory(skeleton.getTopology(), historyCapacity);
+        this.eventTimes = new EventTimeTracker(skeleton.getTopology());
+        if (Boolean.parseBoolean(props.getString(ALIGN_CLOCKS_KEY, "false")))
+            this.clocks = new ConcurrentHashMap<>();
+        if (Boolean.parseBoolean(props.getString(CONFLATE_KEY, "false"))) {
+            this.ingestExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, DRIVER_NAME + "-ingest-" + id);
+                t.setDaemon(true);
+                return t;
+            });
+            this.mailbox = new ConflatingMailbox<>(skeleton.getTopology().size(), ingestExecutor,
+                    (slot, data) -> applyLatest(data));
+        }
+
+        // Last, so samples from the restored sensors find everything they feed in place.
+        reconnect(restoredBindings);
 
         logger.info(DRIVER_NAME + ": init instance [" + id + "].");
     }
@@ -182,33 +756,62 @@ public class AvatarDriver implements UosEventDriver, UosEventListener {
     @Override
     public void destroy() {
         listeners.clear();
+        if (publisher != null)
+            publisher.close();
+        ScheduledExecutorService snapshots = snapshotExecutor;
+        if (snapshots != null) {
+            snapshotExecutor = null;
+            snapshots.shutdownNow();
+            saveSnapshot();
+        }
+        ExecutorService ingest = ingestExecutor;
+        if (ingest != null) {
+            // Further samples are applied right away, under the ingest lock; pending ones are still applied.
+            ingestExecutor = null;
+            mailbox = null;
+            ingest.shutdown();
+            try {
+                if (!ingest.awaitTermination(1, TimeUnit.SECONDS))
+                    ingest.shutdownNow();
+            } catch (InterruptedException e) {
+                ingest.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (exporter != null) {
+            try {
+                exporter.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, DRIVER_NAME + ": failed to close pose export file.", e);
+            }
+            exporter = null;
+        }
         logger.info(DRIVER_NAME + ": destroy instance [" + instanceId + "]. Bye!");
     }
 
     @Override
     public synchronized void registerListener(Call call, Response response, CallContext context) {
         logger.info(DRIVER_NAME + ": registerListener.");
-        UpNetworkInterface uni = getNetworkInterface(context);
-        if (!listeners.containsKey(uni))
-            listeners.put(uni, context.getCallerDevice());
+        String lod = call == null ? null : call.getParameterString(LOD_PARAM_NAME);
+        if (lod != null && !lodDefinitions.containsKey(lod)) {
+            if (response != null)
+                response.setError("Unknown level of detail '" + lod + "'.");
+            return;
+        }
+        listeners.register(context, lod);
     }
 
     @Override
     public void unregisterListener(Call call, Response response, CallContext context) {
         logger.info(DRIVER_NAME + ": unregisterListener.");
-        listeners.remove(getNetworkInterface(context));
-    }
-
-    private void doNotify(Notify n) throws NotifyException {
-        logger.fine(DRIVER_NAME + ": notify -> " + n.toString());
-        for (UpDevice device : listeners.values())
-            gateway.notify(n, device);
+        listeners.unregister(context);
     }
 
-    private static UpNetworkInterface getNetworkInterface(CallContext context) {
-        NetworkDevice networkDevice = context.getCallerNetworkDevice();
-        String host = networkDevice.getNetworkDeviceName().split(":")[1];
-        return new UpNetworkInterface(networkDevice.getNetworkDeviceType(), host);
+    /**
+     * Notifies every listener whose circuit allows it (see {@link ListenerRegistry}).
+     */
+    private void doNotify(Notify n) {
+        listeners.notify(n);
     }
 
     @Override
@@ -220,9 +823,391 @@ public class AvatarDriver implements UosEventDriver, UosEventListener {
             logger.log(Level.SEVERE, "Failed to recover IMUDriver data.", t);
             throw new RuntimeException(t);
         }
-        AvatarBone bone = skeleton.getBoneBySensorId(sensorId.getId());
+        AvatarSkeleton s = skeleton;
+        AvatarBone bone = s.getBoneBySensorId(sensorId.getId());
         if (bone == null)
             return;
+        ClockOffsetEstimator clock = clockOf(sensorId.getId());
+        if (clock != null)
+            clock.update(sensorId.getTimestamp(), System.currentTimeMillis());
+        ConflatingMailbox<SensorData> m = mailbox;
+        int slot = bone.getSlot();
+        if (m != null && slot < m.capacity() && m.offer(slot, sensorId))
+            return;
+        // Not conflating, or the mailbox is about to be resized for a retargeted skeleton, or it's closed.
+        SensorData data = sensorId;
+        ingest(() -> applyLatest(data));
+    }
+
+    /**
+     * Runs a change to the pose, or to anything fed by it (calibration, analytics, history, etc.), on the ingest
+     * thread, if conflating, or right away otherwise. Either way, such changes hold the ingest lock, so they never
+     * run concurrently, and, when conflating, run in the order they were handed over.
+     */
+    private void ingest(Runnable task) {
+        ExecutorService e = ingestExecutor;
+        if (e != null) {
+            try {
+                e.execute(task);
+                return;
+            } catch (RejectedExecutionException ex) {
+                // Destroyed meanwhile: runs right away.
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Same as {@link #ingest(Runnable)}, but waits for the task to complete.
+     */
+    private <T> T ingestAndWait(Supplier<T> task) {
+        Supplier<T> locked = () -> {
+            synchronized (ingestLock) {
+                return task.get();
+            }
+        };
+        ExecutorService e = ingestExecutor;
+        if (e != null) {
+            CompletableFuture<T> result = null;
+            try {
+                result = CompletableFuture.supplyAsync(locked, e);
+            } catch (RejectedExecutionException ex) {
+                // Destroyed meanwhile: runs right away.
+            }
+            if (result != null) {
+                try {
+                    return result.join();
+                } catch (CompletionException ex) {
+                    if (ex.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) ex.getCause();
+                    throw ex;
+                }
+            }
+        }
+        return locked.get();
+    }
+
+    private void applyLatest(SensorData data) {
+        synchronized (ingestLock) {
+            // The skeleton may have been replaced since the sample was received.
+            AvatarSkeleton s = skeleton;
+            AvatarBone bone = s.getBoneBySensorId(data.getId());
+            if (bone == null)
+                return;
+            // Checked here, in the order samples are applied, not in the order they were received.
+            EventTimeTracker t = eventTimes;
+            if (t.getTopology() == s.getTopology() && !t.accept(bone.getSlot(), data.getTimestamp()))
+                return;
+            try {
+                apply(s, bone, data);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, DRIVER_NAME + ": failed to apply sensor data.", e);
+            }
+        }
+    }
+
+    private static String clockName(DriverData driver) {
+        // Sensor drivers found locally may have no device.
+        if (driver.getDevice() != null && driver.getDevice().getName() != null)
+            return driver.getDevice().getName();
+        return driver.getInstanceID() != null ? driver.getInstanceID() : "local";
+    }
+
+    private ClockOffsetEstimator clockOf(String sensorId) {
+        if (clocks == null)
+            return null;
+        DriverData driver = sensorToDriver.get(sensorId);
+        return driver == null ? null : clocks.computeIfAbsent(driver, d -> new ClockOffsetEstimator());
+    }
+
+    private void apply(AvatarSkeleton s, AvatarBone bone, SensorData sensorId) {
+        ClockOffsetEstimator clock = clockOf(sensorId.getId());
+        long timestamp = clock == null ? sensorId.getTimestamp() : clock.toLocal(sensorId.getTimestamp());
+        Calibration c = calibration;
+        if (c != null) {
+            c.addSample(bone, sensorId.getQuaternion());
+            if (c.isDone(System.currentTimeMillis()))
+                finishCalibration(c);
+        }
         bone.setRotation(sensorId.getQuaternion());
+        analytics.update(bone, timestamp);
+        matcher.update(bone, timestamp);
+        // The children's relative rotations moved along with this bone's.
+        int slot = bone.getSlot();
+        SkeletonTopology topology = s.getTopology();
+        for (int k = 0, n = topology.getChildCount(slot); k < n; ++k) {
+            AvatarBone child = s.getBone(topology.getChild(slot, k));
+            analytics.update(child, timestamp);
+            matcher.update(child, timestamp);
+        }
+        remember(s, timestamp);
+        scheduleSnapshot(timestamp);
+        export(s, timestamp);
+        publisher.publish(s, timestamp);
+        notifyChange(s, timestamp);
+    }
+
+    private void notifyChange(AvatarSkeleton s, long timestamp) {
+        if (listeners.isEmpty())
+            return;
+        if (emitScheduler != null && !emitScheduler.shouldEmit(s, timestamp))
+            return;
+        if (lodDefinitions.isEmpty()) {
+            doNotify(changeNotify(PoseData.of(s, timestamp)));
+            return;
+        }
+        // One payload per level of detail in use.
+        Set<String> used = new HashSet<>();
+        for (ListenerRegistry.Listener l : listeners.getListeners())
+            used.add(l.getLod());
+        for (String lod : used) {
+            PoseData data;
+            if (lod == null)
+                data = PoseData.of(s, timestamp);
+            else {
+                LodProfile profile = lodProfile(lod, s);
+                if (profile == null)
+                    continue;
+                data = profile.project(s, timestamp);
+            }
+            listeners.notify(changeNotify(data), lod);
+        }
+    }
+
+    private Notify changeNotify(PoseData data) {
+        Notify n = new Notify(CHANGE_EVENT_NAME, DRIVER_NAME, instanceId)
+                .addParameter(CHANGE_NEW_DATA_PARAM_NAME, data);
+        if (avatarId != null)
+            n.addParameter(AVATAR_ID_PARAM_NAME, avatarId);
+        return n;
+    }
+
+    private Map<String, LodProfile> compileLods(AvatarSkeleton s) {
+        Map<String, LodProfile> profiles = new HashMap<>();
+        for (Map.Entry<String, List<String>> e : lodDefinitions.entrySet())
+            profiles.put(e.getKey(), LodProfile.compile(e.getKey(), s.getTopology(), e.getValue()));
+        return profiles;
+    }
+
+    private LodProfile lodProfile(String lod, AvatarSkeleton s) {
+        LodProfile profile = lods.get(lod);
+        // May be stale for an instant while retargeting.
+        return profile == null || profile.getTopology() != s.getTopology() ? null : profile;
+    }
+
+    /**
+     * Restores the skeleton from the snapshot file, if it derives from the configured one, and registers with the IMU
+     * drivers it was bound to, all at once. Bindings to drivers that can't be reached are dropped.
+     */
+    /**
+     * Restores the skeleton from the snapshot file.
+     *
+     * @return The sensor ids to bind to each IMU driver, once registered to (see {@link #reconnect(Map)}).
+     */
+    private Map<DriverData, Set<String>> restore() {
+        SkeletonSnapshot snapshot;
+        AvatarSkeleton restored;
+        try {
+            snapshot = SkeletonSnapshot.read(snapshotFile);
+            if (snapshot.getSourceHash() != sourceHash) {
+                logger.info(DRIVER_NAME + ": skeleton changed; ignoring snapshot.");
+                return Collections.emptyMap();
+            }
+            restored = snapshot.restore();
+        } catch (IOException | IllegalArgumentException e) {
+            logger.log(Level.WARNING, DRIVER_NAME + ": failed to restore snapshot.", e);
+            return Collections.emptyMap();
+        }
+
+        Map<DriverData, Set<String>> drivers = new LinkedHashMap<>();
+        for (SkeletonSnapshot.Binding b : snapshot.getBindings()) {
+            if (restored.getBoneBySensorId(b.getSensorId()) == null)
+                continue;
+            try {
+                UpDevice device = b.getDevice() == null ? null : mapper.readValue(b.getDevice(), UpDevice.class);
+                drivers.computeIfAbsent(new DriverData(IMUDriver.getDriverStatic(), device, b.getInstanceId()),
+                        d -> new HashSet<>()).add(b.getSensorId());
+            } catch (IOException e) {
+                logger.log(Level.WARNING, DRIVER_NAME + ": failed to restore sensor binding.", e);
+            }
+        }
+        this.skeleton = restored;
+        this.lastTimestamp = snapshot.getTimestamp();
+        logger.info(DRIVER_NAME + ": restored snapshot with " + drivers.size() + " IMU driver binding(s).");
+        return drivers;
+    }
+
+    /**
+     * Registers to the IMU drivers restored from the snapshot, all at once, binding their sensors.
+     */
+    private void reconnect(Map<DriverData, Set<String>> drivers) {
+        Map<DriverData, CompletableFuture<Void>> registrations = new LinkedHashMap<>();
+        for (DriverData driver : drivers.keySet())
+            registrations.put(driver, CompletableFuture.runAsync(() -> {
+                try {
+                    gateway.register(this, driver.getDevice(), IMUDriver.DRIVER_NAME, IMUDriver.CHANGE_EVENT_NAME);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }));
+        for (Map.Entry<DriverData, CompletableFuture<Void>> e : registrations.entrySet()) {
+            try {
+                e.getValue().join();
+            } catch (CompletionException ex) {
+                logger.log(Level.WARNING, DRIVER_NAME + ": failed to register to IMUDriver.", ex.getCause());
+                continue;
+            }
+            driverToSensor.put(e.getKey(), drivers.get(e.getKey()));
+            for (String sensorId : drivers.get(e.getKey()))
+                sensorToDriver.put(sensorId, e.getKey());
+        }
+    }
+
+    private void scheduleSnapshot(long timestamp) {
+        lastTimestamp = timestamp;
+        ScheduledExecutorService e = snapshotExecutor;
+        if (e == null || !snapshotPending.compareAndSet(false, true))
+            return;
+        try {
+            e.schedule(() -> {
+                snapshotPending.set(false);
+                saveSnapshot();
+            }, snapshotInterval, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // Destroyed meanwhile; the final snapshot is saved there.
+        }
+    }
+
+    private void saveSnapshotSoon() {
+        ScheduledExecutorService e = snapshotExecutor;
+        if (e == null)
+            return;
+        try {
+            e.execute(this::saveSnapshot);
+        } catch (RejectedExecutionException ex) {
+            // Destroyed meanwhile; the final snapshot is saved there.
+        }
+    }
+
+    private void saveSnapshot() {
+        // Not the driver's monitor: serializing devices and writing the file must not hold up sensor binding.
+        synchronized (snapshotLock) {
+            List<SkeletonSnapshot.Binding> bindings = new ArrayList<>();
+            for (Map.Entry<String, DriverData> e : sensorToDriver.entrySet()) {
+                DriverData driver = e.getValue();
+                try {
+                    bindings.add(new SkeletonSnapshot.Binding(e.getKey(),
+                            driver.getDevice() == null ? null : mapper.writeValueAsString(driver.getDevice()),
+                            driver.getInstanceID()));
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, DRIVER_NAME + ": failed to serialize sensor binding.", ex);
+                }
+            }
+            // Taken between samples, so the saved pose is whole.
+            SkeletonSnapshot snapshot = ingestAndWait(() ->
+                    SkeletonSnapshot.of(skeleton, sourceHash, lastTimestamp, bindings));
+            try {
+                snapshot.write(snapshotFile);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, DRIVER_NAME + ": failed to save snapshot.", e);
+            }
+        }
+    }
+
+    private void remember(AvatarSkeleton s, long timestamp) {
+        PoseHistory h = history;
+        if (h != null && h.getTopology() == s.getTopology())
+            h.record(s, timestamp);
+    }
+
+    private void export(AvatarSkeleton s, long timestamp) {
+        PoseExporter e = exporter;
+        if (e == null)
+            return;
+        try {
+            e.publish(s, timestamp);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, DRIVER_NAME + ": failed to export pose.", ex);
+        }
+    }
+
+    /**
+     * Handles a whole frame of sensor data at once, for sources that deliver all sensors together.
+     * <p>
+     * Slots for which a newer sample was already applied are skipped, as in {@link #handleEvent(Notify)}. Like
+     * samples, frames are applied on the ingest thread, if conflating, in which case the arrays are copied first.
+     *
+     * @param topology  The topology the frame was built for, i.e., the one from the current skeleton.
+     * @param timestamp The time of the frame, in milliseconds.
+     * @param rotations The sensor rotations, four components (w, x, y, z) per slot.
+     * @param present   Which slots have data in this frame, or null, if all of them have.
+     * @throws IllegalStateException If the skeleton was replaced and has a different topology.
+     * @see AvatarSkeleton#setRotations(double[], boolean[])
+     */
+    public void handleFrame(SkeletonTopology topology, long timestamp, double[] rotations, boolean[] present) {
+        if (skeleton.getTopology() != topology)
+            throw new IllegalStateException("Frame built for a different skeleton.");
+        if (ingestExecutor != null) {
+            // Applied later, while the caller may reuse its arrays.
+            rotations = rotations.clone();
+            if (present != null)
+                present = present.clone();
+        }
+        double[] frame = rotations;
+        boolean[] framePresent = present;
+        ingest(() -> applyFrame(topology, timestamp, frame, framePresent));
+    }
+
+    private void applyFrame(SkeletonTopology topology, long timestamp, double[] rotations, boolean[] present) {
+        synchronized (ingestLock) {
+            AvatarSkeleton s = skeleton;
+            if (s.getTopology() != topology) {
+                logger.warning(DRIVER_NAME + ": dropping frame built for a replaced skeleton.");
+                return;
+            }
+            try {
+                apply(s, topology, timestamp, rotations, present);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, DRIVER_NAME + ": failed to apply frame.", e);
+            }
+        }
+    }
+
+    private void apply(AvatarSkeleton s, SkeletonTopology topology, long timestamp, double[] rotations,
+                       boolean[] present) {
+        EventTimeTracker t = eventTimes;
+        if (t.getTopology() == topology) {
+            boolean[] accepted = present;
+            for (int i = 0; i < topology.size(); ++i)
+                if ((present == null || present[i]) && !t.accept(i, timestamp)) {
+                    if (accepted == present) {
+                        accepted = new boolean[topology.size()];
+                        for (int j = 0; j < accepted.length; ++j)
+                            accepted[j] = present == null || present[j];
+                    }
+                    accepted[i] = false;
+                }
+            present = accepted;
+        }
+        Calibration c = calibration;
+        if (c != null) {
+            for (int i = 0; i < topology.size(); ++i)
+                if (present == null || present[i])
+                    c.addSample(s.getBone(i),
+                            new Quaternion(rotations[4 * i], rotations[4 * i + 1], rotations[4 * i + 2], rotations[4 * i + 3]));
+            if (c.isDone(System.currentTimeMillis()))
+                finishCalibration(c);
+        }
+        s.setRotations(rotations, present);
+        for (int i = 0; i < topology.size(); ++i)
+            if (s.isChanged(i)) {
+                analytics.update(s.getBone(i), timestamp);
+                matcher.update(s.getBone(i), timestamp);
+            }
+        remember(s, timestamp);
+        scheduleSnapshot(timestamp);
+        export(s, timestamp);
+        publisher.publish(s, timestamp);
+        notifyChange(s, timestamp);
     }
 }
@@ -0,0 +1,207 @@
+package org.unbiquitous.unbihealth.avatar.analytics;
+
+import org.apache.commons.math3.util.FastMath;
+import org.unbiquitous.unbihealth.avatar.data.AvatarBone;
+import org.unbiquitous.unbihealth.avatar.data.AvatarSkeleton;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incrementally converts bone rotations into anatomical joint angles and keeps, for each joint, running statistics
+ * (min, max, mean and range of motion) for the current session.
+ * <p>
+ * Each joint uses constant memory, regardless of how long the session is. Updates are expected from a single
+ * (event handling) thread, while statistics may be read from any thread.
+ * <p>
+ * Joints may also count repetitions, through a {@link RepetitionDetector}.
+ *
+ * @author Luciano Santos
+ * @see JointDefinition
+ */
+public class JointAnalytics {
+    /**
+     * Receives every new joint angle.
+     */
+    public interface Listener {
+        /**
+         * Called after a joint is updated, from the updating thread.
+         *
+         * @param joint The updated joint.
+         */
+        void onJointUpdate(Joint joint);
+
+        /**
+         * Called when an update completes a repetition, from the updating thread.
+         *
+         * @param joint      The updated joint.
+         * @param repetition The repetition.
+         */
+        default void onRepetition(Joint joint, Repetition repetition) {
+        }
+    }
+
+    private static final Joint[] NONE = new Joint[0];
+
+    private final List<Joint> joints = new ArrayList<>();
+    private final Listener listener;
+    private volatile Joint[][] bySlot = new Joint[0][];
+    // Touched only by the updating thread.
+    private final double[] rotation = new double[4];
+
+    /**
+     * @param definitions The joints to track.
+     * @param listener    The listener to be notified of each update, or null.
+     * @throws IllegalArgumentException If any definition is incomplete or has an invalid axis.
+     */
+    public JointAnalytics(List<JointDefinition> definitions, Listener listener) {
+        for (JointDefinition d : definitions)
+            joints.add(new Joint(d));
+        this.listener = listener;
+    }
+
+    /**
+     * Maps the joints to the bones of given skeleton. Must be called before updates, and again whenever the skeleton
+     * is replaced (statistics are kept). Joints whose bones do not exist in the skeleton are not updated.
+     *
+     * @param skeleton The skeleton.
+     */
+    public void bind(AvatarSkeleton skeleton) {
+        List<List<Joint>> lists = new ArrayList<>();
+        for (int i = 0; i < skeleton.getTopology().size(); ++i)
+            lists.add(new ArrayList<Joint>());
+        for (Joint j : joints) {
+            int slot = skeleton.getTopology().indexOf(j.boneId);
+            if (slot >= 0)
+                lists.get(slot).add(j);
+        }
+        Joint[][] next = new Joint[lists.size()][];
+        for (int i = 0; i < next.length; ++i)
+            next[i] = lists.get(i).isEmpty() ? NONE : lists.get(i).toArray(new Joint[lists.get(i).size()]);
+        bySlot = next;
+    }
+
+    /**
+     * Updates the joints of given bone, from its current rotation.
+     *
+     * @param bone The updated bone.
+     * @param time The time of the update, in milliseconds.
+     */
+    public void update(AvatarBone bone, long time) {
+        Joint[][] current = bySlot;
+        int slot = bone.getSlot();
+        if (slot >= current.length)
+            return;
+        Joint[] boneJoints = current[slot];
+        if (boneJoints.length == 0)
+            return;
+        double[] q = rotation;
+        bone.copyRotation(q, 0);
+        for (Joint j : boneJoints) {
+            // Guards against bones of a replaced skeleton (ids are interned).
+            if (!j.boneId.equals(bone.getId()))
+                continue;
+            Repetition r = j.update(q[0], q[1], q[2], q[3], time);
+            if (listener != null) {
+                listener.onJointUpdate(j);
+                if (r != null)
+                    listener.onRepetition(j, r);
+            }
+        }
+    }
+
+    /**
+     * @return A snapshot of all joints.
+     */
+    public List<JointStats> getStats() {
+        List<JointStats> stats = new ArrayList<>(joints.size());
+        for (Joint j : joints)
+            stats.add(j.getStats());
+        return stats;
+    }
+
+    /**
+     * Starts a new session, clearing all statistics.
+     */
+    public void reset() {
+        for (Joint j : joints)
+            j.reset();
+    }
+
+    /**
+     * A tracked joint angle and its running statistics.
+     */
+    public static final class Joint {
+        private final String id;
+        private final String boneId;
+        private final JointDefinition.Measure measure;
+        private final double[] axis;
+        private final RepetitionDetector detector;
+
+        private double angle;
+        private double min;
+        private double max;
+        private double mean;
+        private long count;
+
+        Joint(JointDefinition d) {
+            if (d.getId() == null || d.getBoneId() == null || d.getMeasure() == null)
+                throw new IllegalArgumentException("Joint id, bone id and measure are required.");
+            this.id = d.getId();
+            this.boneId = d.getBoneId().toLowerCase().intern();
+            this.measure = d.getMeasure();
+            double[] a = d.getAxis();
+            if (a == null || a.length != 3)
+                throw new IllegalArgumentException("Invalid axis for joint '" + id + "'.");
+            double norm = FastMath.sqrt(a[0] * a[0] + a[1] * a[1] + a[2] * a[2]);
+            if (norm == 0)
+                throw new IllegalArgumentException("Invalid axis for joint '" + id + "'.");
+            this.axis = new double[]{a[0] / norm, a[1] / norm, a[2] / norm};
+            this.detector = d.getRepetitionHysteresis() > 0
+                    ? new RepetitionDetector(id, d.getRepetitionHysteresis(), d.getRepetitionMinAmplitude())
+                    : null;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getBoneId() {
+            return boneId;
+        }
+
+        /**
+         * @return The latest angle, in degrees.
+         */
+        public synchronized double getAngle() {
+            return angle;
+        }
+
+        synchronized Repetition update(double w, double x, double y, double z, long time) {
+            angle = JointAngles.measure(measure, w, x, y, z, axis);
+            if (count == 0) {
+                min = max = mean = angle;
+            } else {
+                min = FastMath.min(min, angle);
+                max = FastMath.max(max, angle);
+                mean += (angle - mean) / (count + 1);
+            }
+            ++count;
+            return detector == null ? null : detector.update(angle, time);
+        }
+
+        synchronized void reset() {
+            min = max = mean = 0;
+            count = 0;
+            if (detector != null)
+                detector.reset();
+        }
+
+        /**
+         * @return A snapshot of this joint.
+         */
+        public synchronized JointStats getStats() {
+            return new JointStats(id, boneId, angle, min, max, mean, count, detector == null ? 0 : detector.getCount());
+        }
+    }
+}
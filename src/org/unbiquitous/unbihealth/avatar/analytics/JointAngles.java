@@ -0,0 +1,102 @@
+package org.unbiquitous.unbihealth.avatar.analytics;
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Decomposes rotations (given as quaternion components) into anatomical angles, in degrees.
+ * <p>
+ * All methods work on primitives and allocate nothing, so they can be called on every update.
+ *
+ * @author Luciano Santos
+ */
+public final class JointAngles {
+    private JointAngles() {
+    }
+
+    /**
+     * Computes the twist (signed rotation) around given axis, from the swing-twist decomposition of a rotation.
+     *
+     * @param w     Scalar component of the rotation.
+     * @param x     First vector component.
+     * @param y     Second vector component.
+     * @param z     Third vector component.
+     * @param axis  The unit twist axis.
+     * @return The angle, in degrees, in [-180, 180].
+     */
+    public static double twist(double w, double x, double y, double z, double[] axis) {
+        double d = x * axis[0] + y * axis[1] + z * axis[2];
+        // q and -q are the same rotation: picks the one with non-negative scalar part.
+        if (w < 0) {
+            w = -w;
+            d = -d;
+        }
+        return FastMath.toDegrees(2 * FastMath.atan2(d, w));
+    }
+
+    /**
+     * Computes the swing (rotation of the axis itself), from the swing-twist decomposition of a rotation.
+     *
+     * @param w    Scalar component of the rotation.
+     * @param x    First vector component.
+     * @param y    Second vector component.
+     * @param z    Third vector component.
+     * @param axis The unit twist axis.
+     * @return The angle, in degrees, in [0, 180].
+     */
+    public static double swing(double w, double x, double y, double z, double[] axis) {
+        double norm = FastMath.sqrt(w * w + x * x + y * y + z * z);
+        double d = x * axis[0] + y * axis[1] + z * axis[2];
+        double cos = FastMath.min(1, FastMath.sqrt(w * w + d * d) / norm);
+        return FastMath.toDegrees(2 * FastMath.acos(cos));
+    }
+
+    /**
+     * @return The Tait-Bryan (z-y'-x'') angle around X, in degrees.
+     */
+    public static double eulerX(double w, double x, double y, double z) {
+        return FastMath.toDegrees(FastMath.atan2(2 * (w * x + y * z), 1 - 2 * (x * x + y * y)));
+    }
+
+    /**
+     * @return The Tait-Bryan (z-y'-x'') angle around Y, in degrees.
+     */
+    public static double eulerY(double w, double x, double y, double z) {
+        double sin = 2 * (w * y - z * x);
+        return FastMath.toDegrees(FastMath.asin(FastMath.max(-1, FastMath.min(1, sin))));
+    }
+
+    /**
+     * @return The Tait-Bryan (z-y'-x'') angle around Z, in degrees.
+     */
+    public static double eulerZ(double w, double x, double y, double z) {
+        return FastMath.toDegrees(FastMath.atan2(2 * (w * z + x * y), 1 - 2 * (y * y + z * z)));
+    }
+
+    /**
+     * Computes an angle according to given measure.
+     *
+     * @param measure The measure.
+     * @param w       Scalar component of the rotation.
+     * @param x       First vector component.
+     * @param y       Second vector component.
+     * @param z       Third vector component.
+     * @param axis    The unit axis, for twist and swing.
+     * @return The angle, in degrees.
+     */
+    public static double measure(JointDefinition.Measure measure, double w, double x, double y, double z, double[] axis) {
+        switch (measure) {
+            case TWIST:
+                return twist(w, x, y, z, axis);
+            case SWING:
+                return swing(w, x, y, z, axis);
+            case EULER_X:
+                return eulerX(w, x, y, z);
+            case EULER_Y:
+                return eulerY(w, x, y, z);
+            case EULER_Z:
+                return eulerZ(w, x, y, z);
+            default:
+                throw new IllegalArgumentException("Unknown measure " + measure + ".");
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.unbiquitous.unbihealth.avatar.analytics;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Auxiliary class that describes (and JSON serializes) an anatomical joint angle to be tracked.
+ * <p>
+ * A joint angle is extracted from the rotation of a bone relative to its parent, by one of the available
+ * {@link Measure}s. Twist and swing are measured around an axis, given in the parent's frame (defaults to X).
+ * <p>
+ * If a positive repetition hysteresis is given, repetitions of the joint's movement are counted as well.
+ *
+ * @author Luciano Santos
+ * @see JointAnalytics
+ * @see RepetitionDetector
+ */
+public class JointDefinition {
+    /**
+     * How to extract an angle from a relative rotation.
+     */
+    public enum Measure {
+        /**
+         * Signed rotation around the axis (e.g., elbow flexion, forearm pronation).
+         */
+        TWIST,
+        /**
+         * Unsigned rotation of the axis itself (e.g., shoulder abduction).
+         */
+        SWING,
+        /**
+         * Tait-Bryan angles (z-y'-x'' order), around X.
+         */
+        EULER_X,
+        /**
+         * Tait-Bryan angles (z-y'-x'' order), around Y.
+         */
+        EULER_Y,
+        /**
+         * Tait-Bryan angles (z-y'-x'' order), around Z.
+         */
+        EULER_Z
+    }
+
+    @JsonProperty(required = true)
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    private String id;
+
+    @JsonProperty(required = true)
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    private String boneId;
+
+    @JsonProperty(required = true)
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    private Measure measure;
+
+    private double[] axis = {1, 0, 0};
+
+    private double repetitionHysteresis;
+
+    private double repetitionMinAmplitude;
+
+    public JointDefinition() {
+    }
+
+    public JointDefinition(String id, String boneId, Measure measure) {
+        setId(id);
+        setBoneId(boneId);
+        setMeasure(measure);
+    }
+
+    public JointDefinition(String id, String boneId, Measure measure, double[] axis) {
+        this(id, boneId, measure);
+        setAxis(axis);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getBoneId() {
+        return boneId;
+    }
+
+    public void setBoneId(String boneId) {
+        this.boneId = boneId;
+    }
+
+    public Measure getMeasure() {
+        return measure;
+    }
+
+    public void setMeasure(Measure measure) {
+        this.measure = measure;
+    }
+
+    public double[] getAxis() {
+        return axis;
+    }
+
+    public void setAxis(double[] axis) {
+        this.axis = axis;
+    }
+
+    /**
+     * @return The hysteresis, in degrees, for repetition detection, or 0, if disabled.
+     */
+    public double getRepetitionHysteresis() {
+        return repetitionHysteresis;
+    }
+
+    public void setRepetitionHysteresis(double repetitionHysteresis) {
+        this.repetitionHysteresis = repetitionHysteresis;
+    }
+
+    /**
+     * @return The minimum amplitude, in degrees, of a repetition.
+     */
+    public double getRepetitionMinAmplitude() {
+        return repetitionMinAmplitude;
+    }
+
+    public void setRepetitionMinAmplitude(double repetitionMinAmplitude) {
+        this.repetitionMinAmplitude = repetitionMinAmplitude;
+    }
+}
@@ -0,0 +1,117 @@
+package org.unbiquitous.unbihealth.avatar.analytics;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Auxiliary class that holds (and JSON serializes) a snapshot of a tracked joint angle and its statistics for the
+ * current session. All angles are in degrees.
+ *
+ * @author Luciano Santos
+ * @see JointAnalytics
+ */
+public class JointStats {
+    private String id;
+    private String boneId;
+    private double angle;
+    private double min;
+    private double max;
+    private double mean;
+    private long count;
+    private long repetitions;
+
+    public JointStats() {
+    }
+
+    public JointStats(String id, String boneId, double angle, double min, double max, double mean, long count,
+                      long repetitions) {
+        this.id = id;
+        this.boneId = boneId;
+        this.angle = angle;
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.count = count;
+        this.repetitions = repetitions;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getBoneId() {
+        return boneId;
+    }
+
+    public void setBoneId(String boneId) {
+        this.boneId = boneId;
+    }
+
+    /**
+     * @return The latest angle.
+     */
+    public double getAngle() {
+        return angle;
+    }
+
+    public void setAngle(double angle) {
+        this.angle = angle;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public void setMin(double min) {
+        this.min = min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public void setMax(double max) {
+        this.max = max;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public void setMean(double mean) {
+        this.mean = mean;
+    }
+
+    /**
+     * @return The range of motion, i.e., max - min (serialized, but derived when read back).
+     */
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    public double getRange() {
+        return count == 0 ? 0 : max - min;
+    }
+
+    /**
+     * @return The number of samples in the session.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    /**
+     * @return The number of repetitions in the session (always 0 if repetitions are not being detected).
+     */
+    public long getRepetitions() {
+        return repetitions;
+    }
+
+    public void setRepetitions(long repetitions) {
+        this.repetitions = repetitions;
+    }
+}
@@ -0,0 +1,151 @@
+package org.unbiquitous.unbihealth.avatar.analytics;
+
+import org.apache.commons.math3.util.FastMath;
+import org.unbiquitous.unbihealth.avatar.data.AvatarBone;
+import org.unbiquitous.unbihealth.avatar.data.AvatarSkeleton;
+import org.unbiquitous.unbihealth.avatar.util.QuatMath;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares, as they arrive, bone rotations against reference movements (templates), reporting each performed movement
+ * that matches a reference and how close it was.
+ * <p>
+ * Each template keeps a {@link SubsequenceDtw}, so memory and time per update are linear in the template's length,
+ * regardless of how long the session is. As in {@link JointAnalytics}, updates are expected from a single (event
+ * handling) thread.
+ *
+ * @author Luciano Santos
+ * @see TemplateDefinition
+ */
+public class MovementMatcher {
+    /**
+     * Receives every match.
+     */
+    public interface Listener {
+        /**
+         * Called when an update completes a match, from the updating thread.
+         *
+         * @param similarity The match.
+         */
+        void onMatch(Similarity similarity);
+    }
+
+    private static final Template[] NONE = new Template[0];
+
+    private final List<Template> templates = new ArrayList<>();
+    private final Listener listener;
+    private volatile Template[][] bySlot = new Template[0][];
+    // Touched only by the updating thread.
+    private final double[] rotation = new double[4];
+
+    /**
+     * @param definitions The templates to match.
+     * @param listener    The listener to be notified of each match, or null.
+     * @throws IllegalArgumentException If any definition is incomplete or invalid.
+     */
+    public MovementMatcher(List<TemplateDefinition> definitions, Listener listener) {
+        for (TemplateDefinition d : definitions)
+            templates.add(new Template(d));
+        this.listener = listener;
+    }
+
+    /**
+     * Maps the templates to the bones of given skeleton. Must be called before updates, and again whenever the
+     * skeleton is replaced. Templates whose bones do not exist in the skeleton are not updated.
+     *
+     * @param skeleton The skeleton.
+     */
+    public void bind(AvatarSkeleton skeleton) {
+        List<List<Template>> lists = new ArrayList<>();
+        for (int i = 0; i < skeleton.getTopology().size(); ++i)
+            lists.add(new ArrayList<Template>());
+        for (Template t : templates) {
+            int slot = skeleton.getTopology().indexOf(t.boneId);
+            if (slot >= 0)
+                lists.get(slot).add(t);
+        }
+        Template[][] next = new Template[lists.size()][];
+        for (int i = 0; i < next.length; ++i)
+            next[i] = lists.get(i).isEmpty() ? NONE : lists.get(i).toArray(new Template[lists.get(i).size()]);
+        bySlot = next;
+    }
+
+    /**
+     * Feeds the templates of given bone with its current rotation.
+     *
+     * @param bone The updated bone.
+     * @param time The time of the update, in milliseconds.
+     */
+    public void update(AvatarBone bone, long time) {
+        Template[][] current = bySlot;
+        int slot = bone.getSlot();
+        if (slot >= current.length)
+            return;
+        Template[] boneTemplates = current[slot];
+        if (boneTemplates.length == 0)
+            return;
+        double[] q = rotation;
+        bone.copyRotation(q, 0);
+        for (Template t : boneTemplates) {
+            // Guards against bones of a replaced skeleton (ids are interned).
+            if (!t.boneId.equals(bone.getId()))
+                continue;
+            Similarity s = t.update(q[0], q[1], q[2], q[3], time);
+            if (s != null && listener != null)
+                listener.onMatch(s);
+        }
+    }
+
+    /**
+     * Discards partial matches and clears match counts.
+     */
+    public void reset() {
+        for (Template t : templates)
+            t.reset();
+    }
+
+    private static final class Template {
+        final String id;
+        final String boneId;
+        final double threshold;
+        final SubsequenceDtw dtw;
+        long count;
+
+        Template(TemplateDefinition d) {
+            if (d.getId() == null || d.getBoneId() == null || d.getRotations() == null || d.getRotations().length == 0)
+                throw new IllegalArgumentException("Template id, bone id and rotations are required.");
+            if (d.getThreshold() <= 0 || d.getMaxStretch() < 1)
+                throw new IllegalArgumentException("Invalid threshold or stretch for template '" + d.getId() + "'.");
+            this.id = d.getId();
+            this.boneId = d.getBoneId().toLowerCase().intern();
+            this.threshold = d.getThreshold();
+            double[][] rotations = d.getRotations();
+            double[] reference = new double[4 * rotations.length];
+            for (int i = 0; i < rotations.length; ++i) {
+                double[] r = rotations[i];
+                if (r == null || r.length != 4)
+                    throw new IllegalArgumentException("Invalid rotation in template '" + id + "'.");
+                System.arraycopy(r, 0, reference, 4 * i, 4);
+                if (QuatMath.normalize(reference, 4 * i) == 0)
+                    throw new IllegalArgumentException("Invalid rotation in template '" + id + "'.");
+            }
+            this.dtw = new SubsequenceDtw(reference, FastMath.toRadians(threshold),
+                    (int) FastMath.ceil(rotations.length * d.getMaxStretch()));
+        }
+
+        synchronized Similarity update(double w, double x, double y, double z, long time) {
+            if (!dtw.update(w, x, y, z, time))
+                return null;
+            double distance = FastMath.toDegrees(dtw.getMatchDistance());
+            return new Similarity(id, boneId, dtw.getMatchStart(), dtw.getMatchEnd(), distance,
+                    FastMath.max(0, 1 - distance / threshold), ++count);
+        }
+
+        synchronized void reset() {
+            dtw.reset();
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.unbiquitous.unbihealth.avatar.analytics;
+
+/**
+ * Auxiliary class that holds (and JSON serializes) a detected exercise repetition, i.e., a valley - peak - valley
+ * cycle of a joint angle. Angles are in degrees and times in milliseconds.
+ *
+ * @author Luciano Santos
+ * @see RepetitionDetector
+ */
+public class Repetition {
+    private String jointId;
+    private long count;
+    private double valley;
+    private double peak;
+    private long start;
+    private long end;
+
+    public Repetition() {
+    }
+
+    public Repetition(String jointId, long count, double valley, double peak, long start, long end) {
+        this.jointId = jointId;
+        this.count = count;
+        this.valley = valley;
+        this.peak = peak;
+        this.start = start;
+        this.end = end;
+    }
+
+    public String getJointId() {
+        return jointId;
+    }
+
+    public void setJointId(String jointId) {
+        this.jointId = jointId;
+    }
+
+    /**
+     * @return The number of repetitions in the session, including this one.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    /**
+     * @return The angle of the valley that started the repetition.
+     */
+    public double getValley() {
+        return valley;
+    }
+
+    public void setValley(double valley) {
+        this.valley = valley;
+    }
+
+    public double getPeak() {
+        return peak;
+    }
+
+    public void setPeak(double peak) {
+        this.peak = peak;
+    }
+
+    /**
+     * @return The time of the valley that started the repetition.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    public void setStart(long start) {
+        this.start = start;
+    }
+
+    /**
+     * @return The time of the valley that ended the repetition.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    public void setEnd(long end) {
+        this.end = end;
+    }
+}
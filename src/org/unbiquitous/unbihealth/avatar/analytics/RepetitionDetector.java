@@ -0,0 +1,134 @@
+package org.unbiquitous.unbihealth.avatar.analytics;
+
+/**
+ * Streaming repetition counter over a joint angle.
+ * <p>
+ * Detects peaks and valleys with hysteresis: an extreme is only confirmed once the angle moves back from it by more
+ * than the hysteresis, which filters out sensor noise. A repetition is counted at every valley - peak - valley cycle
+ * whose both halves move by at least the minimum amplitude. State is constant, regardless of the stream length.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Luciano Santos
+ */
+public class RepetitionDetector {
+    private final String jointId;
+    private final double hysteresis;
+    private final double minAmplitude;
+
+    private int samples;
+    private boolean started;
+    private boolean rising;
+    private double extreme;
+    private long extremeTime;
+    private boolean hasValley;
+    private double valley;
+    private long valleyTime;
+    private boolean hasPeak;
+    private double peak;
+    private long count;
+
+    /**
+     * @param jointId      The id of the joint, used in the emitted repetitions.
+     * @param hysteresis   How much (in degrees) the angle must move back from an extreme to confirm it.
+     * @param minAmplitude The minimum amplitude (in degrees) of a repetition.
+     * @throws IllegalArgumentException If hysteresis is not positive or the amplitude is negative.
+     */
+    public RepetitionDetector(String jointId, double hysteresis, double minAmplitude) {
+        if (!(hysteresis > 0))
+            throw new IllegalArgumentException("Hysteresis must be positive.");
+        if (!(minAmplitude >= 0))
+            throw new IllegalArgumentException("Amplitude must not be negative.");
+        this.jointId = jointId;
+        this.hysteresis = hysteresis;
+        this.minAmplitude = minAmplitude;
+    }
+
+    /**
+     * Feeds a new angle.
+     *
+     * @param angle The angle, in degrees.
+     * @param time  The time of the sample, in milliseconds.
+     * @return The completed repetition, or null, if this sample did not complete one.
+     */
+    public Repetition update(double angle, long time) {
+        if (!started) {
+            start(angle, time);
+            return null;
+        }
+
+        if (rising) {
+            if (angle > extreme) {
+                extreme = angle;
+                extremeTime = time;
+            } else if (angle < extreme - hysteresis) {
+                // Peak confirmed.
+                hasPeak = hasValley && extreme - valley >= minAmplitude;
+                peak = extreme;
+                rising = false;
+                extreme = angle;
+                extremeTime = time;
+            }
+            return null;
+        }
+
+        if (angle < extreme) {
+            extreme = angle;
+            extremeTime = time;
+            return null;
+        }
+        if (angle <= extreme + hysteresis)
+            return null;
+
+        // Valley confirmed.
+        Repetition r = null;
+        if (hasPeak && peak - extreme >= minAmplitude)
+            r = new Repetition(jointId, ++count, valley, peak, valleyTime, extremeTime);
+        hasPeak = false;
+        hasValley = true;
+        valley = extreme;
+        valleyTime = extremeTime;
+        rising = true;
+        extreme = angle;
+        extremeTime = time;
+        return r;
+    }
+
+    private void start(double angle, long time) {
+        // Direction is still unknown: the first movement beyond the hysteresis tells whether the stream started near
+        // a valley (which becomes the first valley) or near a peak (discarded, for there's no valley before it).
+        if (samples++ == 0 || angle < valley) {
+            valley = angle;
+            valleyTime = time;
+        }
+        if (samples == 1 || angle > peak) {
+            peak = angle;
+            extremeTime = time;
+        }
+        if (angle > valley + hysteresis) {
+            started = hasValley = rising = true;
+            extreme = peak;
+        } else if (angle < peak - hysteresis) {
+            started = true;
+            rising = false;
+            extreme = valley;
+            extremeTime = valleyTime;
+        }
+    }
+
+    /**
+     * @return The number of repetitions counted so far.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Clears all state.
+     */
+    public void reset() {
+        started = hasValley = hasPeak = false;
+        samples = 0;
+        count = 0;
+    }
+}
@@ -0,0 +1,102 @@
+package org.unbiquitous.unbihealth.avatar.analytics;
+
+/**
+ * Auxiliary class that holds (and JSON serializes) a match of a bone's movement against a reference movement. Times
+ * are in milliseconds and distances in degrees.
+ *
+ * @author Luciano Santos
+ * @see MovementMatcher
+ */
+public class Similarity {
+    private String templateId;
+    private String boneId;
+    private long start;
+    private long end;
+    private double distance;
+    private double score;
+    private long count;
+
+    public Similarity() {
+    }
+
+    public Similarity(String templateId, String boneId, long start, long end, double distance, double score, long count) {
+        this.templateId = templateId;
+        this.boneId = boneId;
+        this.start = start;
+        this.end = end;
+        this.distance = distance;
+        this.score = score;
+        this.count = count;
+    }
+
+    public String getTemplateId() {
+        return templateId;
+    }
+
+    public void setTemplateId(String templateId) {
+        this.templateId = templateId;
+    }
+
+    public String getBoneId() {
+        return boneId;
+    }
+
+    public void setBoneId(String boneId) {
+        this.boneId = boneId;
+    }
+
+    /**
+     * @return The time the matching movement started.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    public void setStart(long start) {
+        this.start = start;
+    }
+
+    /**
+     * @return The time the matching movement ended.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    public void setEnd(long end) {
+        this.end = end;
+    }
+
+    /**
+     * @return The mean angular distance from the reference, along the warping path.
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    public void setDistance(double distance) {
+        this.distance = distance;
+    }
+
+    /**
+     * @return The similarity, from 0 (at the template's threshold) to 1 (identical to the reference).
+     */
+    public double getScore() {
+        return score;
+    }
+
+    public void setScore(double score) {
+        this.score = score;
+    }
+
+    /**
+     * @return The number of matches of the template in the session, including this one.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+}
@@ -0,0 +1,205 @@
+package org.unbiquitous.unbihealth.avatar.analytics;
+
+import org.unbiquitous.unbihealth.avatar.util.QuatMath;
+
+import java.util.Arrays;
+
+/**
+ * Streaming subsequence dynamic time warping of rotations against a reference sequence (the SPRING algorithm).
+ * <p>
+ * Each new sample updates a single column of the DTW matrix, in time and memory linear in the length of the reference,
+ * and any subsequence of the stream may match the whole reference. When the best match found so far can no longer be
+ * improved by later samples, it is reported, and matching continues after it (matches don't overlap).
+ * <p>
+ * Distances between samples are geodesic (the angle of the rotation from one to the other, in radians). A match is
+ * accepted if its accumulated distance, divided by the reference length, is at most the threshold. Warping is bounded
+ * by limiting matches to a maximum length (in samples), which also bounds how long a partial match is kept.
+ * <p>
+ * Instances are not thread safe.
+ *
+ * @author Luciano Santos
+ */
+public class SubsequenceDtw {
+    private final double[] reference;
+    private final int length;
+    private final int maxLength;
+    private final double epsilon;
+    private final double[] sample = new double[4];
+
+    // Previous and current columns: accumulated distance, and start (sample index and time) of its best path.
+    private double[] prevDist;
+    private double[] dist;
+    private long[] prevStart;
+    private long[] start;
+    private long[] prevStartTime;
+    private long[] startTime;
+
+    private long t;
+    private double best;
+    private long bestStartTime;
+    private long bestEnd;
+    private long bestEndTime;
+
+    private double matchDistance;
+    private long matchStart;
+    private long matchEnd;
+
+    /**
+     * @param reference The reference rotations, four components (w, x, y, z) per sample, normalized.
+     * @param threshold The maximum mean distance of a match, in radians.
+     * @param maxLength The maximum length of a match, in samples (at least the reference's length).
+     * @throws IllegalArgumentException If the reference is empty or malformed, or the parameters are out of range.
+     */
+    public SubsequenceDtw(double[] reference, double threshold, int maxLength) {
+        if (reference.length == 0 || reference.length % 4 != 0)
+            throw new IllegalArgumentException("Reference must have four components per sample.");
+        this.reference = reference.clone();
+        this.length = reference.length / 4;
+        if (maxLength < length)
+            throw new IllegalArgumentException("Maximum length must be at least the reference's length.");
+        if (threshold <= 0)
+            throw new IllegalArgumentException("Threshold must be positive.");
+        this.maxLength = maxLength;
+        this.epsilon = threshold * length;
+        this.prevDist = new double[length + 1];
+        this.dist = new double[length + 1];
+        this.prevStart = new long[length + 1];
+        this.start = new long[length + 1];
+        this.prevStartTime = new long[length + 1];
+        this.startTime = new long[length + 1];
+        reset();
+    }
+
+    /**
+     * @return The number of samples of the reference.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Discards any partial match.
+     */
+    public void reset() {
+        Arrays.fill(prevDist, Double.POSITIVE_INFINITY);
+        prevDist[0] = 0;
+        best = Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Feeds a sample.
+     *
+     * @param w    Rotation's w.
+     * @param x    Rotation's x.
+     * @param y    Rotation's y.
+     * @param z    Rotation's z.
+     * @param time The time of the sample.
+     * @return Whether a match was completed; if so, see {@link #getMatchDistance()}, {@link #getMatchStart()} and
+     * {@link #getMatchEnd()}.
+     */
+    public boolean update(double w, double x, double y, double z, long time) {
+        final double[] ref = reference, q = sample;
+        final double[] d = dist, pd = prevDist;
+        final long[] s = start, ps = prevStart, st = startTime, pst = prevStartTime;
+        final long oldest = t - maxLength + 1;
+
+        q[0] = w;
+        q[1] = x;
+        q[2] = y;
+        q[3] = z;
+        d[0] = 0;
+        s[0] = t;
+        st[0] = time;
+        for (int i = 1, r = 0; i <= length; ++i, r += 4) {
+            // Predecessor with the smallest accumulated distance (same sample, previous sample, or both), among those
+            // whose path still fits in the maximum length.
+            double m = Double.POSITIVE_INFINITY;
+            long ms = 0, mst = 0;
+            if (d[i - 1] < m && s[i - 1] >= oldest) {
+                m = d[i - 1];
+                ms = s[i - 1];
+                mst = st[i - 1];
+            }
+            if (pd[i] < m && ps[i] >= oldest) {
+                m = pd[i];
+                ms = ps[i];
+                mst = pst[i];
+            }
+            if (pd[i - 1] < m && ps[i - 1] >= oldest) {
+                m = pd[i - 1];
+                ms = ps[i - 1];
+                mst = pst[i - 1];
+            }
+            if (m == Double.POSITIVE_INFINITY) {
+                d[i] = Double.POSITIVE_INFINITY;
+                continue;
+            }
+            d[i] = m + QuatMath.angle(q, 0, ref, r);
+            s[i] = ms;
+            st[i] = mst;
+        }
+
+        boolean matched = false;
+        if (best <= epsilon) {
+            // Reports the best match once no partial path that overlaps it can still beat it.
+            boolean settled = true;
+            for (int i = 1; i <= length && settled; ++i)
+                settled = d[i] >= best || s[i] > bestEnd;
+            if (settled) {
+                matchDistance = best / length;
+                matchStart = bestStartTime;
+                matchEnd = bestEndTime;
+                matched = true;
+                best = Double.POSITIVE_INFINITY;
+                for (int i = 1; i <= length; ++i)
+                    if (s[i] <= bestEnd)
+                        d[i] = Double.POSITIVE_INFINITY;
+            }
+        }
+        if (d[length] <= epsilon && d[length] < best) {
+            best = d[length];
+            bestStartTime = st[length];
+            bestEnd = t;
+            bestEndTime = time;
+        }
+
+        // Swaps columns.
+        prevDist = d;
+        dist = pd;
+        prevStart = s;
+        start = ps;
+        prevStartTime = st;
+        startTime = pst;
+        ++t;
+        return matched;
+    }
+
+    /**
+     * @return The mean distance of the last match, in radians.
+     */
+    public double getMatchDistance() {
+        return matchDistance;
+    }
+
+    /**
+     * @return The time of the first sample of the last match.
+     */
+    public long getMatchStart() {
+        return matchStart;
+    }
+
+    /**
+     * @return The time of the last sample of the last match.
+     */
+    public long getMatchEnd() {
+        return matchEnd;
+    }
+
+    /**
+     * @return The mean distance of the best partial match ending at the latest sample, in radians, or infinity, if
+     * there's none within the maximum length.
+     */
+    public double getCurrentDistance() {
+        return prevDist[length] / length;
+    }
+}
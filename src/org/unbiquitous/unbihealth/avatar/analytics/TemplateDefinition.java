@@ -0,0 +1,108 @@
+package org.unbiquitous.unbihealth.avatar.analytics;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.unbiquitous.unbihealth.avatar.data.Trajectory;
+
+/**
+ * Auxiliary class that describes (and JSON serializes) a reference movement of a bone, against which live movement is
+ * compared.
+ * <p>
+ * The reference is a sequence of rotations of the bone relative to its parent, each as (w, x, y, z), sampled at the
+ * same rate the bone is expected to be updated. A movement matches if its mean angular distance from the reference,
+ * after time warping, is at most <code>threshold</code> degrees, and if it's at most <code>maxStretch</code> times
+ * as long as the reference.
+ *
+ * @author Luciano Santos
+ * @see MovementMatcher
+ */
+public class TemplateDefinition {
+    @JsonProperty(required = true)
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    private String id;
+
+    @JsonProperty(required = true)
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    private String boneId;
+
+    @JsonProperty(required = true)
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    private double[][] rotations;
+
+    private double threshold = 15;
+
+    private double maxStretch = 2;
+
+    public TemplateDefinition() {
+    }
+
+    public TemplateDefinition(String id, String boneId, double[][] rotations) {
+        setId(id);
+        setBoneId(boneId);
+        setRotations(rotations);
+    }
+
+    /**
+     * Creates a template from a recorded trajectory (e.g., from {@link org.unbiquitous.unbihealth.avatar.data.PoseHistory}).
+     *
+     * @param id         The template id.
+     * @param trajectory The recording.
+     * @return The new template.
+     */
+    public static TemplateDefinition of(String id, Trajectory trajectory) {
+        double[][] rotations = new double[trajectory.size()][];
+        double[] r = trajectory.getRotations();
+        for (int i = 0; i < rotations.length; ++i)
+            rotations[i] = new double[]{r[4 * i], r[4 * i + 1], r[4 * i + 2], r[4 * i + 3]};
+        return new TemplateDefinition(id, trajectory.getBoneId(), rotations);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getBoneId() {
+        return boneId;
+    }
+
+    public void setBoneId(String boneId) {
+        this.boneId = boneId;
+    }
+
+    /**
+     * @return The reference rotations, each as (w, x, y, z).
+     */
+    public double[][] getRotations() {
+        return rotations;
+    }
+
+    public void setRotations(double[][] rotations) {
+        this.rotations = rotations;
+    }
+
+    /**
+     * @return The maximum mean distance of a match, in degrees.
+     */
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return The maximum length of a match, relative to the reference's length.
+     */
+    public double getMaxStretch() {
+        return maxStretch;
+    }
+
+    public void setMaxStretch(double maxStretch) {
+        this.maxStretch = maxStretch;
+    }
+}
@@ -0,0 +1,233 @@
+package org.unbiquitous.unbihealth.avatar.archive;
+
+import org.unbiquitous.unbihealth.avatar.data.Trajectory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.unbiquitous.unbihealth.avatar.archive.PoseArchiveWriter.*;
+
+/**
+ * Reads archives written by {@link PoseArchiveWriter}.
+ * <p>
+ * Opening an archive only reads block headers (skipping over column data). Reading a bone then seeks directly to its
+ * column in every block that overlaps the requested time range.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Luciano Santos
+ */
+public class PoseArchiveReader implements Closeable {
+    private final RandomAccessFile file;
+    private final boolean deflate;
+    private final int scale;
+    private final String[] ids;
+    private final int[] parents;
+    private final List<Block> blocks = new ArrayList<>();
+
+    private static final class Block {
+        int frames;
+        long min;
+        long max;
+        long[] offsets;
+        int[] storedLengths;
+        int[] rawLengths;
+    }
+
+    /**
+     * Opens an archive and indexes its blocks.
+     *
+     * @param path The archive file.
+     * @throws IOException If the file could not be read or is not a valid archive.
+     */
+    public PoseArchiveReader(File path) throws IOException {
+        this.file = new RandomAccessFile(path, "r");
+        try {
+            if (file.readInt() != MAGIC)
+                throw new IOException("Not a pose archive.");
+            if (file.readInt() != VERSION)
+                throw new IOException("Unsupported pose archive version.");
+            this.deflate = (file.readInt() & FLAG_DEFLATE) != 0;
+            this.scale = file.readInt();
+            int count = file.readInt();
+            if (count <= 0)
+                throw new IOException("Corrupt pose archive header.");
+            this.ids = new String[count];
+            this.parents = new int[count];
+            for (int i = 0; i < count; ++i) {
+                ids[i] = file.readUTF();
+                parents[i] = file.readInt();
+            }
+            indexBlocks(file.getFilePointer());
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private void indexBlocks(long position) throws IOException {
+        long length = file.length();
+        int columns = ids.length + 1;
+        while (position < length) {
+            file.seek(position);
+            if (file.readInt() != BLOCK_MAGIC)
+                throw new IOException("Corrupt pose archive block.");
+            Block b = new Block();
+            b.frames = file.readInt();
+            b.min = file.readLong();
+            b.max = file.readLong();
+            b.offsets = new long[columns];
+            b.storedLengths = new int[columns];
+            b.rawLengths = new int[columns];
+            byte[] lengths = new byte[8 * columns];
+            file.readFully(lengths);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(lengths));
+            long offset = position + 24 + lengths.length;
+            for (int c = 0; c < columns; ++c) {
+                b.storedLengths[c] = in.readInt();
+                b.rawLengths[c] = in.readInt();
+                b.offsets[c] = offset;
+                offset += b.storedLengths[c];
+            }
+            blocks.add(b);
+            position = offset;
+        }
+    }
+
+    /**
+     * @return The number of bones.
+     */
+    public int getBoneCount() {
+        return ids.length;
+    }
+
+    /**
+     * @param slot The slot.
+     * @return The id of the bone at given slot.
+     */
+    public String getId(int slot) {
+        return ids[slot];
+    }
+
+    /**
+     * @param slot The slot.
+     * @return The parent slot of given slot, or -1 for the root.
+     */
+    public int getParent(int slot) {
+        return parents[slot];
+    }
+
+    /**
+     * @param id The bone id.
+     * @return The slot of the bone, or -1, if there's no such bone.
+     */
+    public int indexOf(String id) {
+        for (int i = 0; i < ids.length; ++i)
+            if (ids[i].equals(id))
+                return i;
+        return -1;
+    }
+
+    /**
+     * @return The total number of frames in the archive.
+     */
+    public long getFrameCount() {
+        long count = 0;
+        for (Block b : blocks)
+            count += b.frames;
+        return count;
+    }
+
+    /**
+     * Decodes a bone's trajectory over a time range, reading only that bone's columns (and timestamps).
+     *
+     * @param boneId The id of the bone.
+     * @param from   The start of the range, inclusive.
+     * @param to     The end of the range, inclusive.
+     * @return The trajectory.
+     * @throws IOException              If the archive could not be read.
+     * @throws IllegalArgumentException If the bone is unknown.
+     */
+    public Trajectory readBone(String boneId, long from, long to) throws IOException {
+        int slot = indexOf(boneId);
+        if (slot < 0)
+            throw new IllegalArgumentException("Unknown bone id.");
+
+        long[] timestamps = new long[64];
+        double[] rotations = new double[256];
+        int size = 0;
+        for (Block b : blocks) {
+            if (b.max < from || b.min > to)
+                continue;
+            long[] ts = decodeTimestamps(b);
+            int[] q = decodeBone(b, slot);
+            for (int f = 0; f < b.frames; ++f) {
+                if (ts[f] < from || ts[f] > to)
+                    continue;
+                if (size == timestamps.length) {
+                    timestamps = Arrays.copyOf(timestamps, size * 2);
+                    rotations = Arrays.copyOf(rotations, size * 8);
+                }
+                timestamps[size] = ts[f];
+                for (int k = 0; k < 4; ++k)
+                    rotations[4 * size + k] = (double) q[k * b.frames + f] / scale;
+                ++size;
+            }
+        }
+        return new Trajectory(ids[slot], Arrays.copyOf(timestamps, size), Arrays.copyOf(rotations, 4 * size));
+    }
+
+    private long[] decodeTimestamps(Block b) throws IOException {
+        VarInts.Source in = new VarInts.Source(readColumn(b, 0));
+        long[] ts = new long[b.frames];
+        long last = b.min;
+        for (int f = 0; f < b.frames; ++f)
+            ts[f] = last += in.readLong();
+        return ts;
+    }
+
+    private int[] decodeBone(Block b, int slot) throws IOException {
+        VarInts.Source in = new VarInts.Source(readColumn(b, slot + 1));
+        int[] q = new int[4 * b.frames];
+        for (int k = 0; k < 4; ++k) {
+            int prev = 0;
+            for (int f = 0; f < b.frames; ++f)
+                q[k * b.frames + f] = prev += (int) in.readLong();
+        }
+        return q;
+    }
+
+    private byte[] readColumn(Block b, int column) throws IOException {
+        byte[] stored = new byte[b.storedLengths[column]];
+        file.seek(b.offsets[column]);
+        file.readFully(stored);
+        if (!deflate)
+            return stored;
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            byte[] raw = new byte[b.rawLengths[column]];
+            int length = 0;
+            while (length < raw.length) {
+                int n = inflater.inflate(raw, length, raw.length - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput()))
+                    throw new IOException("Corrupt pose archive column.");
+                length += n;
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt pose archive column.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
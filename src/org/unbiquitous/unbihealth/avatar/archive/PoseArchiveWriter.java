@@ -0,0 +1,210 @@
+package org.unbiquitous.unbihealth.avatar.archive;
+
+import org.unbiquitous.unbihealth.avatar.data.SkeletonTopology;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes pose archives: a compact, columnar format for long-term storage of recorded sessions.
+ * <p>
+ * Frames are grouped in blocks. Inside a block, data is stored column-wise: one column with the timestamps and one
+ * column per bone. Quaternion components are quantized to integers (see {@link #SCALE}) and every column is delta
+ * encoded, then zig-zag + varint coded, so slowly varying values take one or two bytes. Columns may also be deflated.
+ * Each block header holds its min/max timestamps and the length of every column, so readers can skip blocks outside a
+ * time range and decode a single bone without touching the others.
+ * <p>
+ * Layout (big endian, as {@link DataOutputStream}):
+ * <pre>
+ * File header
+ *   int    magic ({@link #MAGIC}, "AVPA")
+ *   int    version ({@link #VERSION})
+ *   int    flags ({@link #FLAG_DEFLATE})
+ *   int    quantization scale
+ *   int    bone count (n)
+ *   n x    (UTF id, int parent slot)
+ * Block, repeated
+ *   int    magic ({@link #BLOCK_MAGIC})
+ *   int    frame count (m)
+ *   long   min timestamp
+ *   long   max timestamp
+ *   (n+1)x (int stored length, int raw length), timestamps column first
+ *   timestamps column: m deltas (the first one from min timestamp)
+ *   n x bone column: for each of w, x, y, z, m deltas of the quantized component (the first one from zero)
+ * </pre>
+ * Since q and -q are the same rotation, signs are chosen for continuity with the previous frame, so a decoded
+ * quaternion may be the negation of the recorded one.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Luciano Santos
+ * @see PoseArchiveReader
+ */
+public class PoseArchiveWriter implements Closeable {
+    public static final int MAGIC = 0x41505641;
+    public static final int BLOCK_MAGIC = 0x4B4C4250;
+    public static final int VERSION = 1;
+    public static final int FLAG_DEFLATE = 1;
+    public static final int SCALE = 32767;
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private final DataOutputStream out;
+    private final int bones;
+    private final int blockSize;
+    private final boolean deflate;
+    private final long[] timestamps;
+    private final int[] quantized;
+    private final int[] previous;
+    private final VarInts.Sink sink = new VarInts.Sink();
+    private final Deflater deflater;
+    private byte[] deflated = new byte[0];
+    private int frames;
+
+    /**
+     * Writes the file header.
+     *
+     * @param out       The stream to write to.
+     * @param topology  The topology of the recorded skeleton.
+     * @param blockSize The number of frames per block.
+     * @param deflate   Whether columns should be deflated.
+     * @throws IOException If the header could not be written.
+     */
+    public PoseArchiveWriter(OutputStream out, SkeletonTopology topology, int blockSize, boolean deflate)
+            throws IOException {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Block size must be positive.");
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.bones = topology.size();
+        this.blockSize = blockSize;
+        this.deflate = deflate;
+        this.deflater = deflate ? new Deflater() : null;
+        this.timestamps = new long[blockSize];
+        this.quantized = new int[4 * bones * blockSize];
+        this.previous = new int[4 * bones];
+
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(VERSION);
+        this.out.writeInt(deflate ? FLAG_DEFLATE : 0);
+        this.out.writeInt(SCALE);
+        this.out.writeInt(bones);
+        for (int i = 0; i < bones; ++i) {
+            this.out.writeUTF(topology.getId(i));
+            this.out.writeInt(topology.getParent(i));
+        }
+    }
+
+    /**
+     * Appends a frame.
+     *
+     * @param timestamp The timestamp of the frame (should not decrease).
+     * @param pose      The rotations, four components (w, x, y, z) per slot.
+     * @throws IOException If a full block could not be written.
+     */
+    public void append(long timestamp, double[] pose) throws IOException {
+        if (pose.length < 4 * bones)
+            throw new IllegalArgumentException("Pose smaller than skeleton.");
+        timestamps[frames] = timestamp;
+        for (int b = 0; b < bones; ++b) {
+            int o = 4 * b;
+            // Keeps the sign continuous, so deltas stay small.
+            double dot = 0;
+            for (int k = 0; k < 4; ++k)
+                dot += previous[o + k] * pose[o + k];
+            double sign = dot < 0 ? -1 : 1;
+            for (int k = 0; k < 4; ++k) {
+                int q = (int) Math.round(sign * Math.max(-1, Math.min(1, pose[o + k])) * SCALE);
+                quantized[(o + k) * blockSize + frames] = q;
+                previous[o + k] = q;
+            }
+        }
+        if (++frames == blockSize)
+            writeBlock();
+    }
+
+    private void writeBlock() throws IOException {
+        if (frames == 0)
+            return;
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (int f = 0; f < frames; ++f) {
+            min = Math.min(min, timestamps[f]);
+            max = Math.max(max, timestamps[f]);
+        }
+
+        // Encodes all columns first, as the header needs their lengths.
+        byte[][] columns = new byte[bones + 1][];
+        int[] rawLengths = new int[bones + 1];
+        sink.clear();
+        long last = min;
+        for (int f = 0; f < frames; ++f) {
+            sink.writeLong(timestamps[f] - last);
+            last = timestamps[f];
+        }
+        rawLengths[0] = sink.size;
+        columns[0] = pack();
+        for (int b = 0; b < bones; ++b) {
+            sink.clear();
+            for (int k = 0; k < 4; ++k) {
+                int base = (4 * b + k) * blockSize;
+                int prev = 0;
+                for (int f = 0; f < frames; ++f) {
+                    int v = quantized[base + f];
+                    sink.writeLong(v - prev);
+                    prev = v;
+                }
+            }
+            rawLengths[b + 1] = sink.size;
+            columns[b + 1] = pack();
+        }
+
+        out.writeInt(BLOCK_MAGIC);
+        out.writeInt(frames);
+        out.writeLong(min);
+        out.writeLong(max);
+        for (int c = 0; c <= bones; ++c) {
+            out.writeInt(columns[c].length);
+            out.writeInt(rawLengths[c]);
+        }
+        for (byte[] column : columns)
+            out.write(column);
+        frames = 0;
+    }
+
+    private byte[] pack() {
+        if (!deflate)
+            return Arrays.copyOf(sink.bytes, sink.size);
+        deflater.reset();
+        deflater.setInput(sink.bytes, 0, sink.size);
+        deflater.finish();
+        if (deflated.length < sink.size + 64)
+            deflated = new byte[sink.size + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == deflated.length)
+                deflated = Arrays.copyOf(deflated, deflated.length * 2);
+            length += deflater.deflate(deflated, length, deflated.length - length);
+        }
+        return Arrays.copyOf(deflated, length);
+    }
+
+    /**
+     * Writes any pending frames as a (possibly smaller) block.
+     *
+     * @throws IOException If the block could not be written.
+     */
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (deflater != null)
+                deflater.end();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.unbiquitous.unbihealth.avatar.archive;
+
+/**
+ * Zig-zag + varint (LEB128) coding of integers into and from byte arrays.
+ *
+ * @author Luciano Santos
+ */
+final class VarInts {
+    private VarInts() {
+    }
+
+    /**
+     * Growable byte array for encoding.
+     */
+    static final class Sink {
+        byte[] bytes = new byte[256];
+        int size;
+
+        void writeLong(long v) {
+            // Zig-zag maps small magnitudes (of either sign) to small unsigned values.
+            long u = (v << 1) ^ (v >> 63);
+            if (size + 10 > bytes.length)
+                bytes = java.util.Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + 10));
+            while ((u & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((u & 0x7F) | 0x80);
+                u >>>= 7;
+            }
+            bytes[size++] = (byte) u;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    /**
+     * Cursor over a byte array for decoding.
+     */
+    static final class Source {
+        final byte[] bytes;
+        int position;
+
+        Source(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long readLong() {
+            long u = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (position >= bytes.length || shift > 63)
+                    throw new IllegalStateException("Corrupt varint.");
+                b = bytes[position++];
+                u |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (u >>> 1) ^ -(u & 1);
+        }
+    }
+}
@@ -1,19 +1,26 @@
 package org.unbiquitous.unbihealth.avatar.data;
 
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.math3.complex.Quaternion;
 import org.unbiquitous.unbihealth.avatar.Bone;
+import org.unbiquitous.unbihealth.avatar.util.QuatMath;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Holds data for an Avatar's element, i.e., a bone, associated an independent movement sensor (IMU), that
  * may have child bones.
+ * <p>
+ * Equality, hashing and printing delegate to the {@link SkeletonTopology} the bone is bound to, which is compiled once
+ * for a whole skeleton (or lazily, for bones built by hand).
  *
  * @author Luciano Santos
  */
 public class AvatarBone implements Bone {
+    private static final double[] IDENTITY = {1, 0, 0, 0};
+
+    private static final ThreadLocal<double[]> SCRATCH = ThreadLocal.withInitial(() -> new double[4]);
+
     private String id;
 
     private String sensorId;
@@ -22,13 +29,32 @@ public class AvatarBone implements Bone {
 
     private AvatarBone parent;
 
-    private Quaternion rotation = Quaternion.IDENTITY;
+    /**
+     * Absolute (segment) rotation: a version, odd while the rotation is written, followed by the raw bits of (w, x, y,
+     * z) (a seqlock). The rotation relative to the parent is derived from it and from the parent's, whenever asked
+     * for, so it never goes stale when an ancestor moves.
+     * <p>
+     * Updates write in place, without allocating, and must not run concurrently (the driver applies them under its
+     * ingest lock); readers on other threads retry until they see a whole rotation.
+     */
+    private final AtomicLongArray absolute = new AtomicLongArray(5);
+
+    // Touched only by the (single) writer.
+    private final double[] pending = new double[4];
+
+    private volatile double[] alignment = IDENTITY;
+
+    private SkeletonTopology topology;
+
+    private int slot;
+
+    private AvatarBone[] slots;
 
     public AvatarBone(String id, String sensorId) {
         this(id, sensorId, null);
     }
 
-    public AvatarBone(String id, String sensorId, Set<AvatarBone> children) {
+    public AvatarBone(String id, String sensorId, Collection<AvatarBone> children) {
         if (id == null)
             throw new NullPointerException("id must not be null");
         if (sensorId == null)
@@ -36,10 +62,13 @@ public class AvatarBone implements Bone {
 
         this.id = id;
         this.sensorId = sensorId;
+        absolute.set(1, Double.doubleToRawLongBits(1));
 
         this.children = new HashMap<>();
         if (children != null)
             for (AvatarBone child : children) {
+                // The child's whole former hierarchy loses its topology, the child's own subtree included.
+                child.invalidate();
                 if (child.parent != null)
                     child.parent.children.remove(child.getId());
                 this.children.put(child.getId(), child);
@@ -62,6 +91,48 @@ public class AvatarBone implements Bone {
         return parent;
     }
 
+    /**
+     * @return This bone's slot in its {@link SkeletonTopology}.
+     * @see #getTopology()
+     */
+    public int getSlot() {
+        getTopology();
+        return slot;
+    }
+
+    /**
+     * Retrieves the compiled topology this bone is part of (compiling it, if necessary, from the root of the
+     * hierarchy, so every bone in it shares a single topology).
+     *
+     * @return The topology, in which this bone's subtree is the range from {@link #getSlot()} to
+     * {@link SkeletonTopology#getSubtreeEnd(int)}.
+     */
+    public SkeletonTopology getTopology() {
+        if (topology == null) {
+            AvatarBone root = this;
+            while (root.parent != null)
+                root = root.parent;
+            SkeletonTopology.compile(root);
+        }
+        return topology;
+    }
+
+    void bind(SkeletonTopology topology, int slot, AvatarBone[] slots) {
+        this.topology = topology;
+        this.slot = slot;
+        this.slots = slots;
+    }
+
+    private void invalidate() {
+        // Topologies are compiled from the root, so a bound hierarchy is bound as a whole.
+        if (topology == null)
+            return;
+        for (AvatarBone b : slots) {
+            b.topology = null;
+            b.slots = null;
+        }
+    }
+
     /**
      * Sets this bone's sensor id.
      *
@@ -82,27 +153,149 @@ public class AvatarBone implements Bone {
     }
 
     /**
-     * Given the bone's absolute rotation, sets its rotation relative to its parent (if root, identity parent
-     * rotation is used).
+     * @return The sensor to segment alignment, applied to every rotation given to {@link #setRotation(Quaternion)}.
+     */
+    public Quaternion getAlignment() {
+        double[] a = alignment;
+        return new Quaternion(a[0], a[1], a[2], a[3]);
+    }
+
+    /**
+     * Sets the sensor to segment alignment, i.e., the mounting offset of the sensor on the bone. The bone's absolute
+     * rotation is then the sensor's rotation multiplied by the alignment.
+     *
+     * @param alignment The alignment (normalized by this method).
+     * @throws NullPointerException     If <code>alignment<code/> is null.
+     * @throws IllegalArgumentException If <code>alignment<code/> is zero.
+     * @see Calibration
+     */
+    public void setAlignment(Quaternion alignment) {
+        if (alignment == null)
+            throw new NullPointerException("alignment");
+        double[] a = {alignment.getQ0(), alignment.getQ1(), alignment.getQ2(), alignment.getQ3()};
+        if (QuatMath.normalize(a, 0) == 0)
+            throw new IllegalArgumentException("Zero alignment.");
+        this.alignment = a;
+    }
+
+    /**
+     * Given the bone's (sensor) absolute rotation, sets its rotation relative to its parent's absolute rotation (if
+     * root, identity parent rotation is used).
+     * <p>
+     * Only the absolute rotation is stored; relative rotations are derived from the absolute rotations of the bone and
+     * its parent when read, so the pose is the same whatever order sensor data arrives in, and the children's relative
+     * rotations follow this bone's. Prefer {@link AvatarSkeleton#setRotations(double[], boolean[])} when data for many
+     * bones arrives at once.
      *
      * @param rotation The new absolute rotation.
      * @throws NullPointerException If <code>rotation<code/> is null.
      * @see #getParent()
+     * @see #setAlignment(Quaternion)
      */
     public void setRotation(Quaternion rotation) {
         if (rotation == null)
             throw new NullPointerException("rotation");
-        Quaternion parent = getParent() == null ? Quaternion.IDENTITY : getParent().getRotation();
-        this.rotation = fromTo(rotation, parent);
+        setSensorRotation(rotation.getQ0(), rotation.getQ1(), rotation.getQ2(), rotation.getQ3());
+    }
+
+    void setSensorRotation(double w, double x, double y, double z) {
+        // Segment rotation: sensor * alignment.
+        double[] r = pending;
+        r[0] = w;
+        r[1] = x;
+        r[2] = y;
+        r[3] = z;
+        QuatMath.multiply(r, 0, alignment, 0, r, 0);
+        publish(r);
+    }
+
+    /**
+     * Sets the absolute rotation directly (already aligned), as restored from a snapshot.
+     */
+    void restoreRotation(double w, double x, double y, double z) {
+        double[] r = pending;
+        r[0] = w;
+        r[1] = x;
+        r[2] = y;
+        r[3] = z;
+        publish(r);
     }
 
+    private void publish(double[] r) {
+        long version = absolute.get(0);
+        absolute.set(0, version + 1);
+        for (int c = 0; c < 4; ++c)
+            absolute.set(c + 1, Double.doubleToRawLongBits(r[c]));
+        absolute.set(0, version + 2);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Rotations are kept as primitives, so this method creates a new quaternion; prefer
+     * {@link #copyRotation(double[], int)} or {@link AvatarSkeleton#copyPose(double[])} on hot paths.
+     */
     @Override
     public Quaternion getRotation() {
-        return rotation;
+        double[] r = new double[4];
+        copyRotation(r, 0);
+        return new Quaternion(r[0], r[1], r[2], r[3]);
+    }
+
+    /**
+     * @return This bone's absolute rotation (i.e., its last sensor rotation, after alignment).
+     */
+    public Quaternion getAbsoluteRotation() {
+        double[] r = new double[4];
+        copyAbsoluteRotation(r, 0);
+        return new Quaternion(r[0], r[1], r[2], r[3]);
+    }
+
+    /**
+     * @return The number of rotations set on this bone so far (restored and inherited ones included), which tells
+     * whether the bone got new data even if its rotation stayed the same.
+     */
+    public long getUpdateCount() {
+        return absolute.get(0) >>> 1;
     }
 
-    private static Quaternion fromTo(Quaternion to, Quaternion from) {
-        return Quaternion.multiply(to, from.getInverse());
+    void copyRotation(AvatarBone from) {
+        from.copyAbsoluteRotation(pending, 0);
+        publish(pending);
+    }
+
+    /**
+     * Copies this bone's rotation relative to its parent (w, x, y, z) into an array, without allocating.
+     *
+     * @param out    The array.
+     * @param offset Where the rotation starts in the array.
+     * @see #getRotation()
+     */
+    public void copyRotation(double[] out, int offset) {
+        copyAbsoluteRotation(out, offset);
+        if (parent != null) {
+            double[] p = SCRATCH.get();
+            parent.copyAbsoluteRotation(p, 0);
+            // Relative rotation: segment * parent^-1, where the inverse of a unit quaternion is its conjugate.
+            QuatMath.multiplyConjugate(out, offset, p, 0, out, offset);
+        }
+    }
+
+    /**
+     * Copies this bone's absolute rotation (w, x, y, z) into an array.
+     */
+    void copyAbsoluteRotation(double[] out, int offset) {
+        while (true) {
+            long version = absolute.get(0);
+            for (int c = 0; c < 4; ++c)
+                out[offset + c] = Double.longBitsToDouble(absolute.get(c + 1));
+            if ((version & 1) == 0 && absolute.get(0) == version)
+                return;
+        }
+    }
+
+    void copyAlignment(AvatarBone from) {
+        this.alignment = from.alignment;
     }
 
     @Override
@@ -112,42 +305,30 @@ public class AvatarBone implements Bone {
         if (!(obj instanceof AvatarBone))
             return false;
         AvatarBone other = (AvatarBone) obj;
-        return new EqualsBuilder()
-                .append(id, other.getId())
-                .append(sensorId, other.getSensorId())
-                .append(children, other.getChildren()).isEquals();
+        if (!id.equals(other.id) || !sensorId.equals(other.sensorId))
+            return false;
+        SkeletonTopology t = getTopology(), ot = other.getTopology();
+        if (!t.subtreeEquals(slot, ot, other.slot))
+            return false;
+
+        // Same shape, so every bone in this subtree has a counterpart with the same id in the other one.
+        for (int i = slot + 1, end = t.getSubtreeEnd(slot); i < end; ++i)
+            if (!slots[i].sensorId.equals(other.slots[ot.indexOf(t.getId(i))].sensorId))
+                return false;
+        return true;
     }
 
     @Override
     public int hashCode() {
-        return new HashCodeBuilder()
-                .append(id)
-                .append(sensorId)
-                .append(children).toHashCode();
+        return getTopology().subtreeHashCode(slot);
     }
 
     @Override
     public String toString() {
-        return toString(new StringBuilder(), "").toString();
-    }
-
-    private StringBuilder toString(StringBuilder sb, String prefix) {
-        sb.append(prefix);
-        sb.append(id);
-        sb.append(":");
-        sb.append(sensorId);
-        if (!children.isEmpty()) {
-            sb.append(" {\n");
-            Iterator<AvatarBone> i = children.values().iterator();
-            do {
-                i.next().toString(sb, prefix + "  ");
-                if (i.hasNext())
-                    sb.append(",");
-                sb.append("\n");
-            } while (i.hasNext());
-            sb.append(prefix);
-            sb.append("}");
-        }
-        return sb;
+        SkeletonTopology t = getTopology();
+        String[] labels = new String[slots.length];
+        for (int i = slot, end = t.getSubtreeEnd(slot); i < end; ++i)
+            labels[i] = slots[i].sensorId;
+        return t.toString(slot, labels);
     }
 }
@@ -1,25 +1,40 @@
 package org.unbiquitous.unbihealth.avatar.data;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.math3.complex.Quaternion;
 import org.unbiquitous.unbihealth.avatar.Skeleton;
+import org.unbiquitous.unbihealth.avatar.util.QuatMath;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This is the implementation of {@link Skeleton}.
  * <p>
  * Each bone (i.e., each single element in the hierarchy) must have an associated movement sensor (IMU).
+ * <p>
+ * The hierarchy is compiled into an immutable {@link SkeletonTopology} once, at parse time, which every bone shares
+ * and delegates to for equality, hashing and printing.
  *
  * @author Luciano Santos
  */
 public class AvatarSkeleton implements Skeleton {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
     private AvatarBone root;
     private Map<String, AvatarBone> bones;
     private Map<String, AvatarBone> sensors;
+    private SkeletonTopology topology;
+    private AvatarBone[] slots;
+    private boolean[] dirty;
+    // Bumped after every change to the sensor mapping; an encoding is current only if made at the current version.
+    private final AtomicLong mappingVersion = new AtomicLong();
+    private volatile Encoding encoding;
 
     private AvatarSkeleton() {
     }
@@ -41,12 +56,24 @@ public class AvatarSkeleton implements Skeleton {
      *                                  isolated subgraphs, etc).
      */
     public static AvatarSkeleton parse(String json) throws IOException {
-        final ObjectMapper mapper = new ObjectMapper();
-
         // Parses the list of bones.
         List<BoneData> data = mapper.readValue(json, new TypeReference<List<BoneData>>() {
         });
+        return build(data);
+    }
+
+    /**
+     * Same as {@link #parse(String)}, but from already parsed bones.
+     *
+     * @param bones The bones (the list is not modified).
+     * @return The new skeleton.
+     * @throws IllegalArgumentException If the skeleton is invalid.
+     */
+    public static AvatarSkeleton of(List<BoneData> bones) {
+        return build(new ArrayList<>(bones));
+    }
 
+    private static AvatarSkeleton build(List<BoneData> data) {
         // Finds the (unique) root and recursively build the hierarchy.
         BoneData rootData = extractRoot(data);
         AvatarSkeleton s = new AvatarSkeleton();
@@ -55,9 +82,18 @@ public class AvatarSkeleton implements Skeleton {
         s.root = buildBone(rootData, data, s);
         if (!data.isEmpty())
             throw new IllegalArgumentException("There are nodes outside the root hierarchy.");
+        s.compile();
         return s;
     }
 
+    private void compile() {
+        topology = SkeletonTopology.compile(root);
+        slots = new AvatarBone[topology.size()];
+        for (int i = 0; i < slots.length; ++i)
+            slots[i] = bones.get(topology.getId(i));
+        dirty = new boolean[slots.length];
+    }
+
     private static BoneData extractRoot(List<BoneData> data) {
         BoneData root = null;
         ListIterator<BoneData> i = data.listIterator();
@@ -97,7 +133,7 @@ public class AvatarSkeleton implements Skeleton {
         return b;
     }
 
-    private static Set<AvatarBone> buildChildren(String id, List<BoneData> data, AvatarSkeleton skeleton) {
+    private static List<AvatarBone> buildChildren(String id, List<BoneData> data, AvatarSkeleton skeleton) {
         // Extracts data for all children.
         List<BoneData> childrenData = new ArrayList<>();
         ListIterator<BoneData> i = data.listIterator();
@@ -109,8 +145,8 @@ public class AvatarSkeleton implements Skeleton {
             }
         }
 
-        // Builds them recursively.
-        Set<AvatarBone> children = new HashSet<>();
+        // Builds them recursively. Bones are not hashed here: the topology is only compiled once, from the root.
+        List<AvatarBone> children = new ArrayList<>(childrenData.size());
         for (BoneData child : childrenData) {
             AvatarBone b = buildBone(child, data, skeleton);
             children.add(b);
@@ -129,6 +165,27 @@ public class AvatarSkeleton implements Skeleton {
         return bones.get(id);
     }
 
+    /**
+     * Retrieves the compiled topology of this skeleton, in which the root has slot 0.
+     *
+     * @return The topology.
+     */
+    public SkeletonTopology getTopology() {
+        return topology;
+    }
+
+    /**
+     * Gets a bone given its slot in this skeleton's topology.
+     *
+     * @param slot The slot.
+     * @return The bone.
+     * @throws IndexOutOfBoundsException If the slot is invalid.
+     * @see #getTopology()
+     */
+    public AvatarBone getBone(int slot) {
+        return slots[slot];
+    }
+
     /**
      * Gets a bone given its sensor id.
      *
@@ -164,11 +221,198 @@ public class AvatarSkeleton implements Skeleton {
         if ((used != null) && (used != b))
             throw new IllegalArgumentException("Sensor id already in use by bone '" + used.getId() + "'.");
         String previous = b.getSensorId();
-        b.setSensorId(sensorId);
-        sensors.put(sensorId, b);
+        if (!previous.equals(sensorId)) {
+            b.setSensorId(sensorId);
+            sensors.remove(previous);
+            sensors.put(sensorId, b);
+            mappingVersion.incrementAndGet();
+        }
         return previous;
     }
 
+    /**
+     * Updates many bones at once, given a whole frame of absolute sensor rotations.
+     * <p>
+     * Relative rotations are derived from absolute ones, so each is computed against the parent's rotation from the
+     * same frame, regardless of the order sensor data arrived. Bones absent from the frame keep their absolute
+     * rotation; their relative rotation changes only if their parent moved.
+     * <p>
+     * This method must not be called concurrently.
+     *
+     * @param rotations The sensor rotations, four components (w, x, y, z) per slot.
+     * @param present   Which slots have data in this frame, or null, if all of them have.
+     * @return The number of bones whose relative rotation changed.
+     * @throws IllegalArgumentException If the arrays are smaller than the number of bones.
+     * @see #getTopology()
+     * @see AvatarBone#setRotation(Quaternion)
+     */
+    public int setRotations(double[] rotations, boolean[] present) {
+        int n = slots.length;
+        if (rotations.length < 4 * n || (present != null && present.length < n))
+            throw new IllegalArgumentException("Frame smaller than skeleton.");
+        int changed = 0;
+        for (int i = 0; i < n; ++i) {
+            int parent = topology.getParent(i);
+            if (present == null || present[i]) {
+                int o = 4 * i;
+                slots[i].setSensorRotation(rotations[o], rotations[o + 1], rotations[o + 2], rotations[o + 3]);
+                dirty[i] = true;
+            } else {
+                // A relative rotation depends on the bone and its parent only, not on further ancestors.
+                dirty[i] = parent >= 0 && present[parent];
+            }
+            if (dirty[i])
+                ++changed;
+        }
+        return changed;
+    }
+
+    /**
+     * Copies the current pose, i.e., every bone's relative rotation, into an array indexed by slot.
+     *
+     * @param out The array to receive four components (w, x, y, z) per slot.
+     * @throws IllegalArgumentException If the array is smaller than the number of bones.
+     */
+    public void copyPose(double[] out) {
+        if (out.length < 4 * slots.length)
+            throw new IllegalArgumentException("Array smaller than skeleton.");
+        // Gathers the absolute rotations, then makes the whole frame relative in place.
+        for (int i = 0; i < slots.length; ++i)
+            slots[i].copyAbsoluteRotation(out, 4 * i);
+        QuatMath.relativeAll(out, topology.parents(), out, slots.length);
+    }
+
+    /**
+     * Tells whether a bone's relative rotation changed in the last call to {@link #setRotations(double[], boolean[])}.
+     *
+     * @param slot The slot.
+     * @return Whether the bone changed.
+     */
+    public boolean isChanged(int slot) {
+        return dirty[slot];
+    }
+
+    /**
+     * Sets the sensor to segment alignment of a bone.
+     *
+     * @param boneId    The id of the bone.
+     * @param alignment The new alignment.
+     * @throws NullPointerException     If either boneId or alignment is null.
+     * @throws IllegalArgumentException If bone is unknown.
+     * @see AvatarBone#setAlignment(Quaternion)
+     * @see Calibration
+     */
+    public void setAlignment(String boneId, Quaternion alignment) {
+        if (boneId == null)
+            throw new NullPointerException("bone id");
+        AvatarBone b = getBone(boneId);
+        if (b == null)
+            throw new IllegalArgumentException("Unknown bone id.");
+        b.setAlignment(alignment);
+    }
+
+    /**
+     * Carries over state from a skeleton this one is going to replace, matching bones by id.
+     * <p>
+     * Current absolute rotations are copied for every bone present in both skeletons; relative rotations follow from
+     * them and this skeleton's hierarchy, so re-parented bones keep their orientation. Bones whose sensor id in
+     * <code>previous</code> is one of <code>boundSensorIds</code> keep that sensor id, so live sensor bindings survive
+     * the replacement. Sensor alignments are kept for bones that end up with the same sensor. This skeleton must not be
+     * in use yet.
+     *
+     * @param previous       The skeleton being replaced.
+     * @param boundSensorIds The sensor ids that are bound to a remote sensor and must be preserved.
+     * @throws IllegalArgumentException If a bound sensor id is used by a different bone in this skeleton.
+     */
+    public void inherit(AvatarSkeleton previous, Set<String> boundSensorIds) {
+        Map<AvatarBone, String> remap = new HashMap<>();
+        for (AvatarBone b : slots) {
+            AvatarBone old = previous.getBone(b.getId());
+            if (old == null)
+                continue;
+            b.copyRotation(old);
+            if (boundSensorIds.contains(old.getSensorId()) && !old.getSensorId().equals(b.getSensorId()))
+                remap.put(b, old.getSensorId());
+        }
+        if (remap.isEmpty()) {
+            inheritAlignments(previous);
+            return;
+        }
+
+        // Releases the sensor ids of all remapped bones first, so bones may swap sensors.
+        for (AvatarBone b : remap.keySet())
+            sensors.remove(b.getSensorId());
+        for (Map.Entry<AvatarBone, String> e : remap.entrySet()) {
+            AvatarBone used = sensors.get(e.getValue());
+            if (used != null)
+                throw new IllegalArgumentException("Sensor id '" + e.getValue() + "' is bound to bone '"
+                        + e.getKey().getId() + "', but used by bone '" + used.getId() + "'.");
+            e.getKey().setSensorId(e.getValue());
+            sensors.put(e.getValue(), e.getKey());
+        }
+        mappingVersion.incrementAndGet();
+        inheritAlignments(previous);
+    }
+
+    private void inheritAlignments(AvatarSkeleton previous) {
+        for (AvatarBone b : slots) {
+            AvatarBone old = previous.getBone(b.getId());
+            if (old != null && old.getSensorId().equals(b.getSensorId()))
+                b.copyAlignment(old);
+        }
+    }
+
+    /**
+     * Lists the bones of this skeleton as {@link BoneData}, parents before children, reflecting the current sensor
+     * mapping.
+     *
+     * @return A new list, suitable to be serialized and later given to {@link #parse(String)}.
+     */
+    public List<BoneData> toBoneData() {
+        List<BoneData> data = new ArrayList<>(slots.length);
+        for (int i = 0; i < slots.length; ++i) {
+            int parent = topology.getParent(i);
+            data.add(new BoneData(topology.getId(i), slots[i].getSensorId(), parent < 0 ? null : topology.getId(parent)));
+        }
+        return data;
+    }
+
+    /**
+     * Serializes this skeleton to the same JSON format accepted by {@link #parse(String)}.
+     * <p>
+     * The encoding is cached and only recomputed after the sensor mapping changes.
+     *
+     * @return The UTF-8 encoded JSON (a copy, that the caller is free to modify).
+     * @throws JsonProcessingException If the skeleton could not be serialized.
+     * @see #toJson()
+     */
+    public byte[] serialize() throws JsonProcessingException {
+        return encoding().bytes.clone();
+    }
+
+    /**
+     * Same as {@link #serialize()}, but returns a string.
+     *
+     * @return The JSON representation of this skeleton.
+     * @throws JsonProcessingException If the skeleton could not be serialized.
+     */
+    public String toJson() throws JsonProcessingException {
+        return encoding().json;
+    }
+
+    private Encoding encoding() throws JsonProcessingException {
+        // Read before the mapping, so an encoding of a mapping that changes meanwhile is never taken as current.
+        long version = mappingVersion.get();
+        Encoding e = encoding;
+        if (e == null || e.version != version) {
+            byte[] bytes = mapper.writeValueAsBytes(toBoneData());
+            e = new Encoding(version, bytes, new String(bytes, StandardCharsets.UTF_8));
+            if (mappingVersion.get() == version)
+                encoding = e;
+        }
+        return e;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == this)
@@ -181,11 +425,23 @@ public class AvatarSkeleton implements Skeleton {
 
     @Override
     public int hashCode() {
-        return new HashCodeBuilder().append(root).toHashCode();
+        return root.hashCode();
     }
 
     @Override
     public String toString() {
         return root.toString();
     }
+
+    private static final class Encoding {
+        final long version;
+        final byte[] bytes;
+        final String json;
+
+        Encoding(long version, byte[] bytes, String json) {
+            this.version = version;
+            this.bytes = bytes;
+            this.json = json;
+        }
+    }
 }
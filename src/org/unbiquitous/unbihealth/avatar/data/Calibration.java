@@ -0,0 +1,141 @@
+package org.unbiquitous.unbihealth.avatar.data;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.apache.commons.math3.util.FastMath;
+
+import java.util.*;
+
+/**
+ * Captures raw sensor rotations while the subject holds a known pose (e.g., a T-pose) and computes, for each bone,
+ * the sensor to segment alignment that maps the captured rotation to the expected one.
+ * <p>
+ * Rotations are averaged robustly: a first (sign-aligned) mean is computed, samples further than three times the
+ * median angular distance from it are discarded and the mean is recomputed. Calibration is not a hot path, so all
+ * samples in the window are kept.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Luciano Santos
+ * @see AvatarBone#setAlignment(Quaternion)
+ */
+public class Calibration {
+    private static final double MIN_OUTLIER_DISTANCE = FastMath.toRadians(1);
+
+    private final long end;
+    private final Map<String, Quaternion> reference;
+    private final Map<String, List<double[]>> samples = new HashMap<>();
+
+    /**
+     * Creates a calibration in which every bone's expected absolute rotation is identity.
+     *
+     * @param start    The start of the capture window, in milliseconds.
+     * @param duration The duration of the capture window, in milliseconds.
+     */
+    public Calibration(long start, long duration) {
+        this(start, duration, Collections.<String, Quaternion>emptyMap());
+    }
+
+    /**
+     * @param start     The start of the capture window, in milliseconds.
+     * @param duration  The duration of the capture window, in milliseconds.
+     * @param reference The expected absolute rotation of each bone, by bone id (bones not in it expect identity).
+     */
+    public Calibration(long start, long duration, Map<String, Quaternion> reference) {
+        if (duration <= 0)
+            throw new IllegalArgumentException("Duration must be positive.");
+        this.end = start + duration;
+        this.reference = reference;
+    }
+
+    /**
+     * @param now The current time, in milliseconds.
+     * @return Whether the capture window is over.
+     */
+    public boolean isDone(long now) {
+        return now >= end;
+    }
+
+    /**
+     * Captures a raw sensor rotation for given bone.
+     *
+     * @param bone     The bone.
+     * @param rotation The raw (absolute) sensor rotation.
+     */
+    public void addSample(AvatarBone bone, Quaternion rotation) {
+        List<double[]> list = samples.get(bone.getId());
+        if (list == null)
+            samples.put(bone.getId(), list = new ArrayList<>());
+        list.add(new double[]{rotation.getQ0(), rotation.getQ1(), rotation.getQ2(), rotation.getQ3()});
+    }
+
+    /**
+     * Computes the alignments of all bones that got samples.
+     *
+     * @return The alignments, by bone id.
+     */
+    public Map<String, Quaternion> computeAlignments() {
+        Map<String, Quaternion> alignments = new HashMap<>();
+        for (Map.Entry<String, List<double[]>> e : samples.entrySet()) {
+            Quaternion mean = robustMean(e.getValue());
+            Quaternion expected = reference.containsKey(e.getKey()) ? reference.get(e.getKey()) : Quaternion.IDENTITY;
+            // sensor * alignment = expected, so alignment = sensor^-1 * expected.
+            alignments.put(e.getKey(), Quaternion.multiply(mean.getConjugate(), expected).normalize());
+        }
+        return alignments;
+    }
+
+    /**
+     * Computes and sets the alignments of all bones that got samples.
+     *
+     * @param skeleton The skeleton to be calibrated.
+     * @return The number of calibrated bones.
+     */
+    public int apply(AvatarSkeleton skeleton) {
+        int count = 0;
+        for (Map.Entry<String, Quaternion> e : computeAlignments().entrySet())
+            if (skeleton.getBone(e.getKey()) != null) {
+                skeleton.setAlignment(e.getKey(), e.getValue());
+                ++count;
+            }
+        return count;
+    }
+
+    static Quaternion robustMean(List<double[]> list) {
+        double[] mean = mean(list, null, 0);
+        double[] distances = new double[list.size()];
+        for (int i = 0; i < distances.length; ++i)
+            distances[i] = distance(mean, list.get(i));
+        double[] sorted = distances.clone();
+        Arrays.sort(sorted);
+        double threshold = FastMath.max(3 * sorted[sorted.length / 2], MIN_OUTLIER_DISTANCE);
+        mean = mean(list, distances, threshold);
+        return new Quaternion(mean[0], mean[1], mean[2], mean[3]);
+    }
+
+    private static double[] mean(List<double[]> list, double[] distances, double threshold) {
+        double[] first = list.get(0);
+        double[] sum = new double[4];
+        for (int i = 0; i < list.size(); ++i) {
+            if (distances != null && distances[i] > threshold)
+                continue;
+            double[] q = list.get(i);
+            // q and -q are the same rotation: aligns signs to the first sample before summing.
+            double sign = dot(first, q) < 0 ? -1 : 1;
+            for (int k = 0; k < 4; ++k)
+                sum[k] += sign * q[k];
+        }
+        double norm = FastMath.sqrt(dot(sum, sum));
+        for (int k = 0; k < 4; ++k)
+            sum[k] /= norm;
+        return sum;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2] + a[3] * b[3];
+    }
+
+    private static double distance(double[] unit, double[] q) {
+        double n = FastMath.sqrt(dot(q, q));
+        return 2 * FastMath.acos(FastMath.min(1, FastMath.abs(dot(unit, q)) / n));
+    }
+}
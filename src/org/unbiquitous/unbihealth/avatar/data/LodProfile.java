@@ -0,0 +1,183 @@
+package org.unbiquitous.unbihealth.avatar.data;
+
+import org.unbiquitous.unbihealth.avatar.util.QuatMath;
+
+import java.util.*;
+
+/**
+ * A reduced level of detail of a skeleton: a subset of its bones, in which every skipped bone is collapsed into its
+ * nearest kept ancestor.
+ * <p>
+ * The profile is compiled once per topology into an index mapping: each kept bone knows its kept parent and the path
+ * of slots from itself up to (but excluding) that parent. A kept bone's rotation relative to its kept parent is then
+ * the product of the relative rotations along its path, so projecting a pose is a single pass over the kept bones.
+ * <p>
+ * Instances are immutable.
+ *
+ * @author Luciano Santos
+ * @see SkeletonTopology
+ */
+public final class LodProfile {
+    private final String name;
+    private final SkeletonTopology topology;
+    private final int[] slots;
+    private final int[] parents;
+    private final int[] pathOffsets;
+    private final int[] paths;
+
+    private LodProfile(String name, SkeletonTopology topology, int[] slots, int[] parents, int[] pathOffsets,
+                       int[] paths) {
+        this.name = name;
+        this.topology = topology;
+        this.slots = slots;
+        this.parents = parents;
+        this.pathOffsets = pathOffsets;
+        this.paths = paths;
+    }
+
+    /**
+     * Compiles a profile for given topology.
+     * <p>
+     * The root is always kept. Ids that are not in the topology are ignored, so a profile may be defined for several
+     * skeletons (e.g., across retargets).
+     *
+     * @param name     The profile name.
+     * @param topology The topology.
+     * @param boneIds  The ids of the bones to keep.
+     * @return The compiled profile.
+     */
+    public static LodProfile compile(String name, SkeletonTopology topology, Collection<String> boneIds) {
+        int n = topology.size();
+        boolean[] kept = new boolean[n];
+        kept[0] = true;
+        for (String id : boneIds) {
+            int slot = id == null ? -1 : topology.indexOf(id.toLowerCase());
+            if (slot >= 0)
+                kept[slot] = true;
+        }
+
+        // Index of each kept slot in the reduced set; slots are in pre-order, so parents are indexed first.
+        int[] index = new int[n];
+        int count = 0;
+        for (int i = 0; i < n; ++i)
+            index[i] = kept[i] ? count++ : -1;
+
+        int[] slots = new int[count];
+        int[] parents = new int[count];
+        int[] pathOffsets = new int[count + 1];
+        int[] paths = new int[n];
+        int p = 0;
+        for (int i = 0, k = 0; i < n; ++i) {
+            if (!kept[i])
+                continue;
+            slots[k] = i;
+            pathOffsets[k] = p;
+            int s = i;
+            do {
+                paths[p++] = s;
+                s = topology.getParent(s);
+            } while (s >= 0 && !kept[s]);
+            parents[k] = s < 0 ? -1 : index[s];
+            ++k;
+        }
+        pathOffsets[count] = p;
+        return new LodProfile(name, topology, slots, parents, pathOffsets, Arrays.copyOf(paths, p));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The topology this profile was compiled for.
+     */
+    public SkeletonTopology getTopology() {
+        return topology;
+    }
+
+    /**
+     * @return The number of kept bones.
+     */
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * @param i The index of a kept bone.
+     * @return The bone's slot in the full topology.
+     */
+    public int getSlot(int i) {
+        return slots[i];
+    }
+
+    /**
+     * @param i The index of a kept bone.
+     * @return The bone's id.
+     */
+    public String getId(int i) {
+        return topology.getId(slots[i]);
+    }
+
+    /**
+     * @param i The index of a kept bone.
+     * @return The index of the bone's nearest kept ancestor, or -1, for the root.
+     */
+    public int getParent(int i) {
+        return parents[i];
+    }
+
+    /**
+     * Projects a full pose into this level of detail.
+     *
+     * @param pose The relative rotations of every bone, four components (w, x, y, z) per slot of the topology.
+     * @param out  The array to receive the relative rotations of the kept bones, four components per index; must not
+     *             be <code>pose</code>.
+     * @throws IllegalArgumentException If either array is too small.
+     */
+    public void project(double[] pose, double[] out) {
+        if (pose.length < 4 * topology.size() || out.length < 4 * slots.length)
+            throw new IllegalArgumentException("Array smaller than pose.");
+        for (int k = 0, o = 0; k < slots.length; ++k, o += 4) {
+            int p = pathOffsets[k], end = pathOffsets[k + 1];
+            System.arraycopy(pose, 4 * paths[p], out, o, 4);
+            // Absolute = relative * parent's absolute, so collapsed rotations compose left to right, going up.
+            while (++p < end)
+                QuatMath.multiply(out, o, pose, 4 * paths[p], out, o);
+        }
+    }
+
+    /**
+     * Projects the current pose of a skeleton.
+     *
+     * @param skeleton  The skeleton, which must have this profile's topology.
+     * @param timestamp The time of the pose.
+     * @return The reduced pose.
+     * @throws IllegalArgumentException If the skeleton has a different topology.
+     */
+    public PoseData project(AvatarSkeleton skeleton, long timestamp) {
+        if (skeleton.getTopology() != topology)
+            throw new IllegalArgumentException("Skeleton has a different topology.");
+        double[] pose = new double[4 * topology.size()];
+        skeleton.copyPose(pose);
+        double[] reduced = new double[4 * slots.length];
+        project(pose, reduced);
+        Map<String, double[]> rotations = new LinkedHashMap<>();
+        for (int k = 0; k < slots.length; ++k)
+            rotations.put(getId(k), Arrays.copyOfRange(reduced, 4 * k, 4 * k + 4));
+        return new PoseData(timestamp, rotations);
+    }
+
+    /**
+     * Describes the reduced skeleton, with the sensor ids of the kept bones.
+     *
+     * @param skeleton The skeleton, which must have this profile's topology.
+     * @return The reduced structure.
+     */
+    public List<BoneData> toBoneData(AvatarSkeleton skeleton) {
+        List<BoneData> data = new ArrayList<>(slots.length);
+        for (int k = 0; k < slots.length; ++k)
+            data.add(new BoneData(getId(k), skeleton.getBone(slots[k]).getSensorId(),
+                    parents[k] < 0 ? null : getId(parents[k])));
+        return data;
+    }
+}
@@ -0,0 +1,60 @@
+package org.unbiquitous.unbihealth.avatar.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Auxiliary class that holds (and JSON serializes) a pose: the relative rotation of each bone, at a given time.
+ *
+ * @author Luciano Santos
+ * @see AvatarSkeleton#copyPose(double[])
+ */
+public class PoseData {
+    private long timestamp;
+
+    private Map<String, double[]> rotations;
+
+    public PoseData() {
+    }
+
+    public PoseData(long timestamp, Map<String, double[]> rotations) {
+        setTimestamp(timestamp);
+        setRotations(rotations);
+    }
+
+    /**
+     * Creates a pose from a skeleton's current rotations.
+     *
+     * @param skeleton  The skeleton.
+     * @param timestamp The time of the pose.
+     * @return The new pose, with bones in slot order.
+     */
+    public static PoseData of(AvatarSkeleton skeleton, long timestamp) {
+        SkeletonTopology topology = skeleton.getTopology();
+        double[] pose = new double[4 * topology.size()];
+        skeleton.copyPose(pose);
+        Map<String, double[]> rotations = new LinkedHashMap<>(topology.size() * 2);
+        for (int i = 0; i < topology.size(); ++i)
+            rotations.put(topology.getId(i), new double[]{pose[4 * i], pose[4 * i + 1], pose[4 * i + 2], pose[4 * i + 3]});
+        return new PoseData(timestamp, rotations);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return The rotations (w, x, y, z), relative to each bone's parent, by bone id.
+     */
+    public Map<String, double[]> getRotations() {
+        return rotations;
+    }
+
+    public void setRotations(Map<String, double[]> rotations) {
+        this.rotations = rotations;
+    }
+}
@@ -0,0 +1,183 @@
+package org.unbiquitous.unbihealth.avatar.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-capacity ring buffer of the last poses of a skeleton, each with its timestamp.
+ * <p>
+ * Poses are stored in primitive arrays (four components per bone, by slot, as raw <code>double</code> bits), and
+ * neither writers nor readers lock: writers claim a frame number atomically and publish it through a per-entry version
+ * (a seqlock), and readers skip entries that are being written or were overwritten while read. Every access to an
+ * entry is volatile, so it can't be reordered around the version checks. Capacity must be greater than the number of
+ * concurrent writers.
+ *
+ * @author Luciano Santos
+ * @see AvatarSkeleton#getTopology()
+ */
+public class PoseHistory {
+    private final SkeletonTopology topology;
+    private final int capacity;
+    private final int stride;
+    private final AtomicLongArray timestamps;
+    private final AtomicLongArray poses;
+    // Entry version: 2 * frame + 1 while frame is written, 2 * frame + 2 once it's complete.
+    private final AtomicLongArray versions;
+    private final AtomicLong head = new AtomicLong();
+    private final ThreadLocal<double[]> scratch;
+
+    /**
+     * @param topology The topology of the recorded skeleton.
+     * @param capacity The number of poses kept.
+     * @throws IllegalArgumentException If capacity is not positive.
+     */
+    public PoseHistory(SkeletonTopology topology, int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive.");
+        this.topology = topology;
+        this.capacity = capacity;
+        this.stride = 4 * topology.size();
+        this.timestamps = new AtomicLongArray(capacity);
+        this.poses = new AtomicLongArray(capacity * stride);
+        this.versions = new AtomicLongArray(capacity);
+        this.scratch = ThreadLocal.withInitial(() -> new double[stride]);
+    }
+
+    public SkeletonTopology getTopology() {
+        return topology;
+    }
+
+    /**
+     * @return The maximum number of poses kept.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of poses currently kept.
+     */
+    public int size() {
+        return (int) Math.min(head.get(), capacity);
+    }
+
+    /**
+     * Records the current pose of a skeleton, overwriting the oldest one if full.
+     *
+     * @param skeleton  The skeleton, which must have this history's topology.
+     * @param timestamp The time of the pose.
+     * @throws IllegalArgumentException If the skeleton has a different topology.
+     */
+    public void record(AvatarSkeleton skeleton, long timestamp) {
+        if (skeleton.getTopology() != topology)
+            throw new IllegalArgumentException("Skeleton has a different topology.");
+        double[] pose = scratch.get();
+        skeleton.copyPose(pose);
+        long frame = head.getAndIncrement();
+        int entry = (int) (frame % capacity);
+        versions.set(entry, 2 * frame + 1);
+        timestamps.set(entry, timestamp);
+        for (int i = 0, o = entry * stride; i < stride; ++i, ++o)
+            poses.set(o, Double.doubleToRawLongBits(pose[i]));
+        versions.set(entry, 2 * frame + 2);
+    }
+
+    /**
+     * Retrieves a bone's rotations over a time range.
+     *
+     * @param boneId The id of the bone.
+     * @param from   The start of the range, inclusive.
+     * @param to     The end of the range, inclusive.
+     * @return The trajectory, in timestamp order.
+     * @throws IllegalArgumentException If the bone is unknown.
+     */
+    public Trajectory getTrajectory(String boneId, long from, long to) {
+        int slot = topology.indexOf(boneId);
+        if (slot < 0)
+            throw new IllegalArgumentException("Unknown bone '" + boneId + "'.");
+        Range range = read(from, to, 4 * slot, 4);
+        return new Trajectory(topology.getId(slot), range.timestamps, range.values);
+    }
+
+    /**
+     * Retrieves full poses over a time range.
+     *
+     * @param from The start of the range, inclusive.
+     * @param to   The end of the range, inclusive.
+     * @return The poses, in timestamp order, with each bone's relative rotation.
+     */
+    public List<PoseData> getPoses(long from, long to) {
+        Range range = read(from, to, 0, stride);
+        List<PoseData> poses = new ArrayList<>(range.timestamps.length);
+        for (int f = 0; f < range.timestamps.length; ++f) {
+            Map<String, double[]> rotations = new LinkedHashMap<>();
+            for (int i = 0; i < topology.size(); ++i) {
+                int o = f * stride + 4 * i;
+                rotations.put(topology.getId(i), Arrays.copyOfRange(range.values, o, o + 4));
+            }
+            poses.add(new PoseData(range.timestamps[f], rotations));
+        }
+        return poses;
+    }
+
+    private static final class Range {
+        long[] timestamps;
+        double[] values;
+    }
+
+    /**
+     * Copies <code>width</code> values from <code>offset</code> of every complete entry in the time range.
+     */
+    private Range read(long from, long to, int offset, int width) {
+        long end = head.get();
+        long start = Math.max(0, end - capacity);
+        int n = (int) (end - start);
+        long[] ts = new long[n];
+        double[] values = new double[n * width];
+        int count = 0;
+        for (long frame = start; frame < end; ++frame) {
+            int entry = (int) (frame % capacity);
+            long version = 2 * frame + 2;
+            if (versions.get(entry) != version)
+                continue;
+            long t = timestamps.get(entry);
+            for (int i = 0, o = entry * stride + offset; i < width; ++i, ++o)
+                values[count * width + i] = Double.longBitsToDouble(poses.get(o));
+            if (versions.get(entry) != version || t < from || t > to)
+                continue;
+            ts[count++] = t;
+        }
+        Range range = new Range();
+        range.timestamps = Arrays.copyOf(ts, count);
+        range.values = Arrays.copyOf(values, count * width);
+        sort(range, width);
+        return range;
+    }
+
+    private static void sort(Range range, int width) {
+        // Concurrent writers (or devices with different clocks) may leave entries slightly out of order. Insertion
+        // sort, since they are nearly sorted.
+        long[] ts = range.timestamps;
+        double[] values = range.values;
+        double[] tmp = new double[width];
+        for (int i = 1; i < ts.length; ++i) {
+            long t = ts[i];
+            if (ts[i - 1] <= t)
+                continue;
+            System.arraycopy(values, i * width, tmp, 0, width);
+            int j = i - 1;
+            while (j >= 0 && ts[j] > t) {
+                ts[j + 1] = ts[j];
+                System.arraycopy(values, j * width, values, (j + 1) * width, width);
+                --j;
+            }
+            ts[j + 1] = t;
+            System.arraycopy(tmp, 0, values, (j + 1) * width, width);
+        }
+    }
+}
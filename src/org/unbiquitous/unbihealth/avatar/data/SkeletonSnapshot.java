@@ -0,0 +1,269 @@
+package org.unbiquitous.unbihealth.avatar.data;
+
+import org.apache.commons.math3.complex.Quaternion;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact binary snapshot of a skeleton's runtime state: its hierarchy and sensor mapping, the sensor alignments, the
+ * last pose and the sensor bindings, so a restarted driver resumes where it stopped.
+ * <p>
+ * The snapshot also records a hash of the configured skeleton it derives from, so it can be discarded if the
+ * configuration changes. Layout (big endian, strings in modified UTF-8):
+ * <pre>
+ *   int magic, int version, long sourceHash, long timestamp, int boneCount,
+ *   per bone (pre-order): utf id, int parent, utf sensorId, double[4] alignment, double[4] absolute rotation,
+ *   int bindingCount, per binding: utf sensorId, utf device, utf instanceId (empty if null).
+ * </pre>
+ * Instances are immutable.
+ *
+ * @author Luciano Santos
+ */
+public final class SkeletonSnapshot {
+    public static final int MAGIC = 0x41565353;
+    public static final int VERSION = 1;
+
+    /**
+     * An association of a sensor id with the (remote) driver that provides its data. Device and instance are opaque
+     * to this class.
+     */
+    public static final class Binding {
+        private final String sensorId;
+        private final String device;
+        private final String instanceId;
+
+        public Binding(String sensorId, String device, String instanceId) {
+            this.sensorId = sensorId;
+            this.device = device;
+            this.instanceId = instanceId;
+        }
+
+        public String getSensorId() {
+            return sensorId;
+        }
+
+        /**
+         * @return The serialized device, or null.
+         */
+        public String getDevice() {
+            return device;
+        }
+
+        public String getInstanceId() {
+            return instanceId;
+        }
+    }
+
+    private final long sourceHash;
+    private final long timestamp;
+    private final String[] ids;
+    private final int[] parents;
+    private final String[] sensorIds;
+    private final double[] alignments;
+    private final double[] rotations;
+    private final List<Binding> bindings;
+
+    private SkeletonSnapshot(long sourceHash, long timestamp, String[] ids, int[] parents, String[] sensorIds,
+                             double[] alignments, double[] rotations, List<Binding> bindings) {
+        this.sourceHash = sourceHash;
+        this.timestamp = timestamp;
+        this.ids = ids;
+        this.parents = parents;
+        this.sensorIds = sensorIds;
+        this.alignments = alignments;
+        this.rotations = rotations;
+        this.bindings = Collections.unmodifiableList(bindings);
+    }
+
+    /**
+     * Takes a snapshot of a skeleton.
+     *
+     * @param skeleton   The skeleton.
+     * @param sourceHash The hash of the configuration the skeleton derives from (see {@link #hash(String)}).
+     * @param timestamp  The time of the current pose.
+     * @param bindings   The sensor bindings.
+     * @return The snapshot.
+     */
+    public static SkeletonSnapshot of(AvatarSkeleton skeleton, long sourceHash, long timestamp, List<Binding> bindings) {
+        SkeletonTopology topology = skeleton.getTopology();
+        int n = topology.size();
+        String[] ids = new String[n];
+        int[] parents = new int[n];
+        String[] sensorIds = new String[n];
+        double[] alignments = new double[4 * n];
+        double[] rotations = new double[4 * n];
+        for (int i = 0; i < n; ++i) {
+            AvatarBone bone = skeleton.getBone(i);
+            ids[i] = topology.getId(i);
+            parents[i] = topology.getParent(i);
+            sensorIds[i] = bone.getSensorId();
+            put(alignments, i, bone.getAlignment());
+            put(rotations, i, bone.getAbsoluteRotation());
+        }
+        return new SkeletonSnapshot(sourceHash, timestamp, ids, parents, sensorIds, alignments, rotations,
+                new ArrayList<>(bindings));
+    }
+
+    private static void put(double[] out, int i, Quaternion q) {
+        out[4 * i] = q.getQ0();
+        out[4 * i + 1] = q.getQ1();
+        out[4 * i + 2] = q.getQ2();
+        out[4 * i + 3] = q.getQ3();
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a configuration string.
+     *
+     * @param source The configuration.
+     * @return The hash.
+     */
+    public static long hash(String source) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : source.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    public long getSourceHash() {
+        return sourceHash;
+    }
+
+    /**
+     * @return The time of the saved pose.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public List<Binding> getBindings() {
+        return bindings;
+    }
+
+    /**
+     * Rebuilds the skeleton, with its sensor mapping, alignments and pose.
+     *
+     * @return The new skeleton.
+     * @throws IllegalArgumentException If the saved hierarchy is invalid.
+     */
+    public AvatarSkeleton restore() {
+        List<BoneData> data = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; ++i)
+            data.add(new BoneData(ids[i], sensorIds[i], parents[i] < 0 ? null : ids[parents[i]]));
+        AvatarSkeleton skeleton = AvatarSkeleton.of(data);
+
+        // The new layout may differ, so rotations are matched by id.
+        SkeletonTopology topology = skeleton.getTopology();
+        int[] saved = new int[ids.length];
+        for (int i = 0; i < ids.length; ++i)
+            saved[topology.indexOf(ids[i])] = i;
+        for (int slot = 0; slot < topology.size(); ++slot) {
+            int i = saved[slot];
+            AvatarBone bone = skeleton.getBone(slot);
+            bone.setAlignment(new Quaternion(alignments[4 * i], alignments[4 * i + 1], alignments[4 * i + 2],
+                    alignments[4 * i + 3]));
+            bone.restoreRotation(rotations[4 * i], rotations[4 * i + 1], rotations[4 * i + 2], rotations[4 * i + 3]);
+        }
+        return skeleton;
+    }
+
+    /**
+     * Writes the snapshot, replacing the file atomically (through a temporary file in the same directory, synced
+     * before the move), so a crash never leaves a partial snapshot behind.
+     *
+     * @param file The file.
+     * @throws IOException If the file could not be written.
+     */
+    public void write(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile("snapshot", ".tmp", dir);
+        try {
+            FileOutputStream stream = new FileOutputStream(tmp);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(sourceHash);
+                out.writeLong(timestamp);
+                out.writeInt(ids.length);
+                for (int i = 0; i < ids.length; ++i) {
+                    out.writeUTF(ids[i]);
+                    out.writeInt(parents[i]);
+                    out.writeUTF(sensorIds[i]);
+                    for (int c = 0; c < 4; ++c)
+                        out.writeDouble(alignments[4 * i + c]);
+                    for (int c = 0; c < 4; ++c)
+                        out.writeDouble(rotations[4 * i + c]);
+                }
+                out.writeInt(bindings.size());
+                for (Binding b : bindings) {
+                    out.writeUTF(b.sensorId);
+                    out.writeUTF(b.device == null ? "" : b.device);
+                    out.writeUTF(b.instanceId == null ? "" : b.instanceId);
+                }
+                // On disk before it replaces the old snapshot; otherwise a crash may leave an empty file behind.
+                out.flush();
+                stream.getFD().sync();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Reads a snapshot.
+     *
+     * @param file The file.
+     * @return The snapshot.
+     * @throws IOException If the file could not be read or is not a valid snapshot.
+     */
+    public static SkeletonSnapshot read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a skeleton snapshot.");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshot version " + version + ".");
+            long sourceHash = in.readLong();
+            long timestamp = in.readLong();
+            int n = in.readInt();
+            if (n <= 0)
+                throw new IOException("Invalid bone count.");
+            String[] ids = new String[n];
+            int[] parents = new int[n];
+            String[] sensorIds = new String[n];
+            double[] alignments = new double[4 * n];
+            double[] rotations = new double[4 * n];
+            for (int i = 0; i < n; ++i) {
+                ids[i] = in.readUTF();
+                parents[i] = in.readInt();
+                if (parents[i] < -1 || parents[i] >= i)
+                    throw new IOException("Invalid parent for bone '" + ids[i] + "'.");
+                sensorIds[i] = in.readUTF();
+                for (int c = 0; c < 4; ++c)
+                    alignments[4 * i + c] = in.readDouble();
+                for (int c = 0; c < 4; ++c)
+                    rotations[4 * i + c] = in.readDouble();
+            }
+            int count = in.readInt();
+            List<Binding> bindings = new ArrayList<>(Math.max(0, count));
+            for (int i = 0; i < count; ++i) {
+                String sensorId = in.readUTF();
+                String device = in.readUTF();
+                String instanceId = in.readUTF();
+                bindings.add(new Binding(sensorId, device.isEmpty() ? null : device,
+                        instanceId.isEmpty() ? null : instanceId));
+            }
+            return new SkeletonSnapshot(sourceHash, timestamp, ids, parents, sensorIds, alignments, rotations,
+                    bindings);
+        }
+    }
+}
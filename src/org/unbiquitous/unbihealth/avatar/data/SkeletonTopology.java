@@ -0,0 +1,293 @@
+package org.unbiquitous.unbihealth.avatar.data;
+
+import java.util.*;
+
+/**
+ * Immutable, compiled view of a bone hierarchy.
+ * <p>
+ * Bones are laid out in pre-order (parents always come before their children, and the root is at slot 0), so each
+ * subtree occupies a contiguous range of slots. Ids are interned and the hash of every subtree is computed once, at
+ * compile time, so hashing and comparing hierarchies does not require walking them.
+ *
+ * @author Luciano Santos
+ * @see AvatarSkeleton#getTopology()
+ */
+public final class SkeletonTopology {
+    private final String[] ids;
+    private final int[] parents;
+    private final int[] subtreeEnds;
+    private final int[] childOffsets;
+    private final int[] children;
+    private final int[] hashes;
+    private final Map<String, Integer> index;
+
+    /**
+     * Creates a topology from its pre-order layout.
+     *
+     * @param ids     The bone ids, by slot.
+     * @param parents The parent slot of each slot, or -1 for the root (which must be slot 0).
+     * @throws IllegalArgumentException If the layout is not a valid pre-order tree.
+     */
+    SkeletonTopology(String[] ids, int[] parents) {
+        int n = ids.length;
+        if (n == 0 || parents.length != n || parents[0] != -1)
+            throw new IllegalArgumentException("Invalid topology layout.");
+
+        this.ids = new String[n];
+        this.parents = parents.clone();
+        this.index = new HashMap<>(n * 2);
+        int[] childCounts = new int[n];
+        for (int i = 0; i < n; ++i) {
+            if (i > 0 && (parents[i] < 0 || parents[i] >= i))
+                throw new IllegalArgumentException("Invalid topology layout.");
+            this.ids[i] = ids[i].intern();
+            if (index.put(this.ids[i], i) != null)
+                throw new IllegalArgumentException("Duplicate id '" + ids[i] + "'.");
+            if (i > 0)
+                ++childCounts[parents[i]];
+        }
+
+        // Subtree ranges: a subtree ends where the next slot whose parent is outside of it begins.
+        this.subtreeEnds = new int[n];
+        for (int i = n - 1; i >= 0; --i) {
+            int end = i + 1;
+            while (end < n && isAncestor(i, end))
+                end = subtreeEnds[end];
+            subtreeEnds[i] = end;
+        }
+
+        // Children, sorted by id inside each range, so two topologies may be compared regardless of layout.
+        this.childOffsets = new int[n + 1];
+        for (int i = 0; i < n; ++i)
+            childOffsets[i + 1] = childOffsets[i] + childCounts[i];
+        this.children = new int[n - 1];
+        int[] fill = Arrays.copyOf(childOffsets, n);
+        for (int i = 1; i < n; ++i)
+            children[fill[parents[i]]++] = i;
+        for (int i = 0; i < n; ++i)
+            sortById(childOffsets[i], childOffsets[i + 1]);
+
+        // Children have greater slots than their parents, so hashes can be computed backwards in one pass.
+        this.hashes = new int[n];
+        for (int i = n - 1; i >= 0; --i) {
+            int h = this.ids[i].hashCode() * 31;
+            for (int c = childOffsets[i]; c < childOffsets[i + 1]; ++c)
+                h += mix(hashes[children[c]]);
+            hashes[i] = h;
+        }
+    }
+
+    /**
+     * Compiles the hierarchy under given bone, binding every bone in it to the new topology.
+     *
+     * @param root The root of the hierarchy.
+     * @return The new topology, in which <code>root</code> has slot 0.
+     */
+    static SkeletonTopology compile(AvatarBone root) {
+        List<AvatarBone> bones = new ArrayList<>();
+        List<Integer> parents = new ArrayList<>();
+        layout(root, -1, bones, parents);
+
+        int n = bones.size();
+        String[] ids = new String[n];
+        int[] parentSlots = new int[n];
+        for (int i = 0; i < n; ++i) {
+            ids[i] = bones.get(i).getId();
+            parentSlots[i] = parents.get(i);
+        }
+        SkeletonTopology topology = new SkeletonTopology(ids, parentSlots);
+        AvatarBone[] slots = bones.toArray(new AvatarBone[n]);
+        for (int i = 0; i < n; ++i)
+            slots[i].bind(topology, i, slots);
+        return topology;
+    }
+
+    private static void layout(AvatarBone bone, int parent, List<AvatarBone> bones, List<Integer> parents) {
+        int slot = bones.size();
+        bones.add(bone);
+        parents.add(parent);
+        for (AvatarBone child : bone.getChildren().values())
+            layout(child, slot, bones, parents);
+    }
+
+    private boolean isAncestor(int ancestor, int slot) {
+        for (int p = parents[slot]; p >= ancestor; p = parents[p])
+            if (p == ancestor)
+                return true;
+        return false;
+    }
+
+    private void sortById(int from, int to) {
+        // Insertion sort: ranges are tiny (a handful of children per bone).
+        for (int i = from + 1; i < to; ++i) {
+            int c = children[i];
+            int j = i - 1;
+            while (j >= from && ids[children[j]].compareTo(ids[c]) > 0) {
+                children[j + 1] = children[j];
+                --j;
+            }
+            children[j + 1] = c;
+        }
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return The number of bones.
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @param slot The slot.
+     * @return The (interned) id of the bone at given slot.
+     */
+    public String getId(int slot) {
+        return ids[slot];
+    }
+
+    /**
+     * @param id The bone id.
+     * @return The slot of the bone with given id, or -1, if there's no such bone.
+     */
+    public int indexOf(String id) {
+        Integer slot = index.get(id);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * @param slot The slot.
+     * @return The slot of the parent of given slot, or -1, if it's the root.
+     */
+    public int getParent(int slot) {
+        return parents[slot];
+    }
+
+    /**
+     * @return The parent of every slot, shared (not to be modified), for batch operations.
+     */
+    int[] parents() {
+        return parents;
+    }
+
+    /**
+     * @param slot The slot.
+     * @return The number of children of the bone at given slot.
+     */
+    public int getChildCount(int slot) {
+        return childOffsets[slot + 1] - childOffsets[slot];
+    }
+
+    /**
+     * @param slot The slot.
+     * @param i    The index of the child, from 0 to {@link #getChildCount(int)} (exclusive), in id order.
+     * @return The slot of the child.
+     */
+    public int getChild(int slot, int i) {
+        if (i < 0 || i >= getChildCount(slot))
+            throw new IndexOutOfBoundsException("child " + i);
+        return children[childOffsets[slot] + i];
+    }
+
+    /**
+     * The subtree of a bone occupies the slots from its own up to this value (exclusive).
+     *
+     * @param slot The slot.
+     * @return The end of the subtree range.
+     */
+    public int getSubtreeEnd(int slot) {
+        return subtreeEnds[slot];
+    }
+
+    /**
+     * @param slot The slot.
+     * @return The precomputed hash of the subtree at given slot, independent of the children order.
+     */
+    public int subtreeHashCode(int slot) {
+        return hashes[slot];
+    }
+
+    /**
+     * Checks whether the subtree at given slot has the same ids and shape of a subtree from another topology,
+     * regardless of children order.
+     *
+     * @param slot      The slot in this topology.
+     * @param other     The other topology.
+     * @param otherSlot The slot in the other topology.
+     * @return Whether both subtrees are structurally equal.
+     */
+    public boolean subtreeEquals(int slot, SkeletonTopology other, int otherSlot) {
+        if (other == this && slot == otherSlot)
+            return true;
+        if (hashes[slot] != other.hashes[otherSlot]
+                || subtreeEnds[slot] - slot != other.subtreeEnds[otherSlot] - otherSlot
+                || !ids[slot].equals(other.ids[otherSlot]))
+            return false;
+        int count = getChildCount(slot);
+        if (count != other.getChildCount(otherSlot))
+            return false;
+        int offset = childOffsets[slot], otherOffset = other.childOffsets[otherSlot];
+        for (int i = 0; i < count; ++i)
+            if (!subtreeEquals(children[offset + i], other, other.children[otherOffset + i]))
+                return false;
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this)
+            return true;
+        if (!(obj instanceof SkeletonTopology))
+            return false;
+        return subtreeEquals(0, (SkeletonTopology) obj, 0);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashes[0];
+    }
+
+    @Override
+    public String toString() {
+        return toString(0, null);
+    }
+
+    /**
+     * Pretty prints a subtree, in layout order.
+     *
+     * @param slot   The slot of the subtree root.
+     * @param labels Optional labels, by slot, appended to each id (after a colon), or null.
+     * @return The representation of the subtree.
+     */
+    public String toString(int slot, String[] labels) {
+        return append(new StringBuilder(), slot, labels, "").toString();
+    }
+
+    private StringBuilder append(StringBuilder sb, int slot, String[] labels, String prefix) {
+        sb.append(prefix);
+        sb.append(ids[slot]);
+        if (labels != null) {
+            sb.append(":");
+            sb.append(labels[slot]);
+        }
+        int end = subtreeEnds[slot];
+        if (slot + 1 < end) {
+            sb.append(" {\n");
+            int child = slot + 1;
+            do {
+                append(sb, child, labels, prefix + "  ");
+                child = subtreeEnds[child];
+                if (child < end)
+                    sb.append(",");
+                sb.append("\n");
+            } while (child < end);
+            sb.append(prefix);
+            sb.append("}");
+        }
+        return sb;
+    }
+}
@@ -0,0 +1,66 @@
+package org.unbiquitous.unbihealth.avatar.data;
+
+import org.apache.commons.math3.complex.Quaternion;
+
+/**
+ * A bone's timestamped rotations over a time range, held in primitive arrays.
+ *
+ * @author Luciano Santos
+ */
+public class Trajectory {
+    private final String boneId;
+    private final long[] timestamps;
+    private final double[] rotations;
+
+    /**
+     * @param boneId     The id of the bone.
+     * @param timestamps The timestamps, in ascending order.
+     * @param rotations  The rotations, four components (w, x, y, z) per timestamp.
+     * @throws IllegalArgumentException If array sizes do not match.
+     */
+    public Trajectory(String boneId, long[] timestamps, double[] rotations) {
+        if (rotations.length != 4 * timestamps.length)
+            throw new IllegalArgumentException("There must be four components per timestamp.");
+        this.boneId = boneId;
+        this.timestamps = timestamps;
+        this.rotations = rotations;
+    }
+
+    public String getBoneId() {
+        return boneId;
+    }
+
+    /**
+     * @return The number of samples.
+     */
+    public int size() {
+        return timestamps.length;
+    }
+
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * @return The rotations, four components (w, x, y, z) per sample.
+     */
+    public double[] getRotations() {
+        return rotations;
+    }
+
+    /**
+     * @param i The sample index.
+     * @return The timestamp of the sample.
+     */
+    public long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    /**
+     * @param i The sample index.
+     * @return The rotation of the sample.
+     */
+    public Quaternion getRotation(int i) {
+        return new Quaternion(rotations[4 * i], rotations[4 * i + 1], rotations[4 * i + 2], rotations[4 * i + 3]);
+    }
+}
@@ -0,0 +1,217 @@
+package org.unbiquitous.unbihealth.avatar.export;
+
+import org.unbiquitous.unbihealth.avatar.data.AvatarSkeleton;
+import org.unbiquitous.unbihealth.avatar.data.SkeletonTopology;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Publishes the current pose of a skeleton into a memory-mapped file, so co-located processes (e.g., renderers) can
+ * poll the latest frame with no copies through the network stack and no serialization.
+ * <p>
+ * All values are little endian. The file has three regions:
+ * <pre>
+ * Header (64 bytes)
+ *   0  int    magic ({@link #MAGIC}, "AVPS")
+ *   4  int    version ({@link #VERSION})
+ *   8  int    bone count (n)
+ *   12 int    frame offset (from the start of the file, multiple of 8)
+ *   16 long   layout generation (incremented whenever the bone table changes)
+ *   24 long   sequence (seqlock: odd while a frame or the layout is being written)
+ *   32 long   frame number (0 if there's no frame in the current layout yet)
+ *   40 long   frame timestamp (milliseconds)
+ *   48 long   frame checksum (see {@link #mix(long, long)})
+ *   56 ...    reserved
+ * Bone table (at offset 64, written once per layout), for each slot
+ *   int    parent slot (-1 for the root)
+ *   short  id length (bytes)
+ *   byte[] id (UTF-8)
+ * Frame (at frame offset), for each slot
+ *   double w, x, y, z (rotation relative to the parent)
+ * </pre>
+ * Slots are in pre-order (see {@link SkeletonTopology}). To read a consistent frame, a reader loads the sequence; if
+ * it's odd, retries; otherwise reads the frame (and, if the generation changed, the layout) and loads the sequence
+ * again, retrying if it changed. See {@link PoseReader}.
+ * <p>
+ * Java 8 has no fence for plain accesses to mapped memory, so the sequence alone can't keep a reader from seeing a
+ * frame reordered around it. Each frame therefore also carries a checksum, mixing the generation, the bone table (as
+ * raw bytes, from offset 64 to the frame offset), the bone count, the frame offset, the frame number, the timestamp
+ * and the raw bits of every component, in that order; readers retry when it doesn't match what they read.
+ * <p>
+ * The file is never truncated, since readers may still have it mapped: a new exporter over an existing file carries on
+ * its sequence and generation, so readers see its first layout as a new one. The file only grows.
+ * <p>
+ * There must be a single writer per file. Methods are synchronized, so concurrent callers are serialized.
+ *
+ * @author Luciano Santos
+ */
+public class PoseExporter implements Closeable {
+    public static final int MAGIC = 0x53505641;
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 64;
+
+    static final int BONE_COUNT_OFFSET = 8;
+    static final int FRAME_OFFSET_OFFSET = 12;
+    static final int GENERATION_OFFSET = 16;
+    static final int SEQUENCE_OFFSET = 24;
+    static final int FRAME_NUMBER_OFFSET = 32;
+    static final int TIMESTAMP_OFFSET = 40;
+    static final int CHECKSUM_OFFSET = 48;
+
+    private final RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private SkeletonTopology topology;
+    private double[] pose = new double[0];
+    private int frameOffset;
+    private long sequence;
+    private long generation;
+    private long frameNumber;
+    private long tableHash;
+
+    /**
+     * Creates the file, or takes over an existing one (without truncating it).
+     *
+     * @param path The file to publish to.
+     * @throws IOException If the file could not be created.
+     */
+    public PoseExporter(File path) throws IOException {
+        this.file = new RandomAccessFile(path, "rw");
+        long size = file.length();
+        if (size >= HEADER_SIZE) {
+            map(size);
+            if (buffer.getInt(0) == MAGIC) {
+                // Even, so the first write makes it odd, even if the previous writer died in the middle of one.
+                sequence = (buffer.getLong(SEQUENCE_OFFSET) + 1) & ~1L;
+                generation = buffer.getLong(GENERATION_OFFSET);
+            }
+        }
+    }
+
+    /**
+     * Publishes the current pose of given skeleton as a new frame, rewriting the bone table first if the skeleton's
+     * topology is not the one from the previous frame.
+     *
+     * @param skeleton  The skeleton.
+     * @param timestamp The frame timestamp.
+     * @throws IOException If the file could not be resized.
+     */
+    public synchronized void publish(AvatarSkeleton skeleton, long timestamp) throws IOException {
+        if (skeleton.getTopology() != topology)
+            layout(skeleton.getTopology());
+        skeleton.copyPose(pose);
+
+        begin();
+        long checksum = mix(mix(tableHash, ++frameNumber), timestamp);
+        for (int i = 0, o = frameOffset; i < pose.length; ++i, o += 8) {
+            long bits = Double.doubleToRawLongBits(pose[i]);
+            buffer.putLong(o, bits);
+            checksum = mix(checksum, bits);
+        }
+        buffer.putLong(FRAME_NUMBER_OFFSET, frameNumber);
+        buffer.putLong(TIMESTAMP_OFFSET, timestamp);
+        buffer.putLong(CHECKSUM_OFFSET, checksum);
+        end();
+    }
+
+    private void layout(SkeletonTopology next) throws IOException {
+        byte[][] ids = new byte[next.size()][];
+        int tableSize = 0;
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = next.getId(i).getBytes(StandardCharsets.UTF_8);
+            tableSize += 6 + ids[i].length;
+        }
+        int offset = (HEADER_SIZE + tableSize + 7) & ~7;
+        long size = offset + 32L * ids.length;
+
+        // Marks the file as being written before it's resized, so readers retry until the new layout is complete.
+        if (buffer != null)
+            begin();
+        if (buffer == null || buffer.capacity() < size) {
+            file.setLength(size);
+            map(size);
+            if (sequence % 2 == 0)
+                begin();
+        }
+
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(BONE_COUNT_OFFSET, ids.length);
+        buffer.putInt(FRAME_OFFSET_OFFSET, offset);
+        buffer.putLong(GENERATION_OFFSET, ++generation);
+        int o = HEADER_SIZE;
+        for (int i = 0; i < ids.length; ++i) {
+            buffer.putInt(o, next.getParent(i));
+            buffer.putShort(o + 4, (short) ids[i].length);
+            o += 6;
+            for (byte b : ids[i])
+                buffer.put(o++, b);
+        }
+        tableHash = mix(mix(hashTable(buffer, generation, offset), ids.length), offset);
+        // No frame of this layout yet (the previous one may be from a previous writer, or of a different size).
+        buffer.putLong(FRAME_NUMBER_OFFSET, 0);
+        buffer.putLong(CHECKSUM_OFFSET, 0);
+        end();
+
+        topology = next;
+        frameOffset = offset;
+        pose = new double[4 * ids.length];
+    }
+
+    private void map(long size) throws IOException {
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void begin() {
+        buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+    }
+
+    private void end() {
+        buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+    }
+
+    /**
+     * Mixes a value into a checksum (a multiply-xorshift step, so every bit of the value affects the result).
+     *
+     * @param checksum The checksum so far.
+     * @param value    The value.
+     * @return The new checksum.
+     */
+    static long mix(long checksum, long value) {
+        long h = (checksum ^ value) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * @return The checksum of the bone table, i.e., of the bytes from the end of the header to the frame offset,
+     * starting from the generation.
+     */
+    static long hashTable(ByteBuffer buffer, long generation, int frameOffset) {
+        long checksum = generation;
+        for (int o = HEADER_SIZE; o < frameOffset; ++o)
+            checksum = mix(checksum, buffer.get(o));
+        return checksum;
+    }
+
+    /**
+     * @return The number of frames published so far.
+     */
+    public synchronized long getFrameNumber() {
+        return frameNumber;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (buffer != null)
+            buffer.force();
+        file.close();
+    }
+}
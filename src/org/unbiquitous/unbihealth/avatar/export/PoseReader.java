@@ -0,0 +1,186 @@
+package org.unbiquitous.unbihealth.avatar.export;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.unbiquitous.unbihealth.avatar.export.PoseExporter.*;
+
+/**
+ * Reads frames published by a {@link PoseExporter}, following its seqlock protocol.
+ * <p>
+ * This is the reference reader for the file layout (other languages should mirror it), including the checksum that
+ * guards against reads reordered around the sequence. Instances are not thread safe.
+ *
+ * @author Luciano Santos
+ */
+public class PoseReader implements Closeable {
+    private static final int MAX_ATTEMPTS = 1000;
+
+    private final RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private long generation;
+    private String[] ids = new String[0];
+    private int[] parents = new int[0];
+    private long tableHash;
+    private long frameNumber;
+    private long timestamp;
+
+    /**
+     * @param path The file written by the exporter.
+     * @throws IOException If the file could not be opened.
+     */
+    public PoseReader(File path) throws IOException {
+        this.file = new RandomAccessFile(path, "r");
+    }
+
+    /**
+     * Reads the latest frame, if it's newer than the last one read.
+     *
+     * @param out The array to receive four components (w, x, y, z) per slot.
+     * @return The frame number, or 0, if there's no new frame (or the writer is stuck in the middle of a write).
+     * @throws IOException              If the file could not be mapped, or is not a pose file of this version.
+     * @throws IllegalArgumentException If the array is smaller than the number of bones.
+     */
+    public long poll(double[] out) throws IOException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt) {
+            if (!map())
+                return 0;
+            long before = buffer.getLong(SEQUENCE_OFFSET);
+            if (before == 0 || (before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+
+            int magic = buffer.getInt(0);
+            int version = buffer.getInt(4);
+            long gen = buffer.getLong(GENERATION_OFFSET);
+            int count = buffer.getInt(BONE_COUNT_OFFSET);
+            int offset = buffer.getInt(FRAME_OFFSET_OFFSET);
+            long frame = buffer.getLong(FRAME_NUMBER_OFFSET);
+            long time = buffer.getLong(TIMESTAMP_OFFSET);
+            long checksum = buffer.getLong(CHECKSUM_OFFSET);
+            if (magic != MAGIC || version != VERSION) {
+                if (buffer.getLong(SEQUENCE_OFFSET) == before)
+                    throw new IOException("Not a pose file of version " + VERSION + ".");
+                continue;
+            }
+            if (count < 0 || offset < HEADER_SIZE || offset + 32L * count > buffer.capacity()) {
+                // Torn read, or the file grew: remaps and retries.
+                buffer = null;
+                continue;
+            }
+            if (frame == 0 || (gen == generation && frame == frameNumber))
+                return 0;
+
+            String[] nextIds = ids;
+            int[] nextParents = parents;
+            long nextTableHash = tableHash;
+            if (gen != generation) {
+                if ((nextIds = readTable(count, offset)) == null)
+                    continue;
+                nextParents = readParents(count);
+                nextTableHash = mix(mix(hashTable(buffer, gen, offset), count), offset);
+            }
+            if (out.length < 4 * count)
+                throw new IllegalArgumentException("Array smaller than skeleton.");
+            long expected = mix(mix(nextTableHash, frame), time);
+            for (int i = 0, o = offset; i < 4 * count; ++i, o += 8) {
+                long bits = buffer.getLong(o);
+                out[i] = Double.longBitsToDouble(bits);
+                expected = mix(expected, bits);
+            }
+
+            if (expected != checksum || buffer.getLong(SEQUENCE_OFFSET) != before)
+                continue;
+            generation = gen;
+            ids = nextIds;
+            parents = nextParents;
+            tableHash = nextTableHash;
+            frameNumber = frame;
+            timestamp = time;
+            return frame;
+        }
+        return 0;
+    }
+
+    private boolean map() throws IOException {
+        if (buffer != null)
+            return true;
+        long size = file.length();
+        if (size < HEADER_SIZE)
+            return false;
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return true;
+    }
+
+    private String[] readTable(int count, int limit) {
+        String[] result = new String[count];
+        int o = HEADER_SIZE;
+        for (int i = 0; i < count; ++i) {
+            if (o + 6 > limit)
+                return null;
+            int length = buffer.getShort(o + 4) & 0xFFFF;
+            o += 6;
+            if (o + length > limit)
+                return null;
+            byte[] bytes = new byte[length];
+            for (int k = 0; k < length; ++k)
+                bytes[k] = buffer.get(o + k);
+            result[i] = new String(bytes, StandardCharsets.UTF_8);
+            o += length;
+        }
+        return result;
+    }
+
+    private int[] readParents(int count) {
+        int[] result = new int[count];
+        int o = HEADER_SIZE;
+        for (int i = 0; i < count; ++i) {
+            result[i] = buffer.getInt(o);
+            o += 6 + (buffer.getShort(o + 4) & 0xFFFF);
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of bones in the last frame read.
+     */
+    public int getBoneCount() {
+        return ids.length;
+    }
+
+    /**
+     * @param slot The slot.
+     * @return The id of the bone at given slot, in the last frame read.
+     */
+    public String getId(int slot) {
+        return ids[slot];
+    }
+
+    /**
+     * @param slot The slot.
+     * @return The parent slot of given slot (-1 for the root), in the last frame read.
+     */
+    public int getParent(int slot) {
+        return parents[slot];
+    }
+
+    /**
+     * @return The timestamp of the last frame read.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,83 @@
+package org.unbiquitous.unbihealth.avatar.ingest;
+
+/**
+ * Estimates the offset between a remote device's clock and the local clock, so samples from different devices can be
+ * placed on a common timeline.
+ * <p>
+ * Each sample gives <code>arrival - sensorTime = offset + delay</code>, where the delay is never negative. The
+ * smallest observed difference is therefore the best estimate of the offset (minimum delay filter). To follow clock
+ * drift, and to recover from a single unusually fast sample, the estimate ages by <code>driftRate</code> milliseconds
+ * per millisecond of local time, until a new minimum pulls it back.
+ *
+ * @author Luciano Santos
+ */
+public class ClockOffsetEstimator {
+    /**
+     * Default aging rate: 100 ppm, more than typical crystal drift.
+     */
+    public static final double DEFAULT_DRIFT_RATE = 1e-4;
+
+    private final double driftRate;
+    private double offset;
+    private long lastArrival;
+    private long count;
+
+    public ClockOffsetEstimator() {
+        this(DEFAULT_DRIFT_RATE);
+    }
+
+    /**
+     * @param driftRate How fast the estimate ages, in milliseconds per millisecond.
+     * @throws IllegalArgumentException If the rate is negative.
+     */
+    public ClockOffsetEstimator(double driftRate) {
+        if (driftRate < 0)
+            throw new IllegalArgumentException("Drift rate must not be negative.");
+        this.driftRate = driftRate;
+    }
+
+    /**
+     * Feeds a sample.
+     *
+     * @param sensorTime  The sample's timestamp, in the device's clock.
+     * @param arrivalTime The local time the sample arrived.
+     * @return The updated offset.
+     */
+    public synchronized long update(long sensorTime, long arrivalTime) {
+        double sample = arrivalTime - sensorTime;
+        if (count == 0)
+            offset = sample;
+        else {
+            if (arrivalTime > lastArrival)
+                offset += (arrivalTime - lastArrival) * driftRate;
+            if (sample < offset)
+                offset = sample;
+        }
+        if (arrivalTime > lastArrival)
+            lastArrival = arrivalTime;
+        ++count;
+        return Math.round(offset);
+    }
+
+    /**
+     * @return The estimated offset (local - remote), in milliseconds, or 0, if no sample was fed.
+     */
+    public synchronized long getOffset() {
+        return Math.round(offset);
+    }
+
+    /**
+     * @param sensorTime A timestamp in the device's clock.
+     * @return The same instant in the local clock.
+     */
+    public long toLocal(long sensorTime) {
+        return sensorTime + getOffset();
+    }
+
+    /**
+     * @return The number of samples fed.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+}
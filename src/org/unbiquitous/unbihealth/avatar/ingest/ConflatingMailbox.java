@@ -0,0 +1,140 @@
+package org.unbiquitous.unbihealth.avatar.ingest;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latest-value mailbox with one slot per key (e.g., per bone).
+ * <p>
+ * Writers never block: a new value overwrites the pending one for its slot, which is counted as conflated. A single
+ * drain task, scheduled on demand in the given executor, delivers only the newest value of each slot. So, under
+ * overload, stale samples are dropped instead of queued, and latency stays bounded by one drain pass.
+ * <p>
+ * The executor must run tasks one at a time (e.g., a single thread executor), so values are delivered by a single
+ * consumer.
+ *
+ * @param <T> The type of values.
+ * @author Luciano Santos
+ */
+public class ConflatingMailbox<T> {
+    /**
+     * Receives drained values.
+     *
+     * @param <T> The type of values.
+     */
+    public interface Sink<T> {
+        /**
+         * @param slot  The slot.
+         * @param value The newest value of the slot.
+         */
+        void accept(int slot, T value);
+    }
+
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Executor executor;
+    private final Sink<T> sink;
+    private final Runnable drain = this::drain;
+    private final LongAdder offered;
+    private final LongAdder conflated;
+    private final LongAdder delivered;
+
+    /**
+     * @param capacity The number of slots.
+     * @param executor The (serial) executor that runs the drain task.
+     * @param sink     The consumer of values.
+     */
+    public ConflatingMailbox(int capacity, Executor executor, Sink<T> sink) {
+        this(capacity, executor, sink, new LongAdder(), new LongAdder(), new LongAdder());
+    }
+
+    private ConflatingMailbox(int capacity, Executor executor, Sink<T> sink, LongAdder offered, LongAdder conflated,
+                              LongAdder delivered) {
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.executor = executor;
+        this.sink = sink;
+        this.offered = offered;
+        this.conflated = conflated;
+        this.delivered = delivered;
+    }
+
+    /**
+     * Creates a mailbox with a different number of slots, sharing this one's executor, sink and counters. Values
+     * pending in this mailbox are still delivered.
+     *
+     * @param capacity The number of slots.
+     * @return The new mailbox.
+     */
+    public ConflatingMailbox<T> resize(int capacity) {
+        return new ConflatingMailbox<>(capacity, executor, sink, offered, conflated, delivered);
+    }
+
+    /**
+     * @return The number of slots.
+     */
+    public int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * Puts a value in its slot, replacing any pending one, and makes sure a drain is scheduled.
+     * <p>
+     * Once the executor rejects the drain task (e.g., it was shut down), the value is dropped and the next offer tries
+     * to schedule a drain again.
+     *
+     * @param slot  The slot.
+     * @param value The value (not null).
+     * @return Whether the value will be delivered (unless replaced by a newer one), i.e., a drain is scheduled.
+     */
+    public boolean offer(int slot, T value) {
+        offered.increment();
+        if (slots.getAndSet(slot, value) != null)
+            conflated.increment();
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drain);
+            } catch (RejectedExecutionException e) {
+                slots.compareAndSet(slot, value, null);
+                scheduled.set(false);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void drain() {
+        // Cleared before scanning: any value offered after its slot is scanned schedules a new drain.
+        scheduled.set(false);
+        for (int i = 0; i < slots.length(); ++i) {
+            T value = slots.getAndSet(i, null);
+            if (value != null) {
+                delivered.increment();
+                sink.accept(i, value);
+            }
+        }
+    }
+
+    /**
+     * @return The number of values offered.
+     */
+    public long getOffered() {
+        return offered.sum();
+    }
+
+    /**
+     * @return The number of values replaced before being delivered.
+     */
+    public long getConflated() {
+        return conflated.sum();
+    }
+
+    /**
+     * @return The number of values delivered.
+     */
+    public long getDelivered() {
+        return delivered.sum();
+    }
+}
@@ -0,0 +1,92 @@
+package org.unbiquitous.unbihealth.avatar.ingest;
+
+import org.unbiquitous.unbihealth.avatar.data.SkeletonTopology;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks, per bone slot, the event time (sensor timestamp) of the newest sample applied, so samples that arrive out
+ * of order can be discarded instead of making the bone jump backward in time.
+ * <p>
+ * A sample is late if its timestamp is older than the newest one accepted for its slot. Checks must be made in the
+ * order samples are applied, so an accepted sample is never applied after a newer one.
+ *
+ * @author Luciano Santos
+ */
+public class EventTimeTracker {
+    private final SkeletonTopology topology;
+    private final long[] newest;
+    private final LongAdder late;
+
+    /**
+     * @param topology The topology whose slots are tracked.
+     */
+    public EventTimeTracker(SkeletonTopology topology) {
+        this(topology, new LongAdder());
+    }
+
+    private EventTimeTracker(SkeletonTopology topology, LongAdder late) {
+        this.topology = topology;
+        this.newest = new long[topology.size()];
+        Arrays.fill(newest, Long.MIN_VALUE);
+        this.late = late;
+    }
+
+    /**
+     * Creates a tracker for another topology, keeping the event times of the bones (by id) that are still present and
+     * sharing this tracker's counter.
+     *
+     * @param next The new topology.
+     * @return The new tracker.
+     */
+    public synchronized EventTimeTracker retarget(SkeletonTopology next) {
+        EventTimeTracker tracker = new EventTimeTracker(next, late);
+        for (int i = 0; i < newest.length; ++i) {
+            int slot = next.indexOf(topology.getId(i));
+            if (slot >= 0)
+                tracker.newest[slot] = newest[i];
+        }
+        return tracker;
+    }
+
+    /**
+     * Checks whether a sample should be applied, recording its event time if so.
+     *
+     * @param slot      The slot of the bone.
+     * @param timestamp The sample's event time.
+     * @return False, if the sample is late and must be discarded.
+     */
+    public synchronized boolean accept(int slot, long timestamp) {
+        long last = newest[slot];
+        if (last != Long.MIN_VALUE && timestamp < last) {
+            late.increment();
+            return false;
+        }
+        if (timestamp > last)
+            newest[slot] = timestamp;
+        return true;
+    }
+
+    /**
+     * @param slot The slot of the bone.
+     * @return The newest event time accepted for given slot, or {@link Long#MIN_VALUE}, if none.
+     */
+    public synchronized long getNewest(int slot) {
+        return newest[slot];
+    }
+
+    /**
+     * @return The topology whose slots are tracked.
+     */
+    public SkeletonTopology getTopology() {
+        return topology;
+    }
+
+    /**
+     * @return The number of samples discarded as late.
+     */
+    public long getLate() {
+        return late.sum();
+    }
+}
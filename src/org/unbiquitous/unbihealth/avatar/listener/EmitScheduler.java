@@ -0,0 +1,166 @@
+package org.unbiquitous.unbihealth.avatar.listener;
+
+import org.apache.commons.math3.util.FastMath;
+import org.unbiquitous.unbihealth.avatar.data.AvatarSkeleton;
+import org.unbiquitous.unbihealth.avatar.data.SkeletonTopology;
+import org.unbiquitous.unbihealth.avatar.util.QuatMath;
+
+import java.util.Arrays;
+
+/**
+ * Decides which poses are worth sending to listeners, at a rate that follows how fast the avatar moves.
+ * <p>
+ * The angular speed of every bone (relative to its parent) is estimated from successive rotations and smoothed; the
+ * avatar's speed is the fastest bone's. At or below <code>idleSpeed</code>, poses are sent at the heartbeat rate; at
+ * or above <code>motionSpeed</code>, at the maximum rate; in between, the rate is interpolated linearly. Since the
+ * speed is updated with every pose, a movement that starts while idle raises the rate right away.
+ * <p>
+ * Speeds are measured every 50 milliseconds, whether bones moved or not, so sensor noise at high sample rates doesn't
+ * look like motion and the first movement after a still period is measured over 50 milliseconds, not the whole period.
+ * Bones that got no new samples for {@link #STALE_AFTER} milliseconds (e.g., a disconnected sensor) don't count.
+ * All times are in milliseconds, rates in hertz and speeds in degrees per second.
+ *
+ * @author Luciano Santos
+ */
+public class EmitScheduler {
+    public static final double DEFAULT_HEARTBEAT_RATE = 1;
+    public static final double DEFAULT_IDLE_SPEED = 5;
+    public static final double DEFAULT_MOTION_SPEED = 90;
+    public static final long STALE_AFTER = 1000;
+
+    private static final double SMOOTHING = 0.5;
+    private static final long MIN_SAMPLE_INTERVAL = 50;
+
+    private final double maxRate;
+    private final double heartbeatRate;
+    private final double idleSpeed;
+    private final double motionSpeed;
+
+    // Guarded by this.
+    private SkeletonTopology topology;
+    private double[] pose = new double[0];
+    private double[] previous = new double[0];
+    private long[] previousTime = new long[0];
+    private long[] updates = new long[0];
+    private long[] lastUpdate = new long[0];
+    private double[] speeds = new double[0];
+    private double speed;
+    private long lastEmit = Long.MIN_VALUE;
+    private long emitted;
+    private long suppressed;
+
+    /**
+     * @param maxRate       The rate while moving fast.
+     * @param heartbeatRate The rate while idle.
+     * @param idleSpeed     The speed up to which the avatar is considered idle.
+     * @param motionSpeed   The speed from which the maximum rate is used.
+     * @throws IllegalArgumentException If the rates are not positive and ordered, or the speeds are inconsistent.
+     */
+    public EmitScheduler(double maxRate, double heartbeatRate, double idleSpeed, double motionSpeed) {
+        if (heartbeatRate <= 0 || maxRate < heartbeatRate)
+            throw new IllegalArgumentException("Rates must be positive, and the maximum rate at least the heartbeat's.");
+        if (idleSpeed < 0 || motionSpeed <= idleSpeed)
+            throw new IllegalArgumentException("Motion speed must be greater than idle speed.");
+        this.maxRate = maxRate;
+        this.heartbeatRate = heartbeatRate;
+        this.idleSpeed = idleSpeed;
+        this.motionSpeed = motionSpeed;
+    }
+
+    /**
+     * Feeds the current pose of a skeleton and decides whether to send it.
+     *
+     * @param skeleton  The skeleton.
+     * @param timestamp The time of the pose.
+     * @return Whether the pose should be sent.
+     */
+    public synchronized boolean shouldEmit(AvatarSkeleton skeleton, long timestamp) {
+        SkeletonTopology t = skeleton.getTopology();
+        if (t != topology) {
+            // New skeleton: starts over, sending its first pose.
+            topology = t;
+            int n = t.size();
+            pose = new double[4 * n];
+            previous = new double[4 * n];
+            previousTime = new long[n];
+            Arrays.fill(previousTime, Long.MIN_VALUE);
+            updates = new long[n];
+            lastUpdate = new long[n];
+            speeds = new double[n];
+            speed = 0;
+            lastEmit = Long.MIN_VALUE;
+        }
+        skeleton.copyPose(pose);
+        updateSpeed(skeleton, timestamp);
+
+        if (lastEmit != Long.MIN_VALUE && timestamp - lastEmit < 1000 / getRate()) {
+            ++suppressed;
+            return false;
+        }
+        lastEmit = timestamp;
+        ++emitted;
+        return true;
+    }
+
+    private void updateSpeed(AvatarSkeleton skeleton, long timestamp) {
+        double max = 0;
+        for (int i = 0, o = 0; i < speeds.length; ++i, o += 4) {
+            long count = skeleton.getBone(i).getUpdateCount();
+            long last = previousTime[i];
+            if (last == Long.MIN_VALUE) {
+                System.arraycopy(pose, o, previous, o, 4);
+                previousTime[i] = timestamp;
+                updates[i] = count;
+                lastUpdate[i] = timestamp;
+                continue;
+            }
+            if (count != updates[i]) {
+                updates[i] = count;
+                lastUpdate[i] = timestamp;
+            }
+            long dt = timestamp - last;
+            if (dt >= MIN_SAMPLE_INTERVAL) {
+                // An unchanged rotation is a measured speed of zero, not a missing measurement.
+                double current = FastMath.toDegrees(QuatMath.angle(pose, o, previous, o)) * 1000 / dt;
+                speeds[i] += SMOOTHING * (current - speeds[i]);
+                System.arraycopy(pose, o, previous, o, 4);
+                previousTime[i] = timestamp;
+            }
+            if (timestamp - lastUpdate[i] < STALE_AFTER)
+                max = FastMath.max(max, speeds[i]);
+        }
+        speed = max;
+    }
+
+    /**
+     * @return The estimated speed, as of the last pose.
+     */
+    public synchronized double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @return The rate for the estimated speed.
+     */
+    public synchronized double getRate() {
+        if (speed <= idleSpeed)
+            return heartbeatRate;
+        if (speed >= motionSpeed)
+            return maxRate;
+        return heartbeatRate + (maxRate - heartbeatRate) * (speed - idleSpeed) / (motionSpeed - idleSpeed);
+    }
+
+    /**
+     * @return The number of poses that should be sent so far.
+     */
+    public synchronized long getEmitted() {
+        return emitted;
+    }
+
+    /**
+     * @return The number of poses held back so far.
+     */
+    public synchronized long getSuppressed() {
+        return suppressed;
+    }
+}
@@ -0,0 +1,174 @@
+package org.unbiquitous.unbihealth.avatar.listener;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Failure tracking and circuit breaker for a single remote listener.
+ * <p>
+ * While {@link State#CLOSED}, every notification is attempted. After <code>failureThreshold</code> consecutive
+ * failures the circuit opens: notifications are skipped until a probe is due, and then a single one is attempted
+ * ({@link State#HALF_OPEN}). A successful probe closes the circuit; a failed one reopens it, doubling the wait up to
+ * <code>maxBackoff</code>. A listener that stays out of {@link State#CLOSED} for <code>evictAfter</code> milliseconds
+ * should be dropped.
+ * <p>
+ * All times are in milliseconds, except latencies, which are in nanoseconds.
+ *
+ * @author Luciano Santos
+ */
+public class ListenerHealth {
+    /**
+     * Circuit breaker states.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_BASE_BACKOFF = 1000;
+    public static final long DEFAULT_MAX_BACKOFF = 60000;
+    public static final long DEFAULT_EVICT_AFTER = 300000;
+
+    private final int failureThreshold;
+    private final long baseBackoff;
+    private final long maxBackoff;
+    private final long evictAfter;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long successes;
+    private long failures;
+    private long skipped;
+    private long latencySum;
+    private long maxLatency;
+    private long backoff;
+    private long nextProbe;
+    private long outageStart;
+
+    public ListenerHealth() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_BASE_BACKOFF, DEFAULT_MAX_BACKOFF, DEFAULT_EVICT_AFTER);
+    }
+
+    /**
+     * @param failureThreshold The number of consecutive failures that opens the circuit.
+     * @param baseBackoff      The wait before the first probe.
+     * @param maxBackoff       The maximum wait between probes.
+     * @param evictAfter       How long the circuit may stay open before the listener is evicted.
+     * @throws IllegalArgumentException If the threshold is not positive, or the times are inconsistent.
+     */
+    public ListenerHealth(int failureThreshold, long baseBackoff, long maxBackoff, long evictAfter) {
+        if (failureThreshold <= 0)
+            throw new IllegalArgumentException("Failure threshold must be positive.");
+        if (baseBackoff <= 0 || maxBackoff < baseBackoff || evictAfter <= 0)
+            throw new IllegalArgumentException("Invalid backoff or eviction time.");
+        this.failureThreshold = failureThreshold;
+        this.baseBackoff = baseBackoff;
+        this.maxBackoff = maxBackoff;
+        this.evictAfter = evictAfter;
+    }
+
+    /**
+     * Checks whether a notification should be attempted now. If a probe is due, moves to {@link State#HALF_OPEN}, so
+     * only the caller that got <code>true</code> performs it.
+     *
+     * @param now The current time.
+     * @return Whether to notify.
+     */
+    public synchronized boolean allow(long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now >= nextProbe) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                // Falls through: not yet.
+            default:
+                ++skipped;
+                return false;
+        }
+    }
+
+    /**
+     * Records a successful notification, closing the circuit.
+     *
+     * @param latency How long the notification took.
+     */
+    public synchronized void onSuccess(long latency) {
+        ++successes;
+        record(latency);
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Records a failed notification, opening the circuit if the threshold was reached or if it was a probe.
+     *
+     * @param now     The current time.
+     * @param latency How long the notification took.
+     */
+    public synchronized void onFailure(long now, long latency) {
+        ++failures;
+        record(latency);
+        ++consecutiveFailures;
+        if (state == State.HALF_OPEN) {
+            backoff = Math.min(backoff * 2, maxBackoff);
+            open(now);
+        } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            backoff = baseBackoff;
+            outageStart = now;
+            open(now);
+        }
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        nextProbe = now + backoff;
+    }
+
+    private void record(long latency) {
+        latencySum += latency;
+        if (latency > maxLatency)
+            maxLatency = latency;
+    }
+
+    /**
+     * @param now The current time.
+     * @return Whether the circuit has been open for longer than the eviction period.
+     */
+    public synchronized boolean shouldEvict(long now) {
+        return state != State.CLOSED && now - outageStart >= evictAfter;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return The time the next probe is due, if the circuit is open.
+     */
+    public synchronized long getNextProbe() {
+        return nextProbe;
+    }
+
+    /**
+     * @return A snapshot of the counters, for reporting.
+     */
+    public synchronized Map<String, Object> toMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long attempts = successes + failures;
+        metrics.put("state", state.name());
+        metrics.put("successes", successes);
+        metrics.put("failures", failures);
+        metrics.put("skipped", skipped);
+        metrics.put("failureRate", attempts == 0 ? 0.0 : (double) failures / attempts);
+        metrics.put("meanLatencyMs", attempts == 0 ? 0.0 : latencySum / 1e6 / attempts);
+        metrics.put("maxLatencyMs", maxLatency / 1e6);
+        return metrics;
+    }
+}
@@ -0,0 +1,209 @@
+package org.unbiquitous.unbihealth.avatar.listener;
+
+import org.unbiquitous.uos.core.UOSLogging;
+import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;
+import org.unbiquitous.uos.core.adaptabitilyEngine.NotifyException;
+import org.unbiquitous.uos.core.applicationManager.CallContext;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpNetworkInterface;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+import org.unbiquitous.uos.core.network.model.NetworkDevice;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The remote listeners of a driver's events, by network interface, each with its own {@link ListenerHealth}.
+ * <p>
+ * Notifications go to every listener whose circuit allows it. Failures are recorded in the listener's health and don't
+ * prevent the remaining listeners from being notified; listeners whose circuit stays open for too long are evicted.
+ *
+ * @author Luciano Santos
+ */
+public class ListenerRegistry {
+    /**
+     * A registered listener.
+     */
+    public static final class Listener {
+        private final UpDevice device;
+        private final String lod;
+        private final ListenerHealth health;
+
+        Listener(UpDevice device, String lod, ListenerHealth health) {
+            this.device = device;
+            this.lod = lod;
+            this.health = health;
+        }
+
+        public UpDevice getDevice() {
+            return device;
+        }
+
+        /**
+         * @return The level of detail the listener registered for, or null, if full.
+         */
+        public String getLod() {
+            return lod;
+        }
+
+        public ListenerHealth getHealth() {
+            return health;
+        }
+    }
+
+    private static Logger logger = UOSLogging.getLogger();
+
+    private final String driverName;
+    private final Map<UpNetworkInterface, Listener> listeners = new ConcurrentHashMap<>();
+    private final LongAdder evicted = new LongAdder();
+    private Gateway gateway;
+    private int failureThreshold = ListenerHealth.DEFAULT_FAILURE_THRESHOLD;
+    private long evictAfter = ListenerHealth.DEFAULT_EVICT_AFTER;
+
+    /**
+     * @param driverName The name of the driver whose events are sent, for logging.
+     */
+    public ListenerRegistry(String driverName) {
+        this.driverName = driverName;
+    }
+
+    /**
+     * Sets up the registry, from the owning driver's init.
+     *
+     * @param gateway          The gateway notifications are sent through.
+     * @param failureThreshold See {@link ListenerHealth}.
+     * @param evictAfter       See {@link ListenerHealth}.
+     */
+    public void init(Gateway gateway, int failureThreshold, long evictAfter) {
+        this.gateway = gateway;
+        this.failureThreshold = failureThreshold;
+        this.evictAfter = evictAfter;
+    }
+
+    /**
+     * Registers the caller as a listener. Registering again resets the health of a listener that was failing, and
+     * changes its level of detail.
+     *
+     * @param context The caller's context.
+     * @param lod     The level of detail, or null, if full.
+     */
+    public void register(CallContext context, String lod) {
+        UpNetworkInterface uni = getNetworkInterface(context);
+        Listener current = listeners.get(uni);
+        if (current == null || current.health.getState() != ListenerHealth.State.CLOSED
+                || !Objects.equals(current.lod, lod))
+            listeners.put(uni, new Listener(context.getCallerDevice(), lod, new ListenerHealth(failureThreshold,
+                    ListenerHealth.DEFAULT_BASE_BACKOFF, ListenerHealth.DEFAULT_MAX_BACKOFF, evictAfter)));
+    }
+
+    /**
+     * Unregisters the caller.
+     *
+     * @param context The caller's context.
+     */
+    public void unregister(CallContext context) {
+        listeners.remove(getNetworkInterface(context));
+    }
+
+    public boolean isEmpty() {
+        return listeners.isEmpty();
+    }
+
+    /**
+     * @return The registered listeners.
+     */
+    public Collection<Listener> getListeners() {
+        return Collections.unmodifiableCollection(listeners.values());
+    }
+
+    public void clear() {
+        listeners.clear();
+    }
+
+    /**
+     * Notifies every listener.
+     *
+     * @param n The notification.
+     */
+    public void notify(Notify n) {
+        notify(n, false, null);
+    }
+
+    /**
+     * Notifies the listeners registered for given level of detail.
+     *
+     * @param n   The notification.
+     * @param lod The level of detail, or null, if full.
+     */
+    public void notify(Notify n, String lod) {
+        notify(n, true, lod);
+    }
+
+    private void notify(Notify n, boolean byLod, String lod) {
+        if (logger.isLoggable(Level.FINE))
+            logger.fine(driverName + ": notify -> " + n.toString());
+        for (Map.Entry<UpNetworkInterface, Listener> e : listeners.entrySet()) {
+            Listener listener = e.getValue();
+            if (byLod && !Objects.equals(lod, listener.lod))
+                continue;
+            long now = System.currentTimeMillis();
+            if (!listener.health.allow(now)) {
+                evictIfDead(e.getKey(), listener, now);
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                gateway.notify(n, listener.device);
+                listener.health.onSuccess(System.nanoTime() - start);
+            } catch (NotifyException | RuntimeException t) {
+                long latency = System.nanoTime() - start;
+                now = System.currentTimeMillis();
+                listener.health.onFailure(now, latency);
+                logger.log(Level.WARNING, driverName + ": failed to notify " + n.getEventKey() + " to "
+                        + e.getKey() + ".", t);
+                evictIfDead(e.getKey(), listener, now);
+            }
+        }
+    }
+
+    private void evictIfDead(UpNetworkInterface uni, Listener listener, long now) {
+        if (listener.health.shouldEvict(now) && listeners.remove(uni, listener)) {
+            evicted.increment();
+            logger.info(driverName + ": evicted unresponsive listener " + uni + ".");
+        }
+    }
+
+    /**
+     * @return The health counters of every listener, by network interface.
+     */
+    public Map<String, Object> getHealth() {
+        Map<String, Object> health = new TreeMap<>();
+        for (Map.Entry<UpNetworkInterface, Listener> e : listeners.entrySet())
+            health.put(e.getKey().toString(), e.getValue().health.toMetrics());
+        return health;
+    }
+
+    /**
+     * @return The number of listeners evicted.
+     */
+    public long getEvicted() {
+        return evicted.sum();
+    }
+
+    /**
+     * @param context A caller's context.
+     * @return The network interface the caller is known by.
+     */
+    public static UpNetworkInterface getNetworkInterface(CallContext context) {
+        NetworkDevice networkDevice = context.getCallerNetworkDevice();
+        String host = networkDevice.getNetworkDeviceName().split(":")[1];
+        return new UpNetworkInterface(networkDevice.getNetworkDeviceType(), host);
+    }
+}
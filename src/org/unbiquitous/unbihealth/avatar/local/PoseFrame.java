@@ -0,0 +1,91 @@
+package org.unbiquitous.unbihealth.avatar.local;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.unbiquitous.unbihealth.avatar.data.SkeletonTopology;
+
+/**
+ * Read-only view of a published pose: every bone's relative rotation, by slot of the skeleton's topology.
+ * <p>
+ * Instances are reused: a frame is valid only during the {@link PoseSubscriber#onNext(PoseFrame)} call it was given
+ * to.
+ *
+ * @author Luciano Santos
+ */
+public final class PoseFrame {
+    private SkeletonTopology topology;
+    private long sequence;
+    private long timestamp;
+    private double[] rotations;
+
+    PoseFrame() {
+    }
+
+    void set(SkeletonTopology topology, long sequence, long timestamp, double[] rotations) {
+        this.topology = topology;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.rotations = rotations;
+    }
+
+    /**
+     * @return The topology that gives the slot of each bone.
+     */
+    public SkeletonTopology getTopology() {
+        return topology;
+    }
+
+    /**
+     * @return The publisher's sequence number of this pose; gaps mean poses were dropped.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return The number of bones.
+     */
+    public int size() {
+        return topology.size();
+    }
+
+    public double getW(int slot) {
+        return rotations[4 * slot];
+    }
+
+    public double getX(int slot) {
+        return rotations[4 * slot + 1];
+    }
+
+    public double getY(int slot) {
+        return rotations[4 * slot + 2];
+    }
+
+    public double getZ(int slot) {
+        return rotations[4 * slot + 3];
+    }
+
+    /**
+     * @param slot The slot.
+     * @return A new quaternion with the rotation of the bone at given slot.
+     */
+    public Quaternion getRotation(int slot) {
+        return new Quaternion(getW(slot), getX(slot), getY(slot), getZ(slot));
+    }
+
+    /**
+     * Copies the whole pose.
+     *
+     * @param out The array to receive four components (w, x, y, z) per slot.
+     * @throws IllegalArgumentException If the array is smaller than the pose.
+     */
+    public void copyRotations(double[] out) {
+        int n = 4 * topology.size();
+        if (out.length < n)
+            throw new IllegalArgumentException("Array smaller than pose.");
+        System.arraycopy(rotations, 0, out, 0, n);
+    }
+}
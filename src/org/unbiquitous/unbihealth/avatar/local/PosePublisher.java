@@ -0,0 +1,245 @@
+package org.unbiquitous.unbihealth.avatar.local;
+
+import org.unbiquitous.unbihealth.avatar.data.AvatarSkeleton;
+import org.unbiquitous.unbihealth.avatar.data.SkeletonTopology;
+import org.unbiquitous.uos.core.UOSLogging;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers poses to {@link PoseSubscriber}s in the same JVM, as primitive views, with backpressure.
+ * <p>
+ * Publishing copies the pose into each subscription's buffer and returns; delivery happens in the subscription's
+ * executor, one frame at a time, only while there's demand. Each subscription has two buffers, so frames are never
+ * allocated: the publisher writes into one while the subscriber reads the other. Poses published while the subscriber
+ * is busy or has no demand replace each other (see {@link PoseSubscription#request(long)}).
+ * <p>
+ * With a direct executor (<code>Runnable::run</code>), frames are delivered in the publishing thread, before
+ * {@link #publish(AvatarSkeleton, long)} returns. Completion is delivered the same way as frames, so it never overlaps
+ * {@link PoseSubscriber#onNext(PoseFrame)} and no frame follows it.
+ *
+ * @author Luciano Santos
+ */
+public class PosePublisher {
+    private static Logger logger = UOSLogging.getLogger();
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Executor defaultExecutor;
+    private long sequence;
+    private volatile boolean closed;
+
+    /**
+     * Creates a publisher that delivers in the common fork-join pool by default.
+     */
+    public PosePublisher() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param defaultExecutor The executor for subscriptions that don't specify one.
+     */
+    public PosePublisher(Executor defaultExecutor) {
+        this.defaultExecutor = defaultExecutor;
+    }
+
+    /**
+     * Subscribes, with delivery in the default executor.
+     *
+     * @param subscriber The subscriber.
+     * @see #subscribe(PoseSubscriber, Executor)
+     */
+    public void subscribe(PoseSubscriber subscriber) {
+        subscribe(subscriber, defaultExecutor);
+    }
+
+    /**
+     * Subscribes. {@link PoseSubscriber#onSubscribe(PoseSubscription)} is called before this method returns, and no
+     * frame is delivered until requested.
+     *
+     * @param subscriber The subscriber.
+     * @param executor   The executor where frames are delivered.
+     * @throws NullPointerException If any argument is null.
+     */
+    public void subscribe(PoseSubscriber subscriber, Executor executor) {
+        if (subscriber == null || executor == null)
+            throw new NullPointerException();
+        Subscription s = new Subscription(subscriber, executor);
+        subscriptions.add(s);
+        subscriber.onSubscribe(s);
+        if (closed && subscriptions.remove(s))
+            s.complete();
+    }
+
+    /**
+     * @return Whether there's any subscriber.
+     */
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * @return The number of subscribers.
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Publishes the current pose of a skeleton to all subscribers.
+     *
+     * @param skeleton  The skeleton.
+     * @param timestamp The time of the pose.
+     */
+    public void publish(AvatarSkeleton skeleton, long timestamp) {
+        if (subscriptions.isEmpty())
+            return;
+        long seq;
+        synchronized (this) {
+            seq = ++sequence;
+        }
+        for (Subscription s : subscriptions)
+            s.offer(skeleton, seq, timestamp);
+    }
+
+    /**
+     * Completes all subscriptions, dropping their pending frames. Later subscribers are completed right away.
+     */
+    public void close() {
+        closed = true;
+        for (Subscription s : subscriptions)
+            if (subscriptions.remove(s))
+                s.complete();
+    }
+
+    private final class Subscription implements PoseSubscription, Runnable {
+        final PoseSubscriber subscriber;
+        final Executor executor;
+        final PoseFrame frame = new PoseFrame();
+
+        // Guarded by this.
+        double[] back = new double[0];
+        SkeletonTopology backTopology;
+        long backSequence;
+        long backTimestamp;
+        boolean pending;
+        long demand;
+        long dropped;
+        boolean draining;
+        boolean cancelled;
+        boolean completing;
+
+        // Touched only while draining.
+        double[] front = new double[0];
+
+        Subscription(PoseSubscriber subscriber, Executor executor) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+        }
+
+        void offer(AvatarSkeleton skeleton, long seq, long timestamp) {
+            synchronized (this) {
+                if (cancelled)
+                    return;
+                SkeletonTopology topology = skeleton.getTopology();
+                if (back.length != 4 * topology.size())
+                    back = new double[4 * topology.size()];
+                skeleton.copyPose(back);
+                backTopology = topology;
+                backSequence = seq;
+                backTimestamp = timestamp;
+                if (pending)
+                    ++dropped;
+                pending = true;
+                if (!shouldDrain())
+                    return;
+            }
+            executor.execute(this);
+        }
+
+        void complete() {
+            synchronized (this) {
+                if (cancelled)
+                    return;
+                cancelled = true;
+                completing = true;
+                // A running drain completes once the frame it's delivering, if any, is done.
+                if (draining)
+                    return;
+                draining = true;
+            }
+            executor.execute(this);
+        }
+
+        private boolean shouldDrain() {
+            if (draining || cancelled || !pending || demand == 0)
+                return false;
+            draining = true;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (this) {
+                    if (completing) {
+                        completing = false;
+                        draining = false;
+                        break;
+                    }
+                    if (cancelled || !pending || demand == 0) {
+                        draining = false;
+                        return;
+                    }
+                    double[] tmp = front;
+                    front = back;
+                    back = tmp;
+                    frame.set(backTopology, backSequence, backTimestamp, front);
+                    pending = false;
+                    if (demand != Long.MAX_VALUE)
+                        --demand;
+                }
+                try {
+                    subscriber.onNext(frame);
+                } catch (Throwable t) {
+                    logger.log(Level.WARNING, "Pose subscriber failed; cancelling its subscription.", t);
+                    cancel();
+                }
+            }
+            subscriber.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Requested frames must be positive."));
+                return;
+            }
+            synchronized (this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                if (!shouldDrain())
+                    return;
+            }
+            executor.execute(this);
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                completing = false;
+            }
+            subscriptions.remove(this);
+        }
+
+        @Override
+        public synchronized long getDropped() {
+            return dropped;
+        }
+    }
+}
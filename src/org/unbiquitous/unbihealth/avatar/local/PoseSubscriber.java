@@ -0,0 +1,39 @@
+package org.unbiquitous.unbihealth.avatar.local;
+
+/**
+ * Receives poses from a {@link PosePublisher}, in the same JVM, without serialization.
+ * <p>
+ * Mirrors the reactive streams subscriber contract: {@link #onSubscribe(PoseSubscription)} is called first, and then
+ * at most as many {@link #onNext(PoseFrame)} calls as were requested through the subscription, never concurrently,
+ * until {@link #onComplete()}, {@link #onError(Throwable)} or cancellation.
+ *
+ * @author Luciano Santos
+ */
+public interface PoseSubscriber {
+    /**
+     * Called once, when subscribing.
+     *
+     * @param subscription The subscription, through which frames are requested.
+     */
+    void onSubscribe(PoseSubscription subscription);
+
+    /**
+     * Called with the newest pose. The frame is a view that is reused for later poses, so it is valid only until this
+     * method returns; anything needed afterwards must be copied.
+     *
+     * @param frame The pose.
+     */
+    void onNext(PoseFrame frame);
+
+    /**
+     * Called if the subscription fails (e.g., on an invalid request). No calls follow.
+     *
+     * @param error The failure.
+     */
+    void onError(Throwable error);
+
+    /**
+     * Called when the publisher is closed. No calls follow.
+     */
+    void onComplete();
+}
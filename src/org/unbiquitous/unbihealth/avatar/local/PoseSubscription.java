@@ -0,0 +1,28 @@
+package org.unbiquitous.unbihealth.avatar.local;
+
+/**
+ * Link between a {@link PosePublisher} and one of its {@link PoseSubscriber}s.
+ *
+ * @author Luciano Santos
+ */
+public interface PoseSubscription {
+    /**
+     * Adds to the number of frames the subscriber is ready to receive.
+     * <p>
+     * Poses published while there's no demand are not queued: only the newest one is kept, and delivered once more
+     * frames are requested. So a slow subscriber always sees the latest pose, and never holds back the publisher.
+     *
+     * @param n The number of frames, positive ({@link Long#MAX_VALUE} means unbounded).
+     */
+    void request(long n);
+
+    /**
+     * Stops delivery. Frames may still be delivered for a short while.
+     */
+    void cancel();
+
+    /**
+     * @return The number of poses replaced by newer ones before being delivered.
+     */
+    long getDropped();
+}
@@ -0,0 +1,393 @@
+package org.unbiquitous.unbihealth.avatar.relay;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.unbiquitous.unbihealth.avatar.AvatarDriver;
+import org.unbiquitous.unbihealth.avatar.data.PoseData;
+import org.unbiquitous.unbihealth.avatar.listener.ListenerHealth;
+import org.unbiquitous.unbihealth.avatar.listener.ListenerRegistry;
+import org.unbiquitous.uos.core.InitialProperties;
+import org.unbiquitous.uos.core.UOSLogging;
+import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;
+import org.unbiquitous.uos.core.adaptabitilyEngine.NotifyException;
+import org.unbiquitous.uos.core.adaptabitilyEngine.UosEventListener;
+import org.unbiquitous.uos.core.applicationManager.CallContext;
+import org.unbiquitous.uos.core.driverManager.DriverData;
+import org.unbiquitous.uos.core.driverManager.UosDriver;
+import org.unbiquitous.uos.core.driverManager.UosEventDriver;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpService;
+import org.unbiquitous.uos.core.messageEngine.messages.Call;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+import org.unbiquitous.uos.core.messageEngine.messages.Response;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An UOS driver that subscribes once to the change events of many {@link AvatarDriver}s (e.g., one per room) and
+ * republishes them, merged, to its own listeners (e.g., dashboards). Each upstream driver then serves a single
+ * subscriber, however many dashboards there are.
+ * <p>
+ * Poses are keyed by avatar id (the change event's {@link AvatarDriver#AVATAR_ID_PARAM_NAME} parameter, or the
+ * upstream instance id, if absent). Poses are coalesced: every {@link #INTERVAL_KEY} milliseconds, a single change
+ * event carries the newest pose of each avatar that changed since the previous one, as a map in parameter
+ * {@link #POSES_PARAM_NAME}; older poses of the same avatar are dropped.
+ *
+ * @author Luciano Santos
+ */
+public class AvatarRelayDriver implements UosEventDriver, UosEventListener {
+    public static final String DRIVER_NAME = "org.unbiquitous.ubihealth.AvatarRelayDriver";
+    public static final String CHANGE_EVENT_NAME = "change";
+    public static final String POSES_PARAM_NAME = "poses";
+    public static final String AVATAR_ID_PARAM_NAME = AvatarDriver.AVATAR_ID_PARAM_NAME;
+    public static final String GET_POSES_NAME = "getPoses";
+    public static final String REFRESH_UPSTREAMS_NAME = "refreshUpstreams";
+    public static final String UPSTREAMS_PARAM_NAME = "upstreams";
+    public static final String INTERVAL_KEY = "avatarrelay.interval";
+    public static final long DEFAULT_INTERVAL = 50;
+    public static final String DISCOVER_KEY = "avatarrelay.discover";
+    public static final String FAILURE_THRESHOLD_KEY = "avatarrelay.listeners.failureThreshold";
+    public static final String EVICT_AFTER_KEY = "avatarrelay.listeners.evictAfter";
+
+    private static final UpDriver _driver = new UpDriver(DRIVER_NAME) {
+        {
+            addService(GET_POSES_NAME)
+                    .addParameter(AVATAR_ID_PARAM_NAME, UpService.ParameterType.OPTIONAL);
+            addService(REFRESH_UPSTREAMS_NAME);
+            addEvent(CHANGE_EVENT_NAME)
+                    .addParameter(POSES_PARAM_NAME, UpService.ParameterType.MANDATORY);
+        }
+    };
+    private static Logger logger = UOSLogging.getLogger();
+    private static ObjectMapper mapper = new ObjectMapper();
+
+    private Gateway gateway;
+    private String instanceId;
+    private long interval = DEFAULT_INTERVAL;
+    private ScheduledExecutorService flusher;
+    private final ListenerRegistry listeners = new ListenerRegistry(DRIVER_NAME);
+    private final Set<DriverData> upstreams = ConcurrentHashMap.newKeySet();
+    private final Map<String, PoseData> latest = new ConcurrentHashMap<>();
+    private final Map<String, PoseData> pending = new ConcurrentHashMap<>();
+    // The instance id of the upstream driver each avatar's poses came from.
+    private final Map<String, String> sources = new ConcurrentHashMap<>();
+    // Orders accepting a pose against dropping the poses of a removed upstream.
+    private final Object upstreamLock = new Object();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder conflated = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * @return The upstream drivers this relay is subscribed to.
+     */
+    public Set<DriverData> getUpstreams() {
+        return Collections.unmodifiableSet(upstreams);
+    }
+
+    /**
+     * Subscribes to an {@link AvatarDriver}'s change events, unless already subscribed.
+     *
+     * @param driver The upstream driver.
+     * @return Whether the driver was new.
+     * @throws NotifyException If registration failed.
+     */
+    public boolean addUpstream(DriverData driver) throws NotifyException {
+        if (!upstreams.add(driver))
+            return false;
+        try {
+            gateway.register(this, driver.getDevice(), AvatarDriver.DRIVER_NAME, driver.getInstanceID(),
+                    AvatarDriver.CHANGE_EVENT_NAME);
+        } catch (NotifyException | RuntimeException e) {
+            upstreams.remove(driver);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Unsubscribes from an upstream driver, dropping the poses received from it (unless another upstream driver with
+     * the same instance id is still subscribed to, as events only tell upstream drivers apart by instance id).
+     *
+     * @param driver The upstream driver.
+     * @return Whether the driver was subscribed to.
+     */
+    public boolean removeUpstream(DriverData driver) {
+        if (!upstreams.remove(driver))
+            return false;
+        try {
+            gateway.unregister(this, driver.getDevice(), AvatarDriver.DRIVER_NAME, driver.getInstanceID(),
+                    AvatarDriver.CHANGE_EVENT_NAME);
+        } catch (Throwable t) {
+            logger.log(Level.WARNING, DRIVER_NAME + ": failed to unregister from AvatarDriver.", t);
+        }
+        String instance = driver.getInstanceID();
+        synchronized (upstreamLock) {
+            if (isSubscribed(instance))
+                return true;
+            sources.entrySet().removeIf(e -> {
+                if (!e.getValue().equals(instance))
+                    return false;
+                latest.remove(e.getKey());
+                pending.remove(e.getKey());
+                return true;
+            });
+        }
+        return true;
+    }
+
+    private boolean isSubscribed(String instance) {
+        for (DriverData driver : upstreams)
+            if (Objects.equals(driver.getInstanceID(), instance))
+                return true;
+        return false;
+    }
+
+    /**
+     * Looks up every {@link AvatarDriver} known to the gateway and subscribes to the new ones, all at once.
+     *
+     * @return The number of upstream drivers subscribed to, after the refresh.
+     */
+    public int refreshUpstreams() {
+        List<DriverData> found = gateway.listDrivers(AvatarDriver.DRIVER_NAME);
+        if (found != null) {
+            List<CompletableFuture<Void>> registrations = new ArrayList<>();
+            for (DriverData driver : found)
+                if (!upstreams.contains(driver))
+                    registrations.add(CompletableFuture.runAsync(() -> {
+                        try {
+                            addUpstream(driver);
+                        } catch (NotifyException e) {
+                            throw new CompletionException(e);
+                        }
+                    }));
+            for (CompletableFuture<Void> r : registrations)
+                try {
+                    r.join();
+                } catch (CompletionException e) {
+                    logger.log(Level.WARNING, DRIVER_NAME + ": failed to register to AvatarDriver.", e.getCause());
+                }
+        }
+        return upstreams.size();
+    }
+
+    /**
+     * Service that subscribes to newly found upstream drivers, returning how many are subscribed to in parameter
+     * {@link #UPSTREAMS_PARAM_NAME}.
+     *
+     * @see #refreshUpstreams()
+     */
+    public void refreshUpstreams(Call call, Response response, CallContext context) {
+        response.addParameter(UPSTREAMS_PARAM_NAME, refreshUpstreams());
+    }
+
+    /**
+     * @return The newest pose of every avatar, by avatar id.
+     */
+    public Map<String, PoseData> getPoses() {
+        return new HashMap<>(latest);
+    }
+
+    /**
+     * Service that retrieves the newest poses, in parameter {@link #POSES_PARAM_NAME}: either a single
+     * {@link PoseData}, for the avatar given in parameter {@link #AVATAR_ID_PARAM_NAME}, or a map of all of them, by
+     * avatar id. Dashboards may use it to draw every avatar right after registering.
+     */
+    public void getPoses(Call call, Response response, CallContext context) {
+        String avatarId = call == null ? null : call.getParameterString(AVATAR_ID_PARAM_NAME);
+        if (avatarId == null) {
+            response.addParameter(POSES_PARAM_NAME, getPoses());
+            return;
+        }
+        PoseData pose = latest.get(avatarId);
+        if (pose == null)
+            response.setError("Unknown avatar '" + avatarId + "'.");
+        else
+            response.addParameter(POSES_PARAM_NAME, pose);
+    }
+
+    /**
+     * Retrieves the relay's counters.
+     *
+     * @return The counters, by name.
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("upstreams", upstreams.size());
+        metrics.put("avatars", latest.size());
+        metrics.put("received", received.sum());
+        metrics.put("conflated", conflated.sum());
+        metrics.put("sent", sent.sum());
+        metrics.put("listeners", listeners.getHealth());
+        metrics.put("listeners.evicted", listeners.getEvicted());
+        return metrics;
+    }
+
+    @Override
+    public UpDriver getDriver() {
+        return _driver;
+    }
+
+    @Override
+    public List<UpDriver> getParent() {
+        return null;
+    }
+
+    /**
+     * Field {@link #INTERVAL_KEY} sets the coalescing interval, in milliseconds (defaults to {@link #DEFAULT_INTERVAL};
+     * zero or less forwards every pose right away). Unless field {@link #DISCOVER_KEY} is "false", every
+     * {@link AvatarDriver} known to the gateway is subscribed to at init (see {@link #refreshUpstreams()}).
+     * <p>
+     * Listeners are tracked as in {@link AvatarDriver}, by a {@link ListenerRegistry}, with fields
+     * {@link #FAILURE_THRESHOLD_KEY} and {@link #EVICT_AFTER_KEY}.
+     *
+     * @see UosDriver#init(Gateway, InitialProperties, String)
+     */
+    @Override
+    public void init(Gateway gateway, InitialProperties props, String id) {
+        this.gateway = gateway;
+        this.instanceId = id;
+        this.interval = Long.parseLong(props.getString(INTERVAL_KEY, Long.toString(DEFAULT_INTERVAL)));
+        listeners.init(gateway, Integer.parseInt(props.getString(FAILURE_THRESHOLD_KEY,
+                Integer.toString(ListenerHealth.DEFAULT_FAILURE_THRESHOLD))),
+                Long.parseLong(props.getString(EVICT_AFTER_KEY, Long.toString(ListenerHealth.DEFAULT_EVICT_AFTER))));
+        if (interval > 0) {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, DRIVER_NAME + "-flush-" + id);
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flushSafely, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        if (Boolean.parseBoolean(props.getString(DISCOVER_KEY, "true")))
+            refreshUpstreams();
+
+        logger.info(DRIVER_NAME + ": init instance [" + id + "] with " + upstreams.size() + " upstream(s).");
+    }
+
+    @Override
+    public void destroy() {
+        listeners.clear();
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        for (DriverData driver : new ArrayList<>(upstreams))
+            removeUpstream(driver);
+        logger.info(DRIVER_NAME + ": destroy instance [" + instanceId + "]. Bye!");
+    }
+
+    @Override
+    public void registerListener(Call call, Response response, CallContext context) {
+        logger.info(DRIVER_NAME + ": registerListener.");
+        listeners.register(context, null);
+    }
+
+    @Override
+    public void unregisterListener(Call call, Response response, CallContext context) {
+        logger.info(DRIVER_NAME + ": unregisterListener.");
+        listeners.unregister(context);
+    }
+
+    /**
+     * Receives a change event from an upstream {@link AvatarDriver}. Poses older than the newest one already received
+     * for the same avatar are dropped, and so are events from drivers not subscribed to (e.g., still in flight when
+     * their driver was removed).
+     */
+    @Override
+    public void handleEvent(Notify event) {
+        if (!AvatarDriver.CHANGE_EVENT_NAME.equals(event.getEventKey())
+                || !AvatarDriver.DRIVER_NAME.equals(event.getDriver()))
+            return;
+        Object id = event.getParameter(AVATAR_ID_PARAM_NAME);
+        String avatarId = id != null ? id.toString() : event.getInstanceId();
+        if (avatarId == null) {
+            logger.warning(DRIVER_NAME + ": dropping change event without avatar id.");
+            return;
+        }
+        PoseData pose;
+        try {
+            pose = toPose(event.getParameter(AvatarDriver.CHANGE_NEW_DATA_PARAM_NAME));
+        } catch (IOException | IllegalArgumentException e) {
+            logger.log(Level.WARNING, DRIVER_NAME + ": failed to read pose of avatar '" + avatarId + "'.", e);
+            return;
+        }
+        String instance = event.getInstanceId();
+        synchronized (upstreamLock) {
+            if (instance == null || !isSubscribed(instance))
+                return;
+            if (latest.merge(avatarId, pose, AvatarRelayDriver::newest) != pose)
+                return;
+            sources.put(avatarId, instance);
+            received.increment();
+            if (interval > 0) {
+                pending.compute(avatarId, (key, old) -> {
+                    if (old == null)
+                        return pose;
+                    conflated.increment();
+                    return newest(old, pose);
+                });
+                return;
+            }
+        }
+        send(Collections.singletonMap(avatarId, pose));
+    }
+
+    private static PoseData newest(PoseData old, PoseData next) {
+        return next.getTimestamp() >= old.getTimestamp() ? next : old;
+    }
+
+    private static PoseData toPose(Object data) throws IOException {
+        if (data == null)
+            throw new IllegalArgumentException("No pose.");
+        if (data instanceof PoseData)
+            return (PoseData) data;
+        if (data instanceof String)
+            return mapper.readValue((String) data, PoseData.class);
+        return mapper.convertValue(data, PoseData.class);
+    }
+
+    /**
+     * Sends the poses received since the previous call, if any, in a single change event.
+     */
+    void flush() {
+        if (pending.isEmpty())
+            return;
+        Map<String, PoseData> batch = new LinkedHashMap<>();
+        for (String avatarId : pending.keySet()) {
+            PoseData pose = pending.remove(avatarId);
+            if (pose != null)
+                batch.put(avatarId, pose);
+        }
+        if (!batch.isEmpty())
+            send(batch);
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // An exception would cancel further flushes.
+            logger.log(Level.SEVERE, DRIVER_NAME + ": failed to flush poses.", e);
+        }
+    }
+
+    private void send(Map<String, PoseData> poses) {
+        if (listeners.isEmpty())
+            return;
+        sent.increment();
+        listeners.notify(new Notify(CHANGE_EVENT_NAME, DRIVER_NAME, instanceId).addParameter(POSES_PARAM_NAME, poses));
+    }
+}
@@ -0,0 +1,186 @@
+package org.unbiquitous.unbihealth.avatar.util;
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Quaternion arithmetic over plain arrays, for hot paths that can't afford an object per operation.
+ * <p>
+ * Quaternions are stored as four consecutive components (w, x, y, z) starting at an offset, the same layout used by
+ * poses and frames throughout this project (four components per slot). Results may be written over any of the
+ * operands. Unless stated otherwise, the operations match <code>org.apache.commons.math3.complex.Quaternion</code>'s.
+ * <p>
+ * Rotations are unit quaternions, whose inverse is their conjugate, so no operation here divides by a norm.
+ *
+ * @author Luciano Santos
+ */
+public final class QuatMath {
+    private static final double SLERP_THRESHOLD = 0.9995;
+
+    private QuatMath() {
+    }
+
+    /**
+     * Hamilton product: <code>out = a * b</code>.
+     */
+    public static void multiply(double[] a, int ai, double[] b, int bi, double[] out, int oi) {
+        double aw = a[ai], ax = a[ai + 1], ay = a[ai + 2], az = a[ai + 3];
+        double bw = b[bi], bx = b[bi + 1], by = b[bi + 2], bz = b[bi + 3];
+        out[oi] = aw * bw - ax * bx - ay * by - az * bz;
+        out[oi + 1] = aw * bx + ax * bw + ay * bz - az * by;
+        out[oi + 2] = aw * by - ax * bz + ay * bw + az * bx;
+        out[oi + 3] = aw * bz + ax * by - ay * bx + az * bw;
+    }
+
+    /**
+     * <code>out = a * b*</code>, i.e., the rotation of <code>a</code> relative to <code>b</code>, given that
+     * <code>b</code> is a unit quaternion (whose conjugate is its inverse).
+     */
+    public static void multiplyConjugate(double[] a, int ai, double[] b, int bi, double[] out, int oi) {
+        double aw = a[ai], ax = a[ai + 1], ay = a[ai + 2], az = a[ai + 3];
+        double bw = b[bi], bx = -b[bi + 1], by = -b[bi + 2], bz = -b[bi + 3];
+        out[oi] = aw * bw - ax * bx - ay * by - az * bz;
+        out[oi + 1] = aw * bx + ax * bw + ay * bz - az * by;
+        out[oi + 2] = aw * by - ax * bz + ay * bw + az * bx;
+        out[oi + 3] = aw * bz + ax * by - ay * bx + az * bw;
+    }
+
+    /**
+     * @return The dot product of two quaternions.
+     */
+    public static double dot(double[] a, int ai, double[] b, int bi) {
+        return a[ai] * b[bi] + a[ai + 1] * b[bi + 1] + a[ai + 2] * b[bi + 2] + a[ai + 3] * b[bi + 3];
+    }
+
+    /**
+     * @return The norm of a quaternion.
+     */
+    public static double norm(double[] q, int qi) {
+        return FastMath.sqrt(dot(q, qi, q, qi));
+    }
+
+    /**
+     * Normalizes a quaternion in place.
+     *
+     * @return The norm before normalization; if it's zero, the quaternion is left unchanged.
+     */
+    public static double normalize(double[] q, int qi) {
+        double n = norm(q, qi);
+        if (n != 0) {
+            q[qi] /= n;
+            q[qi + 1] /= n;
+            q[qi + 2] /= n;
+            q[qi + 3] /= n;
+        }
+        return n;
+    }
+
+    /**
+     * @return The angle, in radians, of the rotation between two unit quaternions, in [0, pi]. Since <code>q</code>
+     * and <code>-q</code> are the same rotation, the sign of either doesn't matter.
+     */
+    public static double angle(double[] a, int ai, double[] b, int bi) {
+        double d = FastMath.abs(dot(a, ai, b, bi));
+        return 2 * FastMath.acos(d > 1 ? 1 : d);
+    }
+
+    /**
+     * Spherical linear interpolation between two unit quaternions, along the shortest path. Nearly parallel
+     * quaternions are interpolated linearly (and normalized), where slerp is numerically unstable.
+     *
+     * @param t The interpolation parameter: 0 gives <code>a</code>, 1 gives <code>b</code> (or <code>-b</code>).
+     */
+    public static void slerp(double[] a, int ai, double[] b, int bi, double t, double[] out, int oi) {
+        double aw = a[ai], ax = a[ai + 1], ay = a[ai + 2], az = a[ai + 3];
+        double bw = b[bi], bx = b[bi + 1], by = b[bi + 2], bz = b[bi + 3];
+        double cos = aw * bw + ax * bx + ay * by + az * bz;
+        if (cos < 0) {
+            cos = -cos;
+            bw = -bw;
+            bx = -bx;
+            by = -by;
+            bz = -bz;
+        }
+        double ka, kb;
+        if (cos > SLERP_THRESHOLD) {
+            ka = 1 - t;
+            kb = t;
+        } else {
+            double theta = FastMath.acos(cos);
+            double sin = FastMath.sin(theta);
+            ka = FastMath.sin((1 - t) * theta) / sin;
+            kb = FastMath.sin(t * theta) / sin;
+        }
+        out[oi] = ka * aw + kb * bw;
+        out[oi + 1] = ka * ax + kb * bx;
+        out[oi + 2] = ka * ay + kb * by;
+        out[oi + 3] = ka * az + kb * bz;
+        if (cos > SLERP_THRESHOLD)
+            normalize(out, oi);
+    }
+
+    /**
+     * Element-wise Hamilton product of <code>count</code> quaternions laid out back to back:
+     * <code>out[i] = a[i] * b[i]</code>.
+     */
+    public static void multiplyAll(double[] a, double[] b, double[] out, int count) {
+        for (int o = 0, end = 4 * count; o < end; o += 4) {
+            double aw = a[o], ax = a[o + 1], ay = a[o + 2], az = a[o + 3];
+            double bw = b[o], bx = b[o + 1], by = b[o + 2], bz = b[o + 3];
+            out[o] = aw * bw - ax * bx - ay * by - az * bz;
+            out[o + 1] = aw * bx + ax * bw + ay * bz - az * by;
+            out[o + 2] = aw * by - ax * bz + ay * bw + az * bx;
+            out[o + 3] = aw * bz + ax * by - ay * bx + az * bw;
+        }
+    }
+
+    /**
+     * Conjugates <code>count</code> quaternions laid out back to back: <code>out[i] = q[i]*</code>.
+     */
+    public static void conjugateAll(double[] q, double[] out, int count) {
+        for (int o = 0, end = 4 * count; o < end; o += 4) {
+            out[o] = q[o];
+            out[o + 1] = -q[o + 1];
+            out[o + 2] = -q[o + 2];
+            out[o + 3] = -q[o + 3];
+        }
+    }
+
+    /**
+     * Normalizes <code>count</code> non-zero quaternions laid out back to back, in place.
+     */
+    public static void normalizeAll(double[] q, int count) {
+        for (int o = 0, end = 4 * count; o < end; o += 4) {
+            double s = 1 / FastMath.sqrt(q[o] * q[o] + q[o + 1] * q[o + 1] + q[o + 2] * q[o + 2] + q[o + 3] * q[o + 3]);
+            q[o] *= s;
+            q[o + 1] *= s;
+            q[o + 2] *= s;
+            q[o + 3] *= s;
+        }
+    }
+
+    /**
+     * Computes a relative pose from an absolute one: <code>out[i] = absolute[i] * absolute[parents[i]]*</code>, or
+     * <code>absolute[i]</code> for roots (negative parent), given unit quaternions laid out back to back.
+     * <p>
+     * Parents must come before their children (as in a {@link
+     * org.unbiquitous.unbihealth.avatar.data.SkeletonTopology}'s pre-order), so quaternions are processed backwards,
+     * in a single counted loop, and <code>out</code> may be <code>absolute</code> itself.
+     *
+     * @param absolute The absolute rotations.
+     * @param parents  The parent of each quaternion, or -1.
+     * @param out      The array to receive the relative rotations.
+     * @param count    The number of quaternions.
+     */
+    public static void relativeAll(double[] absolute, int[] parents, double[] out, int count) {
+        for (int i = count - 1, o = 4 * i; i >= 0; --i, o -= 4) {
+            int p = parents[i];
+            if (p < 0) {
+                out[o] = absolute[o];
+                out[o + 1] = absolute[o + 1];
+                out[o + 2] = absolute[o + 2];
+                out[o + 3] = absolute[o + 3];
+            } else
+                multiplyConjugate(absolute, o, absolute, 4 * p, out, o);
+        }
+    }
+}
@@ -9,24 +9,40 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.unbiquitous.unbihealth.avatar.analytics.JointDefinition;
+import org.unbiquitous.unbihealth.avatar.analytics.JointStats;
+import org.unbiquitous.unbihealth.avatar.analytics.Similarity;
+import org.unbiquitous.unbihealth.avatar.analytics.TemplateDefinition;
 import org.unbiquitous.unbihealth.avatar.data.AvatarBone;
 import org.unbiquitous.unbihealth.avatar.data.AvatarSkeleton;
 import org.unbiquitous.unbihealth.avatar.data.BoneData;
+import org.unbiquitous.unbihealth.avatar.data.SkeletonTopology;
+import org.unbiquitous.unbihealth.avatar.local.PoseFrame;
+import org.unbiquitous.unbihealth.avatar.local.PoseSubscriber;
+import org.unbiquitous.unbihealth.avatar.local.PoseSubscription;
 import org.unbiquitous.unbihealth.imu.IMUDriver;
 import org.unbiquitous.unbihealth.imu.SensorData;
 import org.unbiquitous.uos.core.InitialProperties;
 import org.unbiquitous.uos.core.adaptabitilyEngine.ServiceCallException;
 import org.unbiquitous.uos.core.adaptabitilyEngine.SmartSpaceGateway;
+import org.unbiquitous.uos.core.applicationManager.CallContext;
 import org.unbiquitous.uos.core.deviceManager.DeviceManager;
 import org.unbiquitous.uos.core.driverManager.DriverData;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpService;
+import org.mockito.ArgumentCaptor;
+import org.unbiquitous.unbihealth.avatar.data.PoseData;
+import org.unbiquitous.uos.core.messageEngine.messages.Call;
 import org.unbiquitous.uos.core.messageEngine.messages.Notify;
 import org.unbiquitous.uos.core.messageEngine.messages.Response;
+import org.unbiquitous.uos.core.network.model.NetworkDevice;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.data.Offset.offset;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
@@ -67,6 +83,7 @@ public class AvatarDriverTest {
     public void declareChange() {
         assertThat(instance.getDriver().getEvents()).contains(
                 new UpService("change").addParameter("newData", UpService.ParameterType.MANDATORY)
+                        .addParameter("avatarId", UpService.ParameterType.OPTIONAL)
         );
     }
 
@@ -224,6 +241,7 @@ public class AvatarDriverTest {
     @Test
     public void shouldSwapParentsCorrectly() throws Exception {
         AvatarBone a = createComplexHierarchy();
+        assertThat(a.getTopology().size()).isEqualTo(13);
         Map<String, AvatarBone> childrenA = a.getChildren();
         AvatarBone ab0 = childrenA.get("ab0");
         Set<AvatarBone> childrenB = new HashSet<>();
@@ -234,6 +252,46 @@ public class AvatarDriverTest {
         assertThat(ab0.getParent()).isEqualTo(b);
         assertThat(childrenA).doesNotContainKey("ab0");
         assertThat(childrenA).doesNotContainValue(ab0);
+        assertThat(ab0.getTopology()).isSameAs(b.getTopology());
+        assertThat(ab0.getSlot()).isEqualTo(1);
+        assertThat(a.getTopology().size()).isEqualTo(12);
+        assertThat(a.getTopology().indexOf("ab0")).isEqualTo(-1);
+    }
+
+    @Test
+    public void shouldHashAndCompareThroughTopology() throws Exception {
+        props.put("avatardriver.skeleton", createComplexHierarchyJSON());
+        instance.init(gateway, props, null);
+        AvatarSkeleton skeleton = (AvatarSkeleton) instance.getSkeleton();
+        AvatarBone expected = createComplexHierarchy();
+        assertThat(skeleton.getRoot().hashCode()).isEqualTo(expected.hashCode());
+        assertThat(skeleton.hashCode()).isEqualTo(AvatarSkeleton.parse(createComplexHierarchyJSON()).hashCode());
+        assertThat(skeleton.getTopology()).isEqualTo(expected.getTopology());
+        assertThat(skeleton.getTopology().size()).isEqualTo(13);
+        assertThat(skeleton.getBone(0)).isSameAs(skeleton.getRoot());
+
+        instance.setSensor("ab3c2d0", "other-sensor", null);
+        assertThat(skeleton.getRoot()).isNotEqualTo(expected);
+        assertThat(skeleton.getRoot().hashCode()).isEqualTo(expected.hashCode());
+    }
+
+    @Test
+    public void shouldLayOutParentsBeforeChildren() throws Exception {
+        props.put("avatardriver.skeleton", createComplexHierarchyJSON());
+        instance.init(gateway, props, null);
+        SkeletonTopology topology = ((AvatarSkeleton) instance.getSkeleton()).getTopology();
+        assertThat(topology.getParent(0)).isEqualTo(-1);
+        for (int i = 1; i < topology.size(); ++i) {
+            int parent = topology.getParent(i);
+            assertThat(parent).isLessThan(i);
+            assertThat(topology.getSubtreeEnd(i)).isLessThanOrEqualTo(topology.getSubtreeEnd(parent));
+            assertThat(instance.getSkeleton().getBone(topology.getId(i)).getParent().getId())
+                    .isEqualTo(topology.getId(parent));
+        }
+        int ab3 = topology.indexOf("ab3");
+        assertThat(topology.getSubtreeEnd(ab3) - ab3).isEqualTo(6);
+        assertThat(topology.getChildCount(ab3)).isEqualTo(3);
+        assertThat(topology.getId(topology.getChild(ab3, 0))).isEqualTo("ab3c0");
     }
 
     @Test
@@ -362,16 +420,432 @@ public class AvatarDriverTest {
         assertTrue(instance.getSkeleton().getBone("forearm").getRotation().equals(angleAxis(Vector3D.PLUS_I, FastMath.PI / 4), EPSILON));
     }
 
+    @Test
+    public void shouldRoundTripSkeleton() throws Exception {
+        props.put("avatardriver.skeleton", createComplexHierarchyJSON());
+        instance.init(gateway, props, null);
+        AvatarSkeleton skeleton = (AvatarSkeleton) instance.getSkeleton();
+        assertThat(AvatarSkeleton.parse(skeleton.toJson())).isEqualTo(skeleton);
+        assertThat(new String(skeleton.serialize(), "UTF-8")).isEqualTo(skeleton.toJson());
+    }
+
+    @Test
+    public void shouldSerializeSensorMappingChanges() throws Exception {
+        props.put("avatardriver.skeleton", createComplexHierarchyJSON());
+        instance.init(gateway, props, null);
+        AvatarSkeleton skeleton = (AvatarSkeleton) instance.getSkeleton();
+        String before = skeleton.toJson();
+        assertThat(skeleton.toJson()).isSameAs(before);
+        instance.setSensor("ab0", "new-sensor", null);
+        AvatarSkeleton parsed = AvatarSkeleton.parse(skeleton.toJson());
+        assertThat(parsed.getBone("ab0").getSensorId()).isEqualTo("new-sensor");
+        assertThat(parsed.getBoneBySensorId("ab0-sensor")).isNull();
+    }
+
+    @Test
+    public void shouldProvideStructure() throws Exception {
+        props.put("avatardriver.skeleton", createComplexHierarchyJSON());
+        instance.init(gateway, props, null);
+        Response response = new Response();
+        instance.getStructure(null, response, null);
+        String json = (String) response.getResponseData(AvatarDriver.STRUCTURE_PARAM_NAME);
+        assertThat(AvatarSkeleton.parse(json)).isEqualTo(instance.getSkeleton());
+    }
+
+    @Test
+    public void shouldRetargetKeepingBindingsAndRotations() throws Exception {
+        DriverData driver = new DriverData(IMUDriver.getDriverStatic(), null, "driver");
+        when(gateway.callService(null, IMUDriver.LIST_IDS_NAME, IMUDriver.DRIVER_NAME, "driver", null, null))
+                .thenReturn(new Response().addParameter(IMUDriver.IDS_PARAM_NAME, new String[]{"s1", "s2"}));
+        BoneData[] bones = new BoneData[]{new BoneData("arm", "1"), new BoneData("forearm", "2", "arm")};
+        props.put("avatardriver.skeleton", mapper.writeValueAsString(bones));
+        instance.init(gateway, props, null);
+        instance.setSensor("arm", "s1", driver);
+        instance.setSensor("forearm", "s2", driver);
+        instance.handleEvent(createNotify("s1", angleAxis(Vector3D.PLUS_I, FastMath.PI / 4)));
+
+        // Forearm is gone, a hand is added, and the arm's sensor id in the new description is different.
+        bones = new BoneData[]{new BoneData("arm", "x"), new BoneData("hand", "s2", "arm")};
+        AvatarSkeleton next = instance.retarget(mapper.writeValueAsString(bones)).get();
+        assertThat(instance.getSkeleton()).isSameAs(next);
+        assertThat(next.getBone("arm").getSensorId()).isEqualTo("s1");
+        assertThat(next.getBone("arm").getRotation()).isEqualTo(angleAxis(Vector3D.PLUS_I, FastMath.PI / 4));
+        verify(gateway, never()).unregister(instance, null, IMUDriver.DRIVER_NAME, "driver", IMUDriver.CHANGE_EVENT_NAME);
+
+        bones = new BoneData[]{new BoneData("arm", "x")};
+        instance.retarget(mapper.writeValueAsString(bones)).get();
+        instance.setSensor("arm", "arm", null);
+        verify(gateway, times(1)).unregister(instance, null, IMUDriver.DRIVER_NAME, "driver", IMUDriver.CHANGE_EVENT_NAME);
+    }
+
+    @Test
+    public void shouldTrackJointAngles() throws Exception {
+        BoneData[] bones = new BoneData[]{new BoneData("arm", "1"), new BoneData("forearm", "2", "arm")};
+        props.put("avatardriver.skeleton", mapper.writeValueAsString(bones));
+        props.put("avatardriver.joints", mapper.writeValueAsString(new JointDefinition[]{
+                new JointDefinition("elbow", "forearm", JointDefinition.Measure.TWIST),
+                new JointDefinition("elbowSwing", "forearm", JointDefinition.Measure.SWING, new double[]{0, 0, 1})
+        }));
+        props.put(AvatarDriver.JOINT_INTERVAL_KEY, "60000");
+        instance.init(gateway, props, null);
+        UpDevice device = new UpDevice("listener");
+        instance.registerListener(null, null, listener("10.0.0.1", device));
+        instance.handleEvent(createNotify("2", aboutX(FastMath.PI / 2)));
+        instance.handleEvent(createNotify("2", aboutX(FastMath.PI / 6)));
+
+        // Joint events are throttled: one per joint within the interval.
+        ArgumentCaptor<Notify> captor = ArgumentCaptor.forClass(Notify.class);
+        verify(gateway, atLeastOnce()).notify(captor.capture(), eq(device));
+        int jointEvents = 0;
+        for (Notify n : captor.getAllValues())
+            if (AvatarDriver.JOINT_EVENT_NAME.equals(n.getEventKey()))
+                ++jointEvents;
+        assertThat(jointEvents).isEqualTo(2);
+
+        Response response = new Response();
+        instance.getJointStats(null, response, null);
+        @SuppressWarnings("unchecked")
+        List<JointStats> stats = (List<JointStats>) response.getResponseData(AvatarDriver.JOINTS_PARAM_NAME);
+        assertThat(stats).hasSize(2);
+        assertThat(stats.get(0).getAngle()).isEqualTo(30, offset(1e-9));
+        assertThat(stats.get(0).getMax()).isEqualTo(90, offset(1e-9));
+        assertThat(stats.get(0).getRange()).isEqualTo(60, offset(1e-9));
+        assertThat(stats.get(0).getMean()).isEqualTo(60, offset(1e-9));
+        assertThat(stats.get(1).getAngle()).isEqualTo(30, offset(1e-9));
+
+        instance.resetJointStats(null, null, null);
+        assertThat(instance.getAnalytics().getStats().get(0).getCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldMatchTemplatesOfTheirBoneOnly() throws Exception {
+        BoneData[] bones = new BoneData[]{new BoneData("arm", "1"), new BoneData("forearm", "2", "arm")};
+        props.put("avatardriver.skeleton", mapper.writeValueAsString(bones));
+        props.put(AvatarDriver.TEMPLATES_KEY, mapper.writeValueAsString(new TemplateDefinition[]{
+                new TemplateDefinition("curl", "forearm", new double[][]{
+                        {1, 0, 0, 0}, {FastMath.cos(FastMath.PI / 4), FastMath.sin(FastMath.PI / 4), 0, 0}})
+        }));
+        instance.init(gateway, props, null);
+        UpDevice device = new UpDevice("listener");
+        instance.registerListener(null, null, listener("10.0.0.1", device));
+
+        long time = curl(System.currentTimeMillis(), "2");
+        List<Similarity> matches = similarities(device);
+        assertThat(matches).hasSize(1);
+        assertThat(matches.get(0).getTemplateId()).isEqualTo("curl");
+        assertThat(matches.get(0).getBoneId()).isEqualTo("forearm");
+        assertThat(matches.get(0).getScore()).isEqualTo(1, offset(1e-9));
+
+        // The forearm's slot (and sensor) now belong to another bone, which the template must not be fed with.
+        bones = new BoneData[]{new BoneData("arm", "1"), new BoneData("wrist", "2", "arm")};
+        instance.retarget(mapper.writeValueAsString(bones)).get();
+        curl(time, "2");
+        assertThat(similarities(device)).hasSize(1);
+    }
+
+    /**
+     * Sends a curl (rest, then 90 degrees about x) and a few unrelated rotations, from given time on.
+     */
+    private long curl(long time, String sensor) throws Exception {
+        Quaternion[] stream = {aboutX(0), aboutX(0), aboutX(FastMath.PI / 2), aboutX(FastMath.PI / 2),
+                new Quaternion(0.5, 0, 0, FastMath.sqrt(3) / 2), new Quaternion(0.5, 0, 0, FastMath.sqrt(3) / 2)};
+        for (Quaternion q : stream)
+            instance.handleEvent(createNotify(sensor, q, time += 10));
+        return time;
+    }
+
+    private List<Similarity> similarities(UpDevice device) {
+        ArgumentCaptor<Notify> captor = ArgumentCaptor.forClass(Notify.class);
+        verify(gateway, atLeastOnce()).notify(captor.capture(), eq(device));
+        List<Similarity> matches = new ArrayList<>();
+        for (Notify n : captor.getAllValues())
+            if (AvatarDriver.SIMILARITY_EVENT_NAME.equals(n.getEventKey()))
+                matches.add((Similarity) n.getParameter(AvatarDriver.SIMILARITY_DATA_PARAM_NAME));
+        return matches;
+    }
+
+    @Test
+    public void shouldDeliverPosesToLocalSubscribersAfterReinit() throws Exception {
+        props.put("avatardriver.skeleton", mapper.writeValueAsString(new BoneData[]{new BoneData("arm", "1")}));
+        instance.init(gateway, props, null);
+        instance.destroy();
+        instance.init(gateway, props, null);
+
+        PoseSubscriber subscriber = mock(PoseSubscriber.class);
+        instance.subscribe(subscriber, Runnable::run);
+        ArgumentCaptor<PoseSubscription> subscription = ArgumentCaptor.forClass(PoseSubscription.class);
+        verify(subscriber).onSubscribe(subscription.capture());
+        subscription.getValue().request(1);
+        instance.handleEvent(createNotify("1", aboutX(FastMath.PI / 3)));
+        verify(subscriber, times(1)).onNext(any(PoseFrame.class));
+        verify(subscriber, never()).onComplete();
+    }
+
+    @Test
+    public void shouldSizeHistoryByDurationAndStartOverWhenRetargeted() throws Exception {
+        props.put("avatardriver.skeleton", mapper.writeValueAsString(new BoneData[]{new BoneData("arm", "1")}));
+        props.put(AvatarDriver.HISTORY_DURATION_KEY, "5000");
+        props.put(AvatarDriver.HISTORY_RATE_KEY, "50");
+        instance.init(gateway, props, null);
+        assertThat(instance.getHistory().capacity()).isEqualTo(250);
+
+        instance.handleEvent(createNotify("1", aboutX(FastMath.PI / 3)));
+        assertThat(instance.getHistory().size()).isEqualTo(1);
+        BoneData[] bones = new BoneData[]{new BoneData("arm", "1"), new BoneData("forearm", "2", "arm")};
+        instance.retarget(mapper.writeValueAsString(bones)).get();
+        assertThat(instance.getHistory().size()).isEqualTo(0);
+        assertThat(instance.getHistory().capacity()).isEqualTo(250);
+    }
+
+    @Test
+    public void shouldApplyFramesParentsFirst() throws Exception {
+        BoneData[] bones = new BoneData[]{
+                new BoneData("arm", "1"), new BoneData("forearm", "2", "arm"), new BoneData("hand", "3", "forearm")};
+        props.put("avatardriver.skeleton", mapper.writeValueAsString(bones));
+        instance.init(gateway, props, null);
+        AvatarSkeleton skeleton = (AvatarSkeleton) instance.getSkeleton();
+        SkeletonTopology topology = skeleton.getTopology();
+
+        // Hand arrives first, then its ancestors: the hand still follows the forearm that arrived after it.
+        instance.handleEvent(createNotify("3", aboutX(FastMath.PI / 2)));
+        instance.handleEvent(createNotify("2", aboutX(FastMath.PI / 3)));
+        instance.handleEvent(createNotify("1", aboutX(FastMath.PI / 6)));
+        assertTrue(skeleton.getBone("hand").getRotation().equals(aboutX(FastMath.PI / 6), EPSILON));
+        assertTrue(skeleton.getBone("forearm").getRotation().equals(aboutX(FastMath.PI / 6), EPSILON));
+
+        double[] frame = new double[4 * topology.size()];
+        putFrame(frame, topology.indexOf("hand"), aboutX(FastMath.PI / 2));
+        putFrame(frame, topology.indexOf("forearm"), aboutX(FastMath.PI / 3));
+        putFrame(frame, topology.indexOf("arm"), aboutX(FastMath.PI / 6));
+        instance.handleFrame(topology, System.currentTimeMillis(), frame, null);
+        assertTrue(skeleton.getBone("arm").getRotation().equals(aboutX(FastMath.PI / 6), EPSILON));
+        assertTrue(skeleton.getBone("forearm").getRotation().equals(aboutX(FastMath.PI / 6), EPSILON));
+        assertTrue(skeleton.getBone("hand").getRotation().equals(aboutX(FastMath.PI / 6), EPSILON));
+
+        // Only the arm moves: descendants keep their absolute rotation, so only the forearm's relative one changes.
+        boolean[] present = new boolean[topology.size()];
+        present[topology.indexOf("arm")] = true;
+        putFrame(frame, topology.indexOf("arm"), aboutX(0));
+        instance.handleFrame(topology, System.currentTimeMillis(), frame, present);
+        assertTrue(skeleton.getBone("forearm").getRotation().equals(aboutX(FastMath.PI / 3), EPSILON));
+        assertTrue(skeleton.getBone("hand").getRotation().equals(aboutX(FastMath.PI / 6), EPSILON));
+        assertThat(skeleton.isChanged(topology.indexOf("arm"))).isTrue();
+        assertThat(skeleton.isChanged(topology.indexOf("forearm"))).isTrue();
+        assertThat(skeleton.isChanged(topology.indexOf("hand"))).isFalse();
+    }
+
+    @Test
+    public void shouldApplyFramesAndSamplesOnIngestThreadWhenConflating() throws Exception {
+        BoneData[] bones = new BoneData[]{new BoneData("arm", "1"), new BoneData("forearm", "2", "arm")};
+        props.put("avatardriver.skeleton", mapper.writeValueAsString(bones));
+        props.put(AvatarDriver.CONFLATE_KEY, "true");
+        instance.init(gateway, props, null);
+        SkeletonTopology topology = ((AvatarSkeleton) instance.getSkeleton()).getTopology();
+
+        double[] frame = new double[4 * topology.size()];
+        putFrame(frame, topology.indexOf("arm"), aboutX(FastMath.PI / 3));
+        putFrame(frame, topology.indexOf("forearm"), aboutX(FastMath.PI / 3));
+        instance.handleFrame(topology, System.currentTimeMillis(), frame, null);
+        // The frame was copied, so the caller may reuse its arrays.
+        Arrays.fill(frame, 0);
+        instance.handleEvent(createNotify("2", aboutX(FastMath.PI / 2)));
+
+        // Retargeting runs on the ingest thread too, after everything handed over before it: the forearm, now a root,
+        // keeps its absolute rotation.
+        BoneData[] split = new BoneData[]{new BoneData("forearm", "2"), new BoneData("arm", "1", "forearm")};
+        AvatarSkeleton skeleton = instance.retarget(mapper.writeValueAsString(split)).get();
+        assertTrue(skeleton.getBone("forearm").getRotation().equals(aboutX(FastMath.PI / 2), EPSILON));
+        assertTrue(skeleton.getBone("arm").getRotation().equals(aboutX(-FastMath.PI / 6), EPSILON));
+
+        // Once destroyed, samples are applied right away instead of failing.
+        instance.destroy();
+        instance.handleEvent(createNotify("1", aboutX(0)));
+        assertTrue(skeleton.getBone("arm").getRotation().equals(aboutX(-FastMath.PI / 2), EPSILON));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldIsolateAndEvictFailingListeners() throws Exception {
+        props.put("avatardriver.skeleton", mapper.writeValueAsString(new BoneData[]{new BoneData("arm", "1")}));
+        props.put("avatardriver.listeners.failureThreshold", "1");
+        props.put("avatardriver.listeners.evictAfter", "1");
+        instance.init(gateway, props, null);
+        UpDevice gone = new UpDevice("gone");
+        UpDevice present = new UpDevice("present");
+        doThrow(new RuntimeException("timeout")).when(gateway).notify(any(Notify.class), eq(gone));
+        instance.registerListener(null, null, listener("10.0.0.1", gone));
+        instance.registerListener(null, null, listener("10.0.0.2", present));
+
+        instance.handleEvent(createNotify("1", aboutX(0)));
+        instance.handleEvent(createNotify("1", aboutX(0.1)));
+        Thread.sleep(5);
+        instance.handleEvent(createNotify("1", aboutX(0.2)));
+
+        verify(gateway, times(1)).notify(any(Notify.class), eq(gone));
+        verify(gateway, times(3)).notify(any(Notify.class), eq(present));
+        Map<String, Object> metrics = instance.getMetrics();
+        assertThat(metrics.get("listeners.evicted")).isEqualTo(1L);
+        assertThat((Map<String, Object>) metrics.get("listeners")).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotifyListenersAtTheirLevelOfDetail() throws Exception {
+        BoneData[] bones = new BoneData[]{
+                new BoneData("arm", "1"), new BoneData("forearm", "2", "arm"), new BoneData("hand", "3", "forearm")};
+        props.put("avatardriver.skeleton", mapper.writeValueAsString(bones));
+        props.put("avatardriver.lod", "{\"coarse\":[\"hand\"]}");
+        instance.init(gateway, props, null);
+        Call coarse = mock(Call.class);
+        when(coarse.getParameterString("lod")).thenReturn("coarse");
+        UpDevice full = new UpDevice("full");
+        UpDevice reduced = new UpDevice("reduced");
+        instance.registerListener(null, null, listener("10.0.0.1", full));
+        instance.registerListener(coarse, null, listener("10.0.0.2", reduced));
+
+        Call unknown = mock(Call.class);
+        when(unknown.getParameterString("lod")).thenReturn("tiny");
+        Response response = new Response();
+        instance.registerListener(unknown, response, listener("10.0.0.3", new UpDevice("other")));
+        assertThat(response.getError()).contains("tiny");
+
+        instance.handleEvent(createNotify("2", aboutX(FastMath.PI / 3)));
+        instance.handleEvent(createNotify("3", aboutX(FastMath.PI / 2)));
+        ArgumentCaptor<Notify> captor = ArgumentCaptor.forClass(Notify.class);
+        verify(gateway, times(2)).notify(captor.capture(), eq(reduced));
+        PoseData data = (PoseData) captor.getValue().getParameter(AvatarDriver.CHANGE_NEW_DATA_PARAM_NAME);
+        assertThat(data.getRotations().keySet()).containsExactly("arm", "hand");
+        double[] hand = data.getRotations().get("hand");
+        assertTrue(new Quaternion(hand[0], hand[1], hand[2], hand[3]).equals(aboutX(FastMath.PI / 2), EPSILON));
+        verify(gateway, times(2)).notify(any(Notify.class), eq(full));
+
+        response = new Response();
+        instance.getStructure(coarse, response, null);
+        String json = (String) response.getResponseData(AvatarDriver.STRUCTURE_PARAM_NAME);
+        assertThat(AvatarSkeleton.parse(json).getBone("hand").getParent().getId()).isEqualTo("arm");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldDropLateSamplesAndAlignClocks() throws Exception {
+        props.put("avatardriver.skeleton", mapper.writeValueAsString(new BoneData[]{new BoneData("arm", "1")}));
+        props.put(AvatarDriver.ALIGN_CLOCKS_KEY, "true");
+        when(gateway.callService(null, IMUDriver.LIST_IDS_NAME, IMUDriver.DRIVER_NAME, null, null, null))
+                .thenReturn(new Response().addParameter(IMUDriver.IDS_PARAM_NAME, new String[]{"sensor"}));
+        instance.init(gateway, props, null);
+        instance.setSensor("arm", "sensor", imuDriverData);
+
+        // The device's clock is an hour behind. The bone never moves backward in time, however slightly late.
+        long remote = System.currentTimeMillis() - 3600000;
+        AvatarBone arm = (AvatarBone) instance.getSkeleton().getRoot();
+        instance.handleEvent(createNotify("sensor", aboutX(FastMath.PI / 3), remote));
+        instance.handleEvent(createNotify("sensor", aboutX(FastMath.PI / 6), remote - 1));
+        assertTrue(arm.getRotation().equals(aboutX(FastMath.PI / 3), EPSILON));
+        instance.handleEvent(createNotify("sensor", aboutX(FastMath.PI / 2), remote + 10));
+        instance.handleEvent(createNotify("sensor", aboutX(0), remote + 5));
+        assertTrue(arm.getRotation().equals(aboutX(FastMath.PI / 2), EPSILON));
+
+        Map<String, Object> metrics = instance.getMetrics();
+        assertThat(metrics.get("ingest.late")).isEqualTo(2L);
+        // A driver found without a device is still reported.
+        Map<String, Long> offsets = (Map<String, Long>) metrics.get("ingest.clockOffsets");
+        assertThat(offsets.keySet()).containsOnly("local");
+        assertThat(offsets.get("local")).isGreaterThan(3599000L).isLessThan(3601000L);
+    }
+
+    @Test
+    public void shouldRestoreSnapshotAtInit() throws Exception {
+        File file = File.createTempFile("avatar", ".avss");
+        try {
+            props.put("avatardriver.skeleton", mapper.writeValueAsString(new BoneData[]{new BoneData("arm", "1")}));
+            props.put("avatardriver.snapshot.file", file.getPath());
+            when(gateway.callService(null, IMUDriver.LIST_IDS_NAME, IMUDriver.DRIVER_NAME, null, null, null))
+                    .thenReturn(new Response().addParameter(IMUDriver.IDS_PARAM_NAME, new String[]{"sensor"}));
+            instance.init(gateway, props, null);
+            instance.setSensor("arm", "sensor", imuDriverData);
+            instance.handleEvent(createNotify("sensor", aboutX(FastMath.PI / 3)));
+            instance.destroy();
+
+            AvatarDriver restarted = new AvatarDriver();
+            // The IMU driver may send samples as soon as it's registered to.
+            doAnswer(invocation -> {
+                restarted.handleEvent(createNotify("sensor", aboutX(FastMath.PI / 4)));
+                return null;
+            }).when(gateway).register(restarted, null, IMUDriver.DRIVER_NAME, IMUDriver.CHANGE_EVENT_NAME);
+            restarted.init(gateway, props, null);
+            verify(gateway, times(1)).register(restarted, null, IMUDriver.DRIVER_NAME, IMUDriver.CHANGE_EVENT_NAME);
+            AvatarBone arm = (AvatarBone) restarted.getSkeleton().getRoot();
+            assertThat(arm.getSensorId()).isEqualTo("sensor");
+            assertTrue(arm.getRotation().equals(aboutX(FastMath.PI / 4), EPSILON));
+            restarted.destroy();
+
+            // A different configuration invalidates the snapshot.
+            props.put("avatardriver.skeleton", mapper.writeValueAsString(new BoneData[]{new BoneData("leg", "1")}));
+            AvatarDriver reconfigured = new AvatarDriver();
+            reconfigured.init(gateway, props, null);
+            assertThat(((AvatarBone) reconfigured.getSkeleton().getRoot()).getId()).isEqualTo("leg");
+            verify(gateway, never()).register(reconfigured, null, IMUDriver.DRIVER_NAME, IMUDriver.CHANGE_EVENT_NAME);
+            reconfigured.destroy();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void shouldHoldBackIdlePosesWhenAdaptive() throws Exception {
+        props.put("avatardriver.skeleton", mapper.writeValueAsString(new BoneData[]{new BoneData("arm", "1")}));
+        props.put("avatardriver.emit.maxRate", "30");
+        instance.init(gateway, props, null);
+        UpDevice device = new UpDevice("listener");
+        instance.registerListener(null, null, listener("10.0.0.1", device));
+
+        for (long t = 100; t <= 1100; t += 10) {
+            SensorData data = new SensorData();
+            data.setId("1");
+            data.setQuaternion(Quaternion.IDENTITY);
+            data.setTimestamp(t);
+            instance.handleEvent(new Notify(IMUDriver.CHANGE_EVENT_NAME, IMUDriver.DRIVER_NAME)
+                    .addParameter(IMUDriver.CHANGE_NEW_DATA_PARAM_NAME, data));
+        }
+        // Still: only heartbeats, once a second.
+        verify(gateway, times(2)).notify(any(Notify.class), eq(device));
+        assertThat(instance.getMetrics().get("emit.suppressed")).isEqualTo(99L);
+    }
+
+    private static CallContext listener(String host, UpDevice device) {
+        NetworkDevice networkDevice = mock(NetworkDevice.class);
+        when(networkDevice.getNetworkDeviceName()).thenReturn("Ethernet:" + host);
+        when(networkDevice.getNetworkDeviceType()).thenReturn("Ethernet");
+        CallContext context = mock(CallContext.class);
+        when(context.getCallerNetworkDevice()).thenReturn(networkDevice);
+        when(context.getCallerDevice()).thenReturn(device);
+        return context;
+    }
+
+    private static void putFrame(double[] frame, int slot, Quaternion q) {
+        frame[4 * slot] = q.getQ0();
+        frame[4 * slot + 1] = q.getQ1();
+        frame[4 * slot + 2] = q.getQ2();
+        frame[4 * slot + 3] = q.getQ3();
+    }
+
     private static Quaternion angleAxis(Vector3D axis, double angle) {
         Rotation rot = new Rotation(axis, angle);
         return new Quaternion(rot.getQ0(), rot.getQ1(), rot.getQ2(), rot.getQ3());
     }
 
+    private static Quaternion aboutX(double angle) {
+        return new Quaternion(FastMath.cos(angle / 2), FastMath.sin(angle / 2), 0, 0);
+    }
+
     private static Notify createNotify(String sensor, Quaternion value) {
+        return createNotify(sensor, value, System.currentTimeMillis());
+    }
+
+    private static Notify createNotify(String sensor, Quaternion value, long timestamp) {
         SensorData sensorData = new SensorData();
         sensorData.setId(sensor);
         sensorData.setQuaternion(value);
-        sensorData.setTimestamp(System.currentTimeMillis());
+        sensorData.setTimestamp(timestamp);
         return new Notify(IMUDriver.CHANGE_EVENT_NAME, IMUDriver.DRIVER_NAME)
                 .addParameter(IMUDriver.CHANGE_NEW_DATA_PARAM_NAME, sensorData);
     }
@@ -0,0 +1,92 @@
+package org.unbiquitous.unbihealth.avatar.analytics;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.apache.commons.math3.util.FastMath;
+import org.unbiquitous.unbihealth.avatar.data.AvatarBone;
+import org.unbiquitous.unbihealth.avatar.data.AvatarSkeleton;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput benchmark for {@link MovementMatcher}: many patients, each with its own skeleton and templates, fed from
+ * a pool of threads as fast as possible. Reports how many patients could be served in real time at the given rate.
+ * <p>
+ * Not a unit test; run it with <code>main</code>. Arguments (all optional): patients, templates per patient, template
+ * length (samples), rate (Hz), duration (s), threads.
+ *
+ * @author Luciano Santos
+ */
+public class MovementMatcherBenchmark {
+    public static void main(String[] args) throws Exception {
+        int patients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int templates = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int length = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 60;
+        long duration = (args.length > 4 ? Long.parseLong(args[4]) : 10) * 1000000000L;
+        int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+
+        List<AvatarBone> bones = new ArrayList<>();
+        List<MovementMatcher> matchers = new ArrayList<>();
+        AtomicLong matches = new AtomicLong();
+        for (int p = 0; p < patients; ++p) {
+            AvatarSkeleton skeleton = AvatarSkeleton.parse("[{\"id\":\"arm\"}]");
+            List<TemplateDefinition> definitions = new ArrayList<>();
+            for (int t = 0; t < templates; ++t)
+                definitions.add(new TemplateDefinition("t" + t, "arm", sweep(60 + 15 * t, length)));
+            MovementMatcher matcher = new MovementMatcher(definitions, s -> matches.incrementAndGet());
+            matcher.bind(skeleton);
+            bones.add(skeleton.getBone("arm"));
+            matchers.add(matcher);
+        }
+
+        // Patients repeatedly sweep their arms, slightly slower than the templates, with some rest in between.
+        int cycle = 2 * length;
+        Quaternion[] motion = new Quaternion[cycle];
+        double[][] sweep = sweep(90, (int) (1.3 * length));
+        for (int i = 0; i < cycle; ++i) {
+            double[] q = i < sweep.length ? sweep[i] : sweep[sweep.length - 1];
+            motion[i] = new Quaternion(q[0], q[1], q[2], q[3]);
+        }
+
+        AtomicLong samples = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int th = 0; th < threads; ++th) {
+            final int first = th;
+            new Thread(() -> {
+                long count = 0;
+                for (int step = 0; System.nanoTime() - start < duration; ++step) {
+                    Quaternion q = motion[step % cycle];
+                    for (int p = first; p < bones.size(); p += threads) {
+                        AvatarBone bone = bones.get(p);
+                        bone.setRotation(q);
+                        matchers.get(p).update(bone, step * 1000L / (long) rate);
+                        ++count;
+                    }
+                }
+                samples.addAndGet(count);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        double throughput = samples.get() / seconds;
+        System.out.printf("%d patients x %d templates of %d samples, %d threads%n", patients, templates, length, threads);
+        System.out.printf("%.0f samples/s (%.2f us/sample), %d matches%n", throughput, 1e6 * threads / throughput,
+                matches.get());
+        System.out.printf("sustains ~%.0f patients at %.0f Hz%n", throughput / rate, rate);
+    }
+
+    private static double[][] sweep(double top, int samples) {
+        double[][] q = new double[samples][];
+        for (int i = 0; i < samples; ++i) {
+            double a = FastMath.toRadians(i * top / (samples - 1));
+            q[i] = new double[]{FastMath.cos(a / 2), FastMath.sin(a / 2), 0, 0};
+        }
+        return q;
+    }
+}
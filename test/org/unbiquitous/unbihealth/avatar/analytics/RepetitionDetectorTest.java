@@ -0,0 +1,68 @@
+package org.unbiquitous.unbihealth.avatar.analytics;
+
+import org.apache.commons.math3.util.FastMath;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.data.Offset.offset;
+
+/**
+ * Test for {@link RepetitionDetector}.
+ *
+ * @author Luciano Santos
+ */
+public class RepetitionDetectorTest {
+    @Test
+    public void shouldCountCycles() {
+        RepetitionDetector detector = new RepetitionDetector("elbow", 5, 30);
+        List<Repetition> reps = feed(detector, 3, 0, 90, 0);
+        assertThat(reps).hasSize(3);
+        assertThat(reps.get(2).getCount()).isEqualTo(3);
+        assertThat(reps.get(0).getValley()).isEqualTo(0, offset(1e-6));
+        assertThat(reps.get(0).getPeak()).isEqualTo(90, offset(1e-6));
+        assertThat(reps.get(0).getEnd()).isGreaterThan(reps.get(0).getStart());
+    }
+
+    @Test
+    public void shouldIgnoreNoiseAndSmallMovements() {
+        RepetitionDetector detector = new RepetitionDetector("elbow", 5, 30);
+        assertThat(feed(detector, 5, 0, 3, 0)).isEmpty();
+        assertThat(feed(detector, 5, 0, 20, 0)).isEmpty();
+    }
+
+    @Test
+    public void shouldNotCountHalfCycleStartingAtPeak() {
+        RepetitionDetector detector = new RepetitionDetector("elbow", 5, 30);
+        // Starts at the top: the first descent is not a repetition.
+        assertThat(feed(detector, 3, FastMath.PI, 90, 0)).hasSize(2);
+    }
+
+    @Test
+    public void shouldResetCount() {
+        RepetitionDetector detector = new RepetitionDetector("elbow", 5, 30);
+        feed(detector, 2, 0, 90, 0);
+        detector.reset();
+        assertThat(detector.getCount()).isEqualTo(0);
+        assertThat(feed(detector, 1, 0, 90, 0)).hasSize(1);
+    }
+
+    /**
+     * Feeds a sinusoid angle = base + amplitude * (1 - cos(phase)) / 2, over the given number of cycles (plus a bit,
+     * so the last valley is confirmed).
+     */
+    private static List<Repetition> feed(RepetitionDetector detector, int cycles, double phase, double amplitude,
+                                         double base) {
+        List<Repetition> reps = new ArrayList<>();
+        int steps = 100;
+        for (int i = 0; i <= cycles * steps + steps / 4; ++i) {
+            double angle = base + amplitude * (1 - FastMath.cos(phase + 2 * FastMath.PI * i / steps)) / 2;
+            Repetition r = detector.update(angle, i * 10);
+            if (r != null)
+                reps.add(r);
+        }
+        return reps;
+    }
+}
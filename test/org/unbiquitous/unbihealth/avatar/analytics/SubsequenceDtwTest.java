@@ -0,0 +1,101 @@
+package org.unbiquitous.unbihealth.avatar.analytics;
+
+import org.apache.commons.math3.util.FastMath;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.data.Offset.offset;
+
+/**
+ * Test for {@link SubsequenceDtw}.
+ *
+ * @author Luciano Santos
+ */
+public class SubsequenceDtwTest {
+    private static final int REFERENCE_LENGTH = 20;
+
+    @Test
+    public void shouldMatchSlowerMovementInsideStream() {
+        SubsequenceDtw dtw = new SubsequenceDtw(sweep(90, REFERENCE_LENGTH), FastMath.toRadians(10), 40);
+        List<long[]> matches = feed(dtw, 90, 1);
+        assertThat(matches).hasSize(1);
+        assertThat(matches.get(0)[0]).isEqualTo(1150);
+        assertThat(matches.get(0)[1]).isEqualTo(1440);
+        assertThat(FastMath.toDegrees(dtw.getMatchDistance())).isEqualTo(1.7, offset(0.1));
+    }
+
+    @Test
+    public void shouldReportEachRepetitionOnce() {
+        SubsequenceDtw dtw = new SubsequenceDtw(sweep(90, REFERENCE_LENGTH), FastMath.toRadians(10), 40);
+        List<long[]> matches = feed(dtw, 90, 3);
+        assertThat(matches).hasSize(3);
+        assertThat(matches.get(1)[0]).isGreaterThan(matches.get(0)[1]);
+    }
+
+    @Test
+    public void shouldNotMatchIncompleteMovement() {
+        SubsequenceDtw dtw = new SubsequenceDtw(sweep(90, REFERENCE_LENGTH), FastMath.toRadians(10), 40);
+        assertThat(feed(dtw, 45, 1)).isEmpty();
+    }
+
+    @Test
+    public void shouldFallBackToPredecessorsWithinMaximumLength() {
+        double[] reference = sweep(90, 2);
+        SubsequenceDtw dtw = new SubsequenceDtw(reference, 0.1, 2);
+        assertThat(dtw.update(reference[0], reference[1], reference[2], reference[3], 0)).isFalse();
+        assertThat(dtw.update(reference[4], reference[5], reference[6], reference[7], 10)).isFalse();
+        // The cheapest path to the last cell starts too early now, but a slightly dearer one doesn't.
+        assertThat(dtw.update(reference[4], reference[5], reference[6], reference[7], 20)).isTrue();
+        assertThat(dtw.getMatchStart()).isEqualTo(0);
+        assertThat(dtw.getMatchEnd()).isEqualTo(10);
+        assertThat(dtw.getCurrentDistance()).isEqualTo(FastMath.PI / 4, offset(1e-9));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectWindowShorterThanReference() {
+        new SubsequenceDtw(sweep(90, REFERENCE_LENGTH), 0.1, REFERENCE_LENGTH - 1);
+    }
+
+    /**
+     * Feeds a stream of rest poses (far from the reference) and, in between, sweeps 1.5 times slower than the
+     * reference. Returns the start and end time of each match.
+     */
+    private static List<long[]> feed(SubsequenceDtw dtw, double top, int repetitions) {
+        List<long[]> matches = new ArrayList<>();
+        double[] rest = aboutZ(120);
+        double[] sweep = sweep(top, 30);
+        long time = 1000;
+        for (int r = 0; r < repetitions; ++r) {
+            for (int i = 0; i < 15; ++i, time += 10)
+                feed(dtw, rest, 0, time, matches);
+            for (int i = 0; i < 30; ++i, time += 10)
+                feed(dtw, sweep, i, time, matches);
+        }
+        for (int i = 0; i < 15; ++i, time += 10)
+            feed(dtw, rest, 0, time, matches);
+        return matches;
+    }
+
+    private static void feed(SubsequenceDtw dtw, double[] q, int i, long time, List<long[]> matches) {
+        if (dtw.update(q[4 * i], q[4 * i + 1], q[4 * i + 2], q[4 * i + 3], time))
+            matches.add(new long[]{dtw.getMatchStart(), dtw.getMatchEnd()});
+    }
+
+    private static double[] sweep(double top, int samples) {
+        double[] q = new double[4 * samples];
+        for (int i = 0; i < samples; ++i) {
+            double a = FastMath.toRadians(i * top / (samples - 1));
+            q[4 * i] = FastMath.cos(a / 2);
+            q[4 * i + 1] = FastMath.sin(a / 2);
+        }
+        return q;
+    }
+
+    private static double[] aboutZ(double degrees) {
+        double a = FastMath.toRadians(degrees);
+        return new double[]{FastMath.cos(a / 2), 0, 0, FastMath.sin(a / 2)};
+    }
+}
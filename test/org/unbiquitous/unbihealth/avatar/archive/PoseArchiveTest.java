@@ -0,0 +1,105 @@
+package org.unbiquitous.unbihealth.avatar.archive;
+
+import org.apache.commons.math3.util.FastMath;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.unbihealth.avatar.data.AvatarSkeleton;
+import org.unbiquitous.unbihealth.avatar.data.SkeletonTopology;
+import org.unbiquitous.unbihealth.avatar.data.Trajectory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.data.Offset.offset;
+
+/**
+ * Test for {@link PoseArchiveWriter} and {@link PoseArchiveReader}.
+ *
+ * @author Luciano Santos
+ */
+public class PoseArchiveTest {
+    private static final String SKELETON = "[{\"id\":\"trunk\"},{\"id\":\"arm\",\"parendId\":\"trunk\"},"
+            + "{\"id\":\"forearm\",\"parendId\":\"arm\"},{\"id\":\"leg\",\"parendId\":\"trunk\"}]";
+    private static final int FRAMES = 5000;
+
+    File file;
+    SkeletonTopology topology;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("poses", ".avpa");
+        topology = AvatarSkeleton.parse(SKELETON).getTopology();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void shouldRoundTrip() throws Exception {
+        record(false);
+        checkTrajectories();
+    }
+
+    @Test
+    public void shouldRoundTripDeflated() throws Exception {
+        record(true);
+        checkTrajectories();
+    }
+
+    @Test
+    public void shouldBeSmallerThanRawFrames() throws Exception {
+        record(true);
+        long raw = FRAMES * (8L + 32L * topology.size());
+        assertThat(file.length() * 4).isLessThan(raw);
+    }
+
+    private void record(boolean deflate) throws Exception {
+        try (PoseArchiveWriter writer = new PoseArchiveWriter(new FileOutputStream(file), topology, 512, deflate)) {
+            double[] pose = new double[4 * topology.size()];
+            for (int f = 0; f < FRAMES; ++f) {
+                for (int b = 0; b < topology.size(); ++b)
+                    put(pose, b, angle(b, f));
+                writer.append(1000 + 10L * f, pose);
+            }
+        }
+    }
+
+    private void checkTrajectories() throws Exception {
+        try (PoseArchiveReader reader = new PoseArchiveReader(file)) {
+            assertThat(reader.getFrameCount()).isEqualTo(FRAMES);
+            assertThat(reader.getBoneCount()).isEqualTo(topology.size());
+            int forearm = topology.indexOf("forearm");
+            assertThat(reader.getParent(forearm)).isEqualTo(topology.indexOf("arm"));
+
+            // A range crossing block boundaries.
+            Trajectory t = reader.readBone("forearm", 1000 + 10L * 500, 1000 + 10L * 1999);
+            assertThat(t.size()).isEqualTo(1500);
+            for (int i = 0; i < t.size(); ++i) {
+                int f = 500 + i;
+                assertThat(t.getTimestamp(i)).isEqualTo(1000 + 10L * f);
+                double a = angle(forearm, f);
+                // Sign may be flipped for continuity.
+                double dot = t.getRotations()[4 * i] * FastMath.cos(a / 2) + t.getRotations()[4 * i + 1] * FastMath.sin(a / 2);
+                double sign = dot < 0 ? -1 : 1;
+                assertThat(sign * t.getRotations()[4 * i]).isEqualTo(FastMath.cos(a / 2), offset(1e-4));
+                assertThat(sign * t.getRotations()[4 * i + 1]).isEqualTo(FastMath.sin(a / 2), offset(1e-4));
+            }
+            assertThat(reader.readBone("leg", 0, 999).size()).isEqualTo(0);
+        }
+    }
+
+    private static double angle(int bone, int frame) {
+        return FastMath.sin(frame / (50.0 + bone)) * (1 + bone);
+    }
+
+    private static void put(double[] pose, int slot, double angle) {
+        pose[4 * slot] = FastMath.cos(angle / 2);
+        pose[4 * slot + 1] = FastMath.sin(angle / 2);
+        pose[4 * slot + 2] = 0;
+        pose[4 * slot + 3] = 0;
+    }
+}
@@ -0,0 +1,52 @@
+package org.unbiquitous.unbihealth.avatar.data;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.apache.commons.math3.util.FastMath;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.data.Offset.offset;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link AvatarBone}.
+ *
+ * @author Luciano Santos
+ */
+public class AvatarBoneTest {
+    @Test
+    public void shouldCopyRotationRelativeToParent() throws Exception {
+        AvatarSkeleton skeleton = AvatarSkeleton.parse("[{\"id\":\"arm\"},{\"id\":\"forearm\",\"parendId\":\"arm\"}]");
+        skeleton.getBone("arm").setRotation(aboutX(FastMath.PI / 6));
+        skeleton.getBone("forearm").setRotation(aboutX(FastMath.PI / 2));
+
+        double[] out = new double[8];
+        skeleton.getBone("forearm").copyRotation(out, 4);
+        assertTrue(new Quaternion(out[4], out[5], out[6], out[7]).equals(aboutX(FastMath.PI / 3), 1e-12));
+        assertTrue(skeleton.getBone("forearm").getRotation().equals(aboutX(FastMath.PI / 3), 1e-12));
+    }
+
+    @Test
+    public void shouldNeverReturnTornRotations() throws Exception {
+        AvatarBone bone = new AvatarBone("arm", "sensor");
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            for (int t = 0; t < 200000; ++t)
+                bone.setRotation(aboutX((t % 360) * FastMath.PI / 180));
+            done.set(true);
+        });
+        writer.start();
+        double[] q = new double[4];
+        while (!done.get()) {
+            bone.copyRotation(q, 0);
+            assertThat(q[0] * q[0] + q[1] * q[1]).isEqualTo(1, offset(1e-12));
+        }
+        writer.join();
+    }
+
+    private static Quaternion aboutX(double angle) {
+        return new Quaternion(FastMath.cos(angle / 2), FastMath.sin(angle / 2), 0, 0);
+    }
+}
@@ -0,0 +1,63 @@
+package org.unbiquitous.unbihealth.avatar.data;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.apache.commons.math3.util.FastMath;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link Calibration}.
+ *
+ * @author Luciano Santos
+ */
+public class CalibrationTest {
+    private static final double EPSILON = 0.000000001;
+
+    @Test
+    public void shouldAlignMountingOffset() throws Exception {
+        AvatarSkeleton skeleton = AvatarSkeleton.parse("[{\"id\":\"arm\"},{\"id\":\"forearm\",\"parendId\":\"arm\"}]");
+        Quaternion mount = aboutAxis(0.3, 0.2, 0.9, 0.7);
+        Calibration calibration = new Calibration(0, 1000);
+        calibration.addSample(skeleton.getBone("forearm"), mount);
+        assertTrue(calibration.apply(skeleton) == 1);
+
+        AvatarBone forearm = skeleton.getBone("forearm");
+        forearm.setRotation(mount);
+        assertTrue(forearm.getRotation().equals(Quaternion.IDENTITY, EPSILON));
+
+        // Moving the sensor moves the segment by the same amount, in the world frame.
+        Quaternion move = aboutAxis(1, 0, 0, FastMath.PI / 3);
+        forearm.setRotation(Quaternion.multiply(move, mount));
+        assertTrue(forearm.getRotation().equals(move, EPSILON));
+    }
+
+    @Test
+    public void shouldAverageRobustly() throws Exception {
+        AvatarSkeleton skeleton = AvatarSkeleton.parse("[{\"id\":\"arm\"}]");
+        AvatarBone arm = skeleton.getBone("arm");
+        Quaternion mount = aboutAxis(0, 1, 0, 0.5);
+        Calibration calibration = new Calibration(0, 1000);
+        for (int i = 0; i < 50; ++i) {
+            double jitter = (i % 2 == 0 ? 1 : -1) * 0.01;
+            Quaternion q = Quaternion.multiply(aboutAxis(0, 0, 1, jitter), mount);
+            // Sign flips must not matter.
+            calibration.addSample(arm, i % 3 == 0 ? q.multiply(-1) : q);
+        }
+        calibration.addSample(arm, aboutAxis(1, 0, 0, 2));
+        Map<String, Quaternion> alignments = calibration.computeAlignments();
+        Quaternion residual = Quaternion.multiply(mount, alignments.get("arm"));
+        assertTrue(FastMath.abs(residual.getQ0()) > FastMath.cos(0.001));
+        assertFalse(calibration.isDone(999));
+        assertTrue(calibration.isDone(1000));
+    }
+
+    private static Quaternion aboutAxis(double x, double y, double z, double angle) {
+        double n = FastMath.sqrt(x * x + y * y + z * z);
+        double s = FastMath.sin(angle / 2) / n;
+        return new Quaternion(FastMath.cos(angle / 2), x * s, y * s, z * s);
+    }
+}
@@ -0,0 +1,77 @@
+package org.unbiquitous.unbihealth.avatar.data;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.apache.commons.math3.util.FastMath;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link LodProfile}.
+ *
+ * @author Luciano Santos
+ */
+public class LodProfileTest {
+    private static final double EPSILON = 1e-12;
+
+    AvatarSkeleton skeleton;
+
+    @Before
+    public void setUp() throws Exception {
+        skeleton = AvatarSkeleton.parse("[{\"id\":\"hips\"},{\"id\":\"spine\",\"parendId\":\"hips\"},"
+                + "{\"id\":\"neck\",\"parendId\":\"spine\"},{\"id\":\"head\",\"parendId\":\"neck\"},"
+                + "{\"id\":\"leg\",\"parendId\":\"hips\"},{\"id\":\"foot\",\"parendId\":\"leg\"}]");
+        skeleton.getBone("hips").setRotation(about(0.3, 1, 0, 0));
+        skeleton.getBone("spine").setRotation(about(0.7, 0, 1, 0));
+        skeleton.getBone("neck").setRotation(about(1.1, 0, 0, 1));
+        skeleton.getBone("head").setRotation(about(-0.4, 1, 1, 0));
+        skeleton.getBone("leg").setRotation(about(0.2, 0, 0, 1));
+        skeleton.getBone("foot").setRotation(about(0.9, 1, 0, 0));
+    }
+
+    @Test
+    public void shouldCollapseSkippedBonesIntoAncestors() {
+        LodProfile profile = LodProfile.compile("dashboard", skeleton.getTopology(), Arrays.asList("head", "foot", "x"));
+        assertThat(profile.size()).isEqualTo(3);
+        List<BoneData> structure = profile.toBoneData(skeleton);
+        assertThat(structure.get(0).getId()).isEqualTo("hips");
+        for (int k = 1; k < profile.size(); ++k)
+            assertThat(profile.getParent(k)).isEqualTo(0);
+
+        double[] pose = new double[4 * skeleton.getTopology().size()];
+        skeleton.copyPose(pose);
+        double[] reduced = new double[4 * profile.size()];
+        profile.project(pose, reduced);
+        for (int k = 0; k < profile.size(); ++k) {
+            AvatarBone bone = skeleton.getBone(profile.getId(k));
+            Quaternion expected = profile.getParent(k) < 0 ? bone.getRotation()
+                    : bone.getAbsoluteRotation().multiply(skeleton.getBone("hips").getAbsoluteRotation().getInverse());
+            Quaternion actual = new Quaternion(reduced[4 * k], reduced[4 * k + 1], reduced[4 * k + 2], reduced[4 * k + 3]);
+            assertTrue(profile.getId(k), actual.equals(expected, EPSILON));
+        }
+    }
+
+    @Test
+    public void shouldKeepFullSkeletonWhenAllBonesAreKept() {
+        SkeletonTopology topology = skeleton.getTopology();
+        String[] ids = new String[topology.size()];
+        for (int i = 0; i < ids.length; ++i)
+            ids[i] = topology.getId(i);
+        LodProfile profile = LodProfile.compile("full", topology, Arrays.asList(ids));
+        PoseData data = profile.project(skeleton, 10);
+        assertThat(data.getRotations()).hasSize(topology.size());
+        double[] head = data.getRotations().get("head");
+        assertTrue(new Quaternion(head[0], head[1], head[2], head[3]).equals(skeleton.getBone("head").getRotation(), EPSILON));
+    }
+
+    private static Quaternion about(double angle, double x, double y, double z) {
+        double n = FastMath.sqrt(x * x + y * y + z * z);
+        double s = FastMath.sin(angle / 2) / n;
+        return new Quaternion(FastMath.cos(angle / 2), x * s, y * s, z * s);
+    }
+}
@@ -0,0 +1,92 @@
+package org.unbiquitous.unbihealth.avatar.data;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.apache.commons.math3.util.FastMath;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.data.Offset.offset;
+
+/**
+ * Test for {@link PoseHistory}.
+ *
+ * @author Luciano Santos
+ */
+public class PoseHistoryTest {
+    AvatarSkeleton skeleton;
+    PoseHistory history;
+
+    @Before
+    public void setUp() throws Exception {
+        skeleton = AvatarSkeleton.parse("[{\"id\":\"arm\"},{\"id\":\"forearm\",\"parendId\":\"arm\"}]");
+        history = new PoseHistory(skeleton.getTopology(), 8);
+    }
+
+    @Test
+    public void shouldKeepOnlyLastPoses() {
+        for (int t = 0; t < 20; ++t)
+            record(t);
+        assertThat(history.size()).isEqualTo(8);
+        Trajectory arm = history.getTrajectory("arm", Long.MIN_VALUE, Long.MAX_VALUE);
+        assertThat(arm.size()).isEqualTo(8);
+        assertThat(arm.getTimestamp(0)).isEqualTo(12);
+        assertThat(arm.getTimestamp(7)).isEqualTo(19);
+        assertThat(arm.getRotation(7).getQ0()).isEqualTo(FastMath.cos(angle(19) / 2), offset(1e-12));
+    }
+
+    @Test
+    public void shouldQueryTimeRange() {
+        for (int t = 0; t < 6; ++t)
+            record(t * 10);
+        List<PoseData> poses = history.getPoses(10, 30);
+        assertThat(poses).hasSize(3);
+        assertThat(poses.get(0).getTimestamp()).isEqualTo(10);
+        assertThat(poses.get(2).getRotations().keySet()).containsExactly("arm", "forearm");
+        assertThat(history.getTrajectory("forearm", 31, 39).size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldSortOutOfOrderEntries() {
+        record(30);
+        record(10);
+        record(20);
+        Trajectory arm = history.getTrajectory("arm", 0, 100);
+        assertThat(arm.getTimestamps()).isEqualTo(new long[]{10, 20, 30});
+        assertThat(arm.getRotation(0).getQ0()).isEqualTo(FastMath.cos(angle(10) / 2), offset(1e-12));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownBone() {
+        history.getTrajectory("leg", 0, 100);
+    }
+
+    @Test
+    public void shouldNeverReturnTornPoses() throws Exception {
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            for (int t = 0; t < 200000; ++t)
+                record(t);
+            done.set(true);
+        });
+        writer.start();
+        while (!done.get())
+            for (PoseData pose : history.getPoses(Long.MIN_VALUE, Long.MAX_VALUE))
+                assertThat(pose.getRotations().get("arm")[0])
+                        .isEqualTo(FastMath.cos(angle(pose.getTimestamp()) / 2), offset(1e-12));
+        writer.join();
+    }
+
+    private void record(long t) {
+        double a = angle(t);
+        skeleton.getBone("arm").setRotation(new Quaternion(FastMath.cos(a / 2), FastMath.sin(a / 2), 0, 0));
+        history.record(skeleton, t);
+    }
+
+    private static double angle(long t) {
+        return (t % 360) * FastMath.PI / 180;
+    }
+}
@@ -0,0 +1,85 @@
+package org.unbiquitous.unbihealth.avatar.data;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.apache.commons.math3.util.FastMath;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link SkeletonSnapshot}.
+ *
+ * @author Luciano Santos
+ */
+public class SkeletonSnapshotTest {
+    private static final double EPSILON = 1e-12;
+    private static final String ARM = "[{\"id\":\"arm\",\"sensorId\":\"s1\"},"
+            + "{\"id\":\"forearm\",\"sensorId\":\"s2\",\"parendId\":\"arm\"}]";
+
+    File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("skeleton", ".avss");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void shouldRestoreSavedState() throws Exception {
+        AvatarSkeleton skeleton = AvatarSkeleton.parse(ARM);
+        skeleton.setSensorId("forearm", "s3");
+        skeleton.getBone("forearm").setAlignment(aboutX(FastMath.PI / 2));
+        skeleton.getBone("arm").setRotation(aboutX(FastMath.PI / 6));
+        skeleton.getBone("forearm").setRotation(aboutX(FastMath.PI / 4));
+        SkeletonSnapshot.of(skeleton, SkeletonSnapshot.hash(ARM), 42, Arrays.asList(
+                new SkeletonSnapshot.Binding("s1", "{\"name\":\"imu\"}", "driver"),
+                new SkeletonSnapshot.Binding("s3", null, null))).write(file);
+
+        SkeletonSnapshot snapshot = SkeletonSnapshot.read(file);
+        assertThat(snapshot.getSourceHash()).isEqualTo(SkeletonSnapshot.hash(ARM));
+        assertThat(snapshot.getTimestamp()).isEqualTo(42);
+        assertThat(snapshot.getBindings()).hasSize(2);
+        assertThat(snapshot.getBindings().get(0).getDevice()).isEqualTo("{\"name\":\"imu\"}");
+        assertThat(snapshot.getBindings().get(0).getInstanceId()).isEqualTo("driver");
+        assertThat(snapshot.getBindings().get(1).getDevice()).isNull();
+
+        AvatarSkeleton restored = snapshot.restore();
+        AvatarBone forearm = restored.getBone("forearm");
+        assertThat(forearm.getSensorId()).isEqualTo("s3");
+        assertThat(forearm.getParent().getId()).isEqualTo("arm");
+        assertTrue(forearm.getAlignment().equals(aboutX(FastMath.PI / 2), EPSILON));
+        assertTrue(restored.getBone("arm").getRotation().equals(aboutX(FastMath.PI / 6), EPSILON));
+        assertTrue(forearm.getRotation().equals(skeleton.getBone("forearm").getRotation(), EPSILON));
+        assertTrue(forearm.getAbsoluteRotation().equals(skeleton.getBone("forearm").getAbsoluteRotation(), EPSILON));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectOtherFiles() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[]{'A', 'V', 'P', 'A', 0, 0, 0, 1});
+        }
+        SkeletonSnapshot.read(file);
+    }
+
+    @Test
+    public void shouldHashConfigurations() {
+        assertThat(SkeletonSnapshot.hash(ARM)).isEqualTo(SkeletonSnapshot.hash(new String(ARM)));
+        assertThat(SkeletonSnapshot.hash(ARM)).isNotEqualTo(SkeletonSnapshot.hash(ARM.replace("s2", "s3")));
+    }
+
+    private static Quaternion aboutX(double angle) {
+        return new Quaternion(FastMath.cos(angle / 2), FastMath.sin(angle / 2), 0, 0);
+    }
+}
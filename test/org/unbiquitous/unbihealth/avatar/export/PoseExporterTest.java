@@ -0,0 +1,102 @@
+package org.unbiquitous.unbihealth.avatar.export;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.unbihealth.avatar.data.AvatarSkeleton;
+import org.unbiquitous.unbihealth.avatar.data.SkeletonTopology;
+
+import java.io.File;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Test for {@link PoseExporter} and {@link PoseReader}.
+ *
+ * @author Luciano Santos
+ */
+public class PoseExporterTest {
+    private static final String ARM = "[{\"id\":\"arm\"},{\"id\":\"forearm\",\"parendId\":\"arm\"}]";
+    private static final String ARM_HAND = "[{\"id\":\"arm\"},{\"id\":\"forearm\",\"parendId\":\"arm\"},"
+            + "{\"id\":\"hand\",\"parendId\":\"forearm\"},{\"id\":\"finger_with_a_long_name\",\"parendId\":\"hand\"}]";
+
+    File file;
+    PoseExporter exporter;
+    PoseReader reader;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("pose", ".bin");
+        exporter = new PoseExporter(file);
+        reader = new PoseReader(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        reader.close();
+        exporter.close();
+        file.delete();
+    }
+
+    @Test
+    public void shouldReadNothingBeforeFirstFrame() throws Exception {
+        assertThat(reader.poll(new double[8])).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldReadPublishedFrames() throws Exception {
+        AvatarSkeleton skeleton = AvatarSkeleton.parse(ARM);
+        skeleton.getBone("forearm").setRotation(new Quaternion(0, 1, 0, 0));
+        exporter.publish(skeleton, 1234);
+
+        double[] pose = new double[8];
+        assertThat(reader.poll(pose)).isEqualTo(1);
+        assertThat(reader.getTimestamp()).isEqualTo(1234);
+        assertThat(reader.getBoneCount()).isEqualTo(2);
+        SkeletonTopology topology = skeleton.getTopology();
+        int forearm = topology.indexOf("forearm");
+        assertThat(reader.getId(forearm)).isEqualTo("forearm");
+        assertThat(reader.getParent(forearm)).isEqualTo(topology.indexOf("arm"));
+        assertThat(pose[4 * forearm + 1]).isEqualTo(1);
+        assertThat(pose[4 * topology.indexOf("arm")]).isEqualTo(1);
+
+        // No new frame.
+        assertThat(reader.poll(pose)).isEqualTo(0);
+        exporter.publish(skeleton, 1235);
+        assertThat(reader.poll(pose)).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldFollowLayoutChanges() throws Exception {
+        exporter.publish(AvatarSkeleton.parse(ARM), 1);
+        double[] pose = new double[16];
+        reader.poll(pose);
+
+        AvatarSkeleton bigger = AvatarSkeleton.parse(ARM_HAND);
+        exporter.publish(bigger, 2);
+        assertThat(reader.poll(pose)).isEqualTo(2);
+        assertThat(reader.getBoneCount()).isEqualTo(4);
+        assertThat(reader.getId(3)).isEqualTo(bigger.getTopology().getId(3));
+    }
+
+    @Test
+    public void shouldTakeOverExistingFileWithoutTruncating() throws Exception {
+        AvatarSkeleton skeleton = AvatarSkeleton.parse(ARM_HAND);
+        exporter.publish(skeleton, 1);
+        double[] pose = new double[16];
+        assertThat(reader.poll(pose)).isEqualTo(1);
+        exporter.close();
+        long size = file.length();
+
+        // The reader keeps its mapping while a new writer takes over.
+        exporter = new PoseExporter(file);
+        assertThat(file.length()).isEqualTo(size);
+        assertThat(reader.poll(pose)).isEqualTo(0);
+        exporter.publish(AvatarSkeleton.parse(ARM), 2);
+        assertThat(file.length()).isEqualTo(size);
+        assertThat(reader.poll(pose)).isEqualTo(1);
+        assertThat(reader.getTimestamp()).isEqualTo(2);
+        assertThat(reader.getBoneCount()).isEqualTo(2);
+    }
+}
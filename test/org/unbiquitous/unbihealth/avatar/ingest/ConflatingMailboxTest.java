@@ -0,0 +1,80 @@
+package org.unbiquitous.unbihealth.avatar.ingest;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Test for {@link ConflatingMailbox}.
+ *
+ * @author Luciano Santos
+ */
+public class ConflatingMailboxTest {
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private final List<String> delivered = new ArrayList<>();
+    private final ConflatingMailbox<String> mailbox =
+            new ConflatingMailbox<>(3, tasks::add, (slot, value) -> delivered.add(slot + "=" + value));
+
+    @Test
+    public void shouldDeliverOnlyNewestValuePerSlot() {
+        mailbox.offer(2, "a");
+        mailbox.offer(0, "b");
+        mailbox.offer(2, "c");
+        assertThat(tasks).hasSize(1);
+
+        runAll();
+        assertThat(delivered).containsExactly("0=b", "2=c");
+        assertThat(mailbox.getOffered()).isEqualTo(3);
+        assertThat(mailbox.getConflated()).isEqualTo(1);
+        assertThat(mailbox.getDelivered()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldRescheduleAfterDrain() {
+        mailbox.offer(1, "a");
+        runAll();
+        mailbox.offer(1, "b");
+        assertThat(tasks).hasSize(1);
+        runAll();
+        assertThat(delivered).containsExactly("1=a", "1=b");
+    }
+
+    @Test
+    public void shouldShareCountersWhenResized() {
+        mailbox.offer(0, "a");
+        ConflatingMailbox<String> bigger = mailbox.resize(5);
+        bigger.offer(4, "b");
+        runAll();
+        assertThat(bigger.capacity()).isEqualTo(5);
+        assertThat(delivered).containsExactly("0=a", "4=b");
+        assertThat(bigger.getDelivered()).isEqualTo(2);
+        assertThat(mailbox.getOffered()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldDropValuesOnceExecutorRejectsDrains() {
+        AtomicInteger attempts = new AtomicInteger();
+        ConflatingMailbox<String> closed = new ConflatingMailbox<>(3, task -> {
+            attempts.incrementAndGet();
+            throw new RejectedExecutionException();
+        }, (slot, value) -> delivered.add(slot + "=" + value));
+        assertThat(closed.offer(0, "a")).isFalse();
+        assertThat(closed.offer(0, "b")).isFalse();
+        assertThat(attempts.get()).isEqualTo(2);
+        assertThat(closed.getConflated()).isEqualTo(0);
+        assertThat(delivered).isEmpty();
+    }
+
+    private void runAll() {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+            task.run();
+    }
+}
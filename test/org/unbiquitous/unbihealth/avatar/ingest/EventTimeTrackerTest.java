@@ -0,0 +1,66 @@
+package org.unbiquitous.unbihealth.avatar.ingest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.unbihealth.avatar.data.AvatarSkeleton;
+import org.unbiquitous.unbihealth.avatar.data.SkeletonTopology;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Test for {@link EventTimeTracker} and {@link ClockOffsetEstimator}.
+ *
+ * @author Luciano Santos
+ */
+public class EventTimeTrackerTest {
+    SkeletonTopology topology;
+
+    @Before
+    public void setUp() throws Exception {
+        topology = AvatarSkeleton.parse("[{\"id\":\"arm\"},{\"id\":\"forearm\",\"parendId\":\"arm\"}]").getTopology();
+    }
+
+    @Test
+    public void shouldDiscardLateSamplesPerSlot() {
+        EventTimeTracker tracker = new EventTimeTracker(topology);
+        assertThat(tracker.accept(0, 100)).isTrue();
+        assertThat(tracker.accept(0, 90)).isFalse();
+        assertThat(tracker.accept(1, 90)).isTrue();
+        assertThat(tracker.accept(0, 100)).isTrue();
+        assertThat(tracker.getLate()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldKeepTimesWhenRetargeted() throws Exception {
+        EventTimeTracker tracker = new EventTimeTracker(topology);
+        tracker.accept(topology.indexOf("forearm"), 100);
+        SkeletonTopology next = AvatarSkeleton.parse("[{\"id\":\"trunk\"},{\"id\":\"arm\",\"parendId\":\"trunk\"},"
+                + "{\"id\":\"forearm\",\"parendId\":\"arm\"}]").getTopology();
+        EventTimeTracker retargeted = tracker.retarget(next);
+        assertThat(retargeted.accept(next.indexOf("forearm"), 50)).isFalse();
+        assertThat(retargeted.accept(next.indexOf("trunk"), 50)).isTrue();
+        assertThat(tracker.getLate()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldEstimateClockOffsetFromMinimumDelay() {
+        ClockOffsetEstimator clock = new ClockOffsetEstimator(0);
+        // Remote clock is 1000 ms behind; delays vary from 2 to 30 ms.
+        long[] delays = {30, 12, 2, 25, 9};
+        for (int i = 0; i < delays.length; ++i)
+            clock.update(i * 100, i * 100 + 1000 + delays[i]);
+        assertThat(clock.getOffset()).isEqualTo(1002);
+        assertThat(clock.toLocal(500)).isEqualTo(1502);
+    }
+
+    @Test
+    public void shouldFollowDrift() {
+        ClockOffsetEstimator clock = new ClockOffsetEstimator(1e-3);
+        clock.update(0, 1000);
+        // A fast outlier, then the remote clock slows down by 10 ms.
+        clock.update(100, 1095);
+        for (long t = 200; t <= 20000; t += 100)
+            clock.update(t, t + 1010);
+        assertThat(clock.getOffset()).isEqualTo(1010);
+    }
+}
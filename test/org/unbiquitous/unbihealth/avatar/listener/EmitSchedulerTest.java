@@ -0,0 +1,129 @@
+package org.unbiquitous.unbihealth.avatar.listener;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.apache.commons.math3.util.FastMath;
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.unbihealth.avatar.data.AvatarBone;
+import org.unbiquitous.unbihealth.avatar.data.AvatarSkeleton;
+import org.unbiquitous.unbihealth.avatar.data.BoneData;
+
+import java.util.Arrays;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.data.Offset.offset;
+
+/**
+ * Test for {@link EmitScheduler}.
+ *
+ * @author Luciano Santos
+ */
+public class EmitSchedulerTest {
+    EmitScheduler scheduler;
+    AvatarSkeleton skeleton;
+    AvatarBone arm;
+
+    @Before
+    public void setUp() {
+        scheduler = new EmitScheduler(20, 1, 5, 90);
+        skeleton = AvatarSkeleton.of(Arrays.asList(new BoneData("arm", "1"), new BoneData("forearm", "2", "arm")));
+        arm = skeleton.getBone("arm");
+    }
+
+    @Test
+    public void shouldSendHeartbeatsWhileIdle() {
+        int sent = 0;
+        for (long t = 0; t <= 2000; t += 10)
+            if (scheduler.shouldEmit(skeleton, t))
+                ++sent;
+        assertThat(sent).isEqualTo(3);
+        assertThat(scheduler.getSpeed()).isEqualTo(0);
+        assertThat(scheduler.getRate()).isEqualTo(1);
+        assertThat(scheduler.getSuppressed()).isEqualTo(198);
+    }
+
+    @Test
+    public void shouldRaiseRateAsSoonAsMotionStarts() {
+        long t = 0;
+        for (; t < 500; t += 10)
+            scheduler.shouldEmit(skeleton, t);
+        long before = scheduler.getEmitted();
+
+        // Half a turn per second, for a second: at the maximum rate within 100 ms.
+        int sent = 0;
+        for (long start = t; t < start + 1000; t += 10) {
+            arm.setRotation(aboutX(FastMath.PI * (t - start) / 1000));
+            if (scheduler.shouldEmit(skeleton, t))
+                ++sent;
+            if (t == start + 100)
+                assertThat(scheduler.getRate()).isEqualTo(20);
+        }
+        assertThat(before).isEqualTo(1);
+        assertThat(scheduler.getSpeed()).isGreaterThan(90);
+        assertThat(scheduler.getRate()).isEqualTo(20);
+        assertThat(sent).isEqualTo(19);
+
+        // Once it stops, back to heartbeats.
+        for (long stop = t; t < stop + EmitScheduler.STALE_AFTER + 100; t += 10)
+            scheduler.shouldEmit(skeleton, t);
+        assertThat(scheduler.getRate()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldMeasureFirstMovementAfterStillPeriod() {
+        // Still, but sampled, for two seconds.
+        long t = 0;
+        for (; t <= 2000; t += 10) {
+            arm.setRotation(Quaternion.IDENTITY);
+            scheduler.shouldEmit(skeleton, t);
+        }
+        assertThat(scheduler.getSpeed()).isEqualTo(0);
+
+        // 9 degrees in the next 50 ms: 180 degrees per second, halved by smoothing, not spread over the still period.
+        t = 2050;
+        arm.setRotation(aboutX(FastMath.toRadians(9)));
+        scheduler.shouldEmit(skeleton, t);
+        assertThat(scheduler.getSpeed()).isEqualTo(90, offset(1e-6));
+    }
+
+    @Test
+    public void shouldIgnoreBonesWithoutNewSamples() {
+        scheduler.shouldEmit(skeleton, 0);
+        arm.setRotation(aboutX(FastMath.toRadians(9)));
+        scheduler.shouldEmit(skeleton, 50);
+        assertThat(scheduler.getSpeed()).isGreaterThan(0);
+
+        // The last rotation is kept, but no new samples arrive.
+        scheduler.shouldEmit(skeleton, 50 + EmitScheduler.STALE_AFTER);
+        assertThat(scheduler.getSpeed()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldInterpolateBetweenRates() {
+        scheduler.shouldEmit(skeleton, 0);
+        // 45 degrees per second, halfway from idle to motion speed, then steady.
+        for (long t = 100; t <= 2000; t += 100) {
+            arm.setRotation(aboutX(FastMath.toRadians(45.0 * t / 1000)));
+            scheduler.shouldEmit(skeleton, t);
+        }
+        assertThat(scheduler.getSpeed()).isEqualTo(45, offset(1e-3));
+        assertThat(scheduler.getRate()).isEqualTo(1 + 19 * 40.0 / 85, offset(1e-3));
+    }
+
+    @Test
+    public void shouldStartOverWithNewSkeleton() {
+        assertThat(scheduler.shouldEmit(skeleton, 0)).isTrue();
+        assertThat(scheduler.shouldEmit(skeleton, 10)).isFalse();
+        AvatarSkeleton other = AvatarSkeleton.of(Arrays.asList(new BoneData("arm", "1")));
+        assertThat(scheduler.shouldEmit(other, 20)).isTrue();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectMaxRateBelowHeartbeat() {
+        new EmitScheduler(1, 2, 5, 90);
+    }
+
+    private static Quaternion aboutX(double angle) {
+        return new Quaternion(FastMath.cos(angle / 2), FastMath.sin(angle / 2), 0, 0);
+    }
+}
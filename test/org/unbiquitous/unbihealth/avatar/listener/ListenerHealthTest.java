@@ -0,0 +1,57 @@
+package org.unbiquitous.unbihealth.avatar.listener;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Test for {@link ListenerHealth}.
+ *
+ * @author Luciano Santos
+ */
+public class ListenerHealthTest {
+    @Test
+    public void shouldOpenAfterConsecutiveFailures() {
+        ListenerHealth health = new ListenerHealth(3, 100, 1000, 10000);
+        health.onFailure(0, 0);
+        health.onSuccess(0);
+        health.onFailure(1, 0);
+        health.onFailure(2, 0);
+        assertThat(health.getState()).isEqualTo(ListenerHealth.State.CLOSED);
+        health.onFailure(3, 0);
+        assertThat(health.getState()).isEqualTo(ListenerHealth.State.OPEN);
+        assertThat(health.allow(50)).isFalse();
+    }
+
+    @Test
+    public void shouldProbeWithExponentialBackoff() {
+        ListenerHealth health = new ListenerHealth(1, 100, 300, 10000);
+        health.onFailure(0, 0);
+        assertThat(health.getNextProbe()).isEqualTo(100);
+
+        assertThat(health.allow(100)).isTrue();
+        assertThat(health.getState()).isEqualTo(ListenerHealth.State.HALF_OPEN);
+        assertThat(health.allow(100)).isFalse();
+        health.onFailure(100, 0);
+        assertThat(health.getNextProbe()).isEqualTo(300);
+
+        assertThat(health.allow(300)).isTrue();
+        health.onFailure(300, 0);
+        assertThat(health.getNextProbe()).isEqualTo(600);
+
+        assertThat(health.allow(600)).isTrue();
+        health.onSuccess(0);
+        assertThat(health.getState()).isEqualTo(ListenerHealth.State.CLOSED);
+        assertThat(health.allow(601)).isTrue();
+    }
+
+    @Test
+    public void shouldEvictAfterLongOutage() {
+        ListenerHealth health = new ListenerHealth(1, 100, 1000, 5000);
+        assertThat(health.shouldEvict(100000)).isFalse();
+        health.onFailure(1000, 0);
+        assertThat(health.shouldEvict(5999)).isFalse();
+        assertThat(health.shouldEvict(6000)).isTrue();
+        assertThat(health.toMetrics().get("failureRate")).isEqualTo(1.0);
+    }
+}
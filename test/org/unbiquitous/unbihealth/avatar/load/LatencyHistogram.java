@@ -0,0 +1,67 @@
+package org.unbiquitous.unbihealth.avatar.load;
+
+/**
+ * Log-linear latency histogram: 64 linear sub-buckets per power of two, i.e., values are recorded with at most ~1.6%
+ * error, in constant memory.
+ *
+ * @author Luciano Santos
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB_COUNT];
+    private long total;
+    private long max;
+
+    /**
+     * @param value The value to record (negative values are recorded as 0).
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts[index(value)]++;
+        total++;
+        max = Math.max(max, value);
+    }
+
+    private static int index(long value) {
+        // Values below 2 * SUB_COUNT are exact; above, keeps the SUB_BITS bits after the leading one.
+        if (value < 2 * SUB_COUNT)
+            return (int) value;
+        int shift = 64 - Long.numberOfLeadingZeros(value) - (SUB_BITS + 1);
+        return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    private static long lowest(int index) {
+        if (index < 2 * SUB_COUNT)
+            return index;
+        int shift = index / SUB_COUNT - 1;
+        return (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+    }
+
+    /**
+     * @param percentile The percentile, from 0 to 100.
+     * @return The (approximate, bucket lower bound) value at the percentile, or 0 if nothing was recorded.
+     */
+    public long percentile(double percentile) {
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(percentile / 100 * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank))
+                return lowest(i);
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return total;
+    }
+
+    public long getMax() {
+        return max;
+    }
+}
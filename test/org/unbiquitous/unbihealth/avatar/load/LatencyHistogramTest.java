@@ -0,0 +1,22 @@
+package org.unbiquitous.unbihealth.avatar.load;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Test for {@link LatencyHistogram}.
+ *
+ * @author Luciano Santos
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void histogramShouldBeAccurate() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 100000; ++v)
+            histogram.record(v * 1000);
+        assertThat((double) histogram.percentile(50)).isGreaterThan(0.98 * 50000000).isLessThanOrEqualTo(50000000);
+        assertThat((double) histogram.percentile(99)).isGreaterThan(0.98 * 99000000).isLessThanOrEqualTo(99000000);
+        assertThat(histogram.getMax()).isEqualTo(100000000);
+    }
+}
@@ -0,0 +1,251 @@
+package org.unbiquitous.unbihealth.avatar.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.math3.complex.Quaternion;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.unbiquitous.unbihealth.avatar.AvatarDriver;
+import org.unbiquitous.unbihealth.avatar.data.BoneData;
+import org.unbiquitous.unbihealth.imu.IMUDriver;
+import org.unbiquitous.unbihealth.imu.SensorData;
+import org.unbiquitous.uos.core.InitialProperties;
+import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;
+import org.unbiquitous.uos.core.applicationManager.CallContext;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+import org.unbiquitous.uos.core.network.model.NetworkDevice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Local stand-in for IMU devices: fabricates {@link IMUDriver} change events and drives an {@link AvatarDriver} with
+ * them, through a stub {@link Gateway} that records when each notification reaches each listener.
+ * <p>
+ * Load is open loop: every sample has a scheduled send time and latency is measured from it (not from when it was
+ * actually handed to the driver), so a driver that falls behind shows up as latency instead of as a slower
+ * generator. Run {@link #main(String[])} for soak tests.
+ * <p>
+ * Given a number of {@link Config#events}, samples are instead sent back to back, without waiting, and latency is
+ * measured from when each is handed to the driver.
+ *
+ * @author Luciano Santos
+ */
+public class SyntheticIMULoad {
+    /**
+     * Load settings.
+     */
+    public static class Config {
+        /**
+         * Number of sensors (and bones).
+         */
+        public int sensors = 16;
+        /**
+         * Samples per second, per sensor.
+         */
+        public double rate = 100;
+        /**
+         * Random variation of each period, as a fraction of it.
+         */
+        public double jitter = 0.1;
+        /**
+         * Probability that a sample comes as a burst (e.g., after a network stall).
+         */
+        public double burstiness = 0;
+        /**
+         * Samples per burst.
+         */
+        public int burstSize = 10;
+        /**
+         * Number of listeners (notification fan-out).
+         */
+        public int listeners = 1;
+        public long durationMillis = 10000;
+        /**
+         * If positive, the exact number of samples to send, as fast as possible, instead of running for
+         * <code>durationMillis</code>.
+         */
+        public long events = 0;
+        public long seed = 42;
+    }
+
+    /**
+     * Measurements of a run.
+     */
+    public static class Result {
+        public long samples;
+        public long notifications;
+        public double seconds;
+        public LatencyHistogram latency = new LatencyHistogram();
+
+        /**
+         * @return Samples handled per second.
+         */
+        public double getThroughput() {
+            return samples / seconds;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("samples=%d notifications=%d throughput=%.0f/s latency(us) p50=%.1f p99=%.1f p999=%.1f max=%.1f",
+                    samples, notifications, getThroughput(), latency.percentile(50) / 1e3, latency.percentile(99) / 1e3,
+                    latency.percentile(99.9) / 1e3, latency.getMax() / 1e3);
+        }
+    }
+
+    private final Config config;
+    private final Random random;
+    private final double[][] orientations;
+    private long scheduled;
+    private Result result;
+
+    public SyntheticIMULoad(Config config) {
+        this.config = config;
+        this.random = new Random(config.seed);
+        this.orientations = new double[config.sensors][];
+        for (int i = 0; i < config.sensors; ++i)
+            orientations[i] = new double[]{1, 0, 0, 0};
+    }
+
+    /**
+     * Creates a driver with one bone per sensor (sensor "s0" is the root, all others its children), registers the
+     * listeners and runs the load.
+     *
+     * @return The measurements.
+     * @throws Exception If the driver could not be set up.
+     */
+    public Result run() throws Exception {
+        result = new Result();
+        Gateway gateway = mock(Gateway.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                result.latency.record(System.nanoTime() - scheduled);
+                result.notifications++;
+                return null;
+            }
+        }).when(gateway).notify(any(Notify.class), any(UpDevice.class));
+
+        AvatarDriver driver = new AvatarDriver();
+        InitialProperties props = new InitialProperties();
+        props.put(AvatarDriver.SKELETON_KEY, skeleton());
+        driver.init(gateway, props, "load");
+        for (int i = 0; i < config.listeners; ++i)
+            driver.registerListener(null, null, listener(i));
+
+        boolean paced = config.events <= 0;
+        PriorityQueue<long[]> schedule = new PriorityQueue<>(config.sensors, (a, b) -> Long.compare(a[0], b[0]));
+        long period = (long) (1e9 / config.rate);
+        long start = System.nanoTime();
+        long wallStart = System.currentTimeMillis();
+        long end = start + config.durationMillis * 1000000L;
+        for (int i = 0; i < config.sensors; ++i)
+            schedule.add(new long[]{start + (long) (random.nextDouble() * period), i});
+
+        while (paced || result.samples < config.events) {
+            long[] next = schedule.poll();
+            if (paced && next[0] >= end)
+                break;
+            if (paced)
+                waitUntil(next[0]);
+            int sensor = (int) next[1];
+            int count = random.nextDouble() < config.burstiness ? config.burstSize : 1;
+            if (!paced)
+                count = (int) Math.min(count, config.events - result.samples);
+            // Event time is the scheduled time, so each sensor's samples are in order, whatever the wall clock does.
+            long timestamp = wallStart + (next[0] - start) / 1000000;
+            for (int k = 0; k < count; ++k) {
+                scheduled = paced ? next[0] : System.nanoTime();
+                driver.handleEvent(createNotify(sample(sensor, timestamp)));
+                result.samples++;
+            }
+            next[0] += (long) (count * period * (1 + config.jitter * (2 * random.nextDouble() - 1)));
+            schedule.add(next);
+        }
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        driver.destroy();
+        return result;
+    }
+
+    private String skeleton() throws Exception {
+        List<BoneData> bones = new ArrayList<>();
+        bones.add(new BoneData("b0", "s0"));
+        for (int i = 1; i < config.sensors; ++i)
+            bones.add(new BoneData("b" + i, "s" + i, "b0"));
+        return new ObjectMapper().writeValueAsString(bones);
+    }
+
+    private static CallContext listener(int i) {
+        NetworkDevice networkDevice = mock(NetworkDevice.class);
+        when(networkDevice.getNetworkDeviceName()).thenReturn("Ethernet:10.0." + (i / 256) + "." + (i % 256));
+        when(networkDevice.getNetworkDeviceType()).thenReturn("Ethernet");
+        CallContext context = mock(CallContext.class);
+        when(context.getCallerNetworkDevice()).thenReturn(networkDevice);
+        when(context.getCallerDevice()).thenReturn(new UpDevice("listener" + i));
+        return context;
+    }
+
+    /**
+     * Fabricates the next sample of a sensor.
+     *
+     * @param sensor    The index of the sensor.
+     * @param timestamp The sample's timestamp.
+     * @return The sample.
+     */
+    SensorData sample(int sensor, long timestamp) {
+        // Random walk, so rotations change smoothly (and stay valid).
+        double[] q = orientations[sensor];
+        double norm = 0;
+        for (int k = 0; k < 4; ++k) {
+            q[k] += 0.02 * random.nextGaussian();
+            norm += q[k] * q[k];
+        }
+        norm = Math.sqrt(norm);
+        for (int k = 0; k < 4; ++k)
+            q[k] /= norm;
+
+        SensorData data = new SensorData();
+        data.setId("s" + sensor);
+        data.setQuaternion(new Quaternion(q[0], q[1], q[2], q[3]));
+        data.setTimestamp(timestamp);
+        return data;
+    }
+
+    private static Notify createNotify(SensorData data) {
+        return new Notify(IMUDriver.CHANGE_EVENT_NAME, IMUDriver.DRIVER_NAME)
+                .addParameter(IMUDriver.CHANGE_NEW_DATA_PARAM_NAME, data);
+    }
+
+    private static void waitUntil(long time) {
+        long delta;
+        while ((delta = time - System.nanoTime()) > 0) {
+            if (delta > 100000)
+                LockSupport.parkNanos(delta - 50000);
+        }
+    }
+
+    /**
+     * Runs a soak test. Arguments (all optional): sensors, rate (Hz), duration (s), listeners, burstiness, jitter.
+     */
+    public static void main(String[] args) throws Exception {
+        Config config = new Config();
+        if (args.length > 0)
+            config.sensors = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            config.rate = Double.parseDouble(args[1]);
+        if (args.length > 2)
+            config.durationMillis = (long) (Double.parseDouble(args[2]) * 1000);
+        if (args.length > 3)
+            config.listeners = Integer.parseInt(args[3]);
+        if (args.length > 4)
+            config.burstiness = Double.parseDouble(args[4]);
+        if (args.length > 5)
+            config.jitter = Double.parseDouble(args[5]);
+        System.out.println(new SyntheticIMULoad(config).run());
+    }
+}
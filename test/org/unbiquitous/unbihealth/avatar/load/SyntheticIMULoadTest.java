@@ -0,0 +1,40 @@
+package org.unbiquitous.unbihealth.avatar.load;
+
+import org.junit.Test;
+import org.unbiquitous.unbihealth.imu.SensorData;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.data.Offset.offset;
+
+/**
+ * Test for {@link SyntheticIMULoad}, with a fixed number of events, so nothing depends on the wall clock.
+ *
+ * @author Luciano Santos
+ */
+public class SyntheticIMULoadTest {
+    @Test
+    public void shouldFabricateUnitQuaternionsForConfiguredSensors() {
+        SyntheticIMULoad.Config config = new SyntheticIMULoad.Config();
+        config.sensors = 5;
+        SyntheticIMULoad load = new SyntheticIMULoad(config);
+        for (int k = 0; k < 1000; ++k) {
+            SensorData data = load.sample(k % config.sensors, k);
+            assertThat(data.getId()).isEqualTo("s" + (k % config.sensors));
+            assertThat(data.getQuaternion().getNorm()).isEqualTo(1, offset(1e-12));
+            assertThat(data.getTimestamp()).isEqualTo(k);
+        }
+    }
+
+    @Test
+    public void shouldNotifyEveryListenerOfEverySample() throws Exception {
+        SyntheticIMULoad.Config config = new SyntheticIMULoad.Config();
+        config.sensors = 4;
+        config.listeners = 3;
+        config.burstiness = 0.2;
+        config.events = 500;
+        SyntheticIMULoad.Result result = new SyntheticIMULoad(config).run();
+        assertThat(result.samples).isEqualTo(500);
+        assertThat(result.notifications).isEqualTo(1500);
+        assertThat(result.latency.getCount()).isEqualTo(1500);
+    }
+}
@@ -0,0 +1,148 @@
+package org.unbiquitous.unbihealth.avatar.local;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.apache.commons.math3.util.FastMath;
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.unbihealth.avatar.data.AvatarSkeleton;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.data.Offset.offset;
+
+/**
+ * Test for {@link PosePublisher}.
+ *
+ * @author Luciano Santos
+ */
+public class PosePublisherTest {
+    AvatarSkeleton skeleton;
+    PosePublisher publisher;
+    Recorder recorder;
+
+    @Before
+    public void setUp() throws Exception {
+        skeleton = AvatarSkeleton.parse("[{\"id\":\"arm\"},{\"id\":\"forearm\",\"parendId\":\"arm\"}]");
+        publisher = new PosePublisher(Runnable::run);
+        recorder = new Recorder();
+        publisher.subscribe(recorder);
+    }
+
+    @Test
+    public void shouldDeliverOnlyWhatWasRequested() {
+        publish(10, 0.1);
+        assertThat(recorder.timestamps).isEmpty();
+
+        recorder.subscription.request(2);
+        publish(20, 0.2);
+        publish(30, 0.3);
+        publish(40, 0.4);
+        assertThat(recorder.timestamps).containsExactly(10L, 20L);
+    }
+
+    @Test
+    public void shouldKeepOnlyNewestPoseWithoutDemand() {
+        publish(10, 0.1);
+        publish(20, 0.2);
+        publish(30, 0.3);
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertThat(recorder.timestamps).containsExactly(30L);
+        assertThat(recorder.sequences).containsExactly(3L);
+        assertThat(recorder.angles.get(0)).isEqualTo(0.3, offset(1e-12));
+        assertThat(recorder.subscription.getDropped()).isEqualTo(2);
+
+        publish(40, 0.4);
+        assertThat(recorder.timestamps).containsExactly(30L, 40L);
+        assertThat(recorder.frames.get(0)).isSameAs(recorder.frames.get(1));
+    }
+
+    @Test
+    public void shouldFailOnInvalidRequest() {
+        recorder.subscription.request(0);
+        assertThat(recorder.error).isInstanceOf(IllegalArgumentException.class);
+        assertThat(publisher.hasSubscribers()).isFalse();
+    }
+
+    @Test
+    public void shouldStopOnCancelAndComplete() {
+        Recorder other = new Recorder();
+        publisher.subscribe(other);
+        recorder.subscription.request(10);
+        recorder.subscription.cancel();
+        publish(10, 0.1);
+        assertThat(recorder.timestamps).isEmpty();
+
+        publisher.close();
+        assertThat(other.completed).isTrue();
+        assertThat(recorder.completed).isFalse();
+    }
+
+    @Test
+    public void shouldNotDeliverAfterClose() {
+        publish(10, 0.1);
+        publisher.close();
+        assertThat(recorder.completed).isTrue();
+
+        recorder.subscription.request(1);
+        assertThat(recorder.timestamps).isEmpty();
+    }
+
+    @Test
+    public void shouldCompleteInSubscriptionExecutor() {
+        List<Runnable> tasks = new ArrayList<>();
+        Recorder queued = new Recorder();
+        publisher.subscribe(queued, tasks::add);
+        queued.subscription.request(1);
+        publish(10, 0.1);
+        assertThat(tasks).hasSize(1);
+
+        publisher.close();
+        assertThat(queued.completed).isFalse();
+        assertThat(tasks).hasSize(1);
+
+        tasks.get(0).run();
+        assertThat(queued.timestamps).isEmpty();
+        assertThat(queued.completed).isTrue();
+    }
+
+    private void publish(long timestamp, double angle) {
+        skeleton.getBone("arm").setRotation(new Quaternion(FastMath.cos(angle / 2), FastMath.sin(angle / 2), 0, 0));
+        publisher.publish(skeleton, timestamp);
+    }
+
+    private static class Recorder implements PoseSubscriber {
+        PoseSubscription subscription;
+        List<Long> timestamps = new ArrayList<>();
+        List<Long> sequences = new ArrayList<>();
+        List<Double> angles = new ArrayList<>();
+        List<PoseFrame> frames = new ArrayList<>();
+        Throwable error;
+        boolean completed;
+
+        @Override
+        public void onSubscribe(PoseSubscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(PoseFrame frame) {
+            int arm = frame.getTopology().indexOf("arm");
+            timestamps.add(frame.getTimestamp());
+            sequences.add(frame.getSequence());
+            angles.add(2 * FastMath.atan2(frame.getX(arm), frame.getW(arm)));
+            frames.add(frame);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
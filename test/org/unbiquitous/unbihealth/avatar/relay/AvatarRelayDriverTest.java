@@ -0,0 +1,212 @@
+package org.unbiquitous.unbihealth.avatar.relay;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.unbiquitous.unbihealth.avatar.AvatarDriver;
+import org.unbiquitous.unbihealth.avatar.data.PoseData;
+import org.unbiquitous.unbihealth.imu.IMUDriver;
+import org.unbiquitous.unbihealth.imu.SensorData;
+import org.unbiquitous.uos.core.InitialProperties;
+import org.unbiquitous.uos.core.adaptabitilyEngine.SmartSpaceGateway;
+import org.unbiquitous.uos.core.applicationManager.CallContext;
+import org.unbiquitous.uos.core.driverManager.DriverData;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.Call;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+import org.unbiquitous.uos.core.messageEngine.messages.Response;
+import org.unbiquitous.uos.core.network.model.NetworkDevice;
+
+import java.util.*;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test for {@link AvatarRelayDriver}.
+ *
+ * @author Luciano Santos
+ */
+public class AvatarRelayDriverTest {
+    SmartSpaceGateway gateway;
+    AvatarRelayDriver relay;
+    InitialProperties props;
+    UpDevice dashboard1;
+    UpDevice dashboard2;
+
+    @Before
+    public void setUp() {
+        gateway = mock(SmartSpaceGateway.class);
+        relay = new AvatarRelayDriver();
+        props = new InitialProperties();
+        // Flushes are triggered by hand.
+        props.put(AvatarRelayDriver.INTERVAL_KEY, "3600000");
+        dashboard1 = new UpDevice("dashboard1");
+        dashboard2 = new UpDevice("dashboard2");
+    }
+
+    @Test
+    public void shouldSubscribeOnceToEveryUpstream() throws Exception {
+        UpDevice room1 = new UpDevice("room1"), room2 = new UpDevice("room2");
+        when(gateway.listDrivers(AvatarDriver.DRIVER_NAME)).thenReturn(Arrays.asList(
+                new DriverData(new AvatarDriver().getDriver(), room1, "avatar1"),
+                new DriverData(new AvatarDriver().getDriver(), room2, "avatar2")));
+        relay.init(gateway, props, "relay");
+        assertThat(relay.refreshUpstreams()).isEqualTo(2);
+
+        verify(gateway, times(1)).register(relay, room1, AvatarDriver.DRIVER_NAME, "avatar1", AvatarDriver.CHANGE_EVENT_NAME);
+        verify(gateway, times(1)).register(relay, room2, AvatarDriver.DRIVER_NAME, "avatar2", AvatarDriver.CHANGE_EVENT_NAME);
+
+        relay.destroy();
+        verify(gateway, times(1)).unregister(relay, room1, AvatarDriver.DRIVER_NAME, "avatar1", AvatarDriver.CHANGE_EVENT_NAME);
+        assertThat(relay.getUpstreams()).isEmpty();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldCoalesceAvatarsIntoOneEvent() throws Exception {
+        relay.init(gateway, props, "relay");
+        relay.addUpstream(upstream("room1"));
+        relay.addUpstream(upstream("room2"));
+        relay.registerListener(null, null, listener("10.0.0.1", dashboard1));
+        relay.registerListener(null, null, listener("10.0.0.2", dashboard2));
+
+        relay.handleEvent(change("a", "room1", pose(10)));
+        relay.handleEvent(change("a", "room1", pose(20)));
+        relay.handleEvent(change("b", "room2", pose(15)));
+        relay.handleEvent(change("a", "room1", pose(5)));
+        relay.flush();
+        relay.flush();
+
+        ArgumentCaptor<Notify> captor = ArgumentCaptor.forClass(Notify.class);
+        verify(gateway, times(1)).notify(captor.capture(), eq(dashboard1));
+        verify(gateway, times(1)).notify(any(Notify.class), eq(dashboard2));
+        Map<String, PoseData> poses = (Map<String, PoseData>) captor.getValue()
+                .getParameter(AvatarRelayDriver.POSES_PARAM_NAME);
+        assertThat(poses.keySet()).containsOnly("a", "b");
+        assertThat(poses.get("a").getTimestamp()).isEqualTo(20);
+
+        Map<String, Object> metrics = relay.getMetrics();
+        assertThat(metrics.get("received")).isEqualTo(3L);
+        assertThat(metrics.get("conflated")).isEqualTo(1L);
+        assertThat(metrics.get("sent")).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldDropAvatarsOfRemovedUpstreams() throws Exception {
+        props.put(AvatarRelayDriver.DISCOVER_KEY, "false");
+        relay.init(gateway, props, "relay");
+        DriverData room1 = upstream("room1");
+        DriverData room2 = upstream("room2");
+        relay.addUpstream(room1);
+        relay.addUpstream(room2);
+        relay.handleEvent(change("a", "room1", pose(10)));
+        relay.handleEvent(change("b", "room2", pose(10)));
+
+        assertThat(relay.removeUpstream(room1)).isTrue();
+        assertThat(relay.getPoses().keySet()).containsOnly("b");
+        assertThat(relay.getMetrics().get("avatars")).isEqualTo(1);
+
+        // Events still in flight from the removed upstream don't bring its avatars back.
+        relay.handleEvent(change("a", "room1", pose(20)));
+        assertThat(relay.getPoses().keySet()).containsOnly("b");
+
+        // Nor are pending poses of the removed upstream relayed.
+        relay.registerListener(null, null, listener("10.0.0.1", dashboard1));
+        relay.flush();
+        ArgumentCaptor<Notify> captor = ArgumentCaptor.forClass(Notify.class);
+        verify(gateway, times(1)).notify(captor.capture(), eq(dashboard1));
+        assertThat(((Map<?, ?>) captor.getValue().getParameter(AvatarRelayDriver.POSES_PARAM_NAME)).keySet())
+                .containsOnly("b");
+    }
+
+    @Test
+    public void shouldKeyByInstanceAndReadSerializedPoses() throws Exception {
+        relay.init(gateway, props, "relay");
+        relay.addUpstream(upstream("room3"));
+        Notify n = new Notify(AvatarDriver.CHANGE_EVENT_NAME, AvatarDriver.DRIVER_NAME, "room3")
+                .addParameter(AvatarDriver.CHANGE_NEW_DATA_PARAM_NAME,
+                        "{\"timestamp\":7,\"rotations\":{\"root\":[1,0,0,0]}}");
+        relay.handleEvent(n);
+
+        Call call = mock(Call.class);
+        when(call.getParameterString(AvatarRelayDriver.AVATAR_ID_PARAM_NAME)).thenReturn("room3");
+        Response response = new Response();
+        relay.getPoses(call, response, null);
+        PoseData pose = (PoseData) response.getResponseData(AvatarRelayDriver.POSES_PARAM_NAME);
+        assertThat(pose.getTimestamp()).isEqualTo(7);
+        assertThat(pose.getRotations()).containsKey("root");
+
+        when(call.getParameterString(AvatarRelayDriver.AVATAR_ID_PARAM_NAME)).thenReturn("room4");
+        response = new Response();
+        relay.getPoses(call, response, null);
+        assertThat(response.getError()).contains("room4");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldRelayAvatarDriverEvents() throws Exception {
+        // The avatar driver's gateway delivers its events straight to the relay.
+        SmartSpaceGateway roomGateway = mock(SmartSpaceGateway.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                relay.handleEvent((Notify) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(roomGateway).notify(any(Notify.class), any(UpDevice.class));
+        AvatarDriver avatar = new AvatarDriver();
+        InitialProperties avatarProps = new InitialProperties();
+        avatarProps.put(AvatarDriver.AVATAR_ID_KEY, "patient1");
+        avatar.init(roomGateway, avatarProps, "room1");
+
+        relay.init(gateway, props, "relay");
+        relay.addUpstream(upstream("room1"));
+        avatar.registerListener(null, null, listener("10.0.0.9", new UpDevice("relay")));
+        relay.registerListener(null, null, listener("10.0.0.1", dashboard1));
+
+        SensorData data = new SensorData();
+        data.setId("root");
+        data.setQuaternion(new Quaternion(0, 1, 0, 0));
+        data.setTimestamp(100);
+        avatar.handleEvent(new Notify(IMUDriver.CHANGE_EVENT_NAME, IMUDriver.DRIVER_NAME)
+                .addParameter(IMUDriver.CHANGE_NEW_DATA_PARAM_NAME, data));
+        relay.flush();
+
+        ArgumentCaptor<Notify> captor = ArgumentCaptor.forClass(Notify.class);
+        verify(gateway, times(1)).notify(captor.capture(), eq(dashboard1));
+        Map<String, PoseData> poses = (Map<String, PoseData>) captor.getValue()
+                .getParameter(AvatarRelayDriver.POSES_PARAM_NAME);
+        assertThat(poses.keySet()).containsOnly("patient1");
+        assertThat(poses.get("patient1").getRotations().get("root")).isEqualTo(new double[]{0, 1, 0, 0});
+    }
+
+    private static DriverData upstream(String instanceId) {
+        return new DriverData(new AvatarDriver().getDriver(), new UpDevice(instanceId), instanceId);
+    }
+
+    private static Notify change(String avatarId, String instanceId, PoseData pose) {
+        return new Notify(AvatarDriver.CHANGE_EVENT_NAME, AvatarDriver.DRIVER_NAME, instanceId)
+                .addParameter(AvatarDriver.CHANGE_NEW_DATA_PARAM_NAME, pose)
+                .addParameter(AvatarDriver.AVATAR_ID_PARAM_NAME, avatarId);
+    }
+
+    private static PoseData pose(long timestamp) {
+        Map<String, double[]> rotations = new LinkedHashMap<>();
+        rotations.put("root", new double[]{1, 0, 0, 0});
+        return new PoseData(timestamp, rotations);
+    }
+
+    private static CallContext listener(String host, UpDevice device) {
+        NetworkDevice networkDevice = mock(NetworkDevice.class);
+        when(networkDevice.getNetworkDeviceName()).thenReturn("Ethernet:" + host);
+        when(networkDevice.getNetworkDeviceType()).thenReturn("Ethernet");
+        CallContext context = mock(CallContext.class);
+        when(context.getCallerNetworkDevice()).thenReturn(networkDevice);
+        when(context.getCallerDevice()).thenReturn(device);
+        return context;
+    }
+}
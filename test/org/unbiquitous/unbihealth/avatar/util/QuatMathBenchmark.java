@@ -0,0 +1,145 @@
+package org.unbiquitous.unbihealth.avatar.util;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.unbiquitous.unbihealth.avatar.data.AvatarBone;
+import org.unbiquitous.unbihealth.avatar.data.AvatarSkeleton;
+import org.unbiquitous.unbihealth.avatar.data.BoneData;
+import org.unbiquitous.unbihealth.avatar.data.SkeletonTopology;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH comparison of {@link QuatMath} with commons-math's {@link Quaternion}: single operations, and the skeleton's hot
+ * path, i.e., aligning a whole frame of sensor rotations ({@link AvatarSkeleton#setRotations(double[], boolean[])})
+ * and making it relative to the parent bones ({@link AvatarSkeleton#copyPose(double[])}), and reading a bone's rotation
+ * as analytics do ({@link AvatarBone#copyRotation(double[], int)}).
+ * <p>
+ * Not a unit test; run it with <code>main</code>, which also reports allocation per operation
+ * (<code>gc.alloc.rate.norm</code>).
+ *
+ * @author Luciano Santos
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QuatMathBenchmark {
+    @Param({"20", "60"})
+    int bones;
+
+    AvatarSkeleton skeleton;
+    AvatarBone leaf;
+    int[] parents;
+    double[] sensors, alignments, absolute, pose;
+    Quaternion[] sensorObjects, alignmentObjects, absoluteObjects;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        List<BoneData> data = new ArrayList<>();
+        for (int i = 0; i < bones; ++i)
+            data.add(new BoneData("b" + i, "s" + i, i == 0 ? null : "b" + random.nextInt(i)));
+        skeleton = AvatarSkeleton.of(data);
+        SkeletonTopology topology = skeleton.getTopology();
+
+        parents = new int[bones];
+        sensors = new double[4 * bones];
+        alignments = new double[4 * bones];
+        absolute = new double[4 * bones];
+        pose = new double[4 * bones];
+        sensorObjects = new Quaternion[bones];
+        alignmentObjects = new Quaternion[bones];
+        absoluteObjects = new Quaternion[bones];
+        for (int i = 0; i < bones; ++i) {
+            sensorObjects[i] = randomRotation(random, sensors, 4 * i);
+            alignmentObjects[i] = randomRotation(random, alignments, 4 * i);
+            skeleton.setAlignment(topology.getId(i), alignmentObjects[i]);
+            parents[i] = topology.getParent(i);
+        }
+        leaf = skeleton.getBone(topology.getId(bones - 1));
+    }
+
+    @Benchmark
+    public Quaternion commonsMultiply() {
+        return sensorObjects[0].multiply(alignmentObjects[0]);
+    }
+
+    @Benchmark
+    public double[] kernelMultiply() {
+        QuatMath.multiply(sensors, 0, alignments, 0, absolute, 0);
+        return absolute;
+    }
+
+    @Benchmark
+    public Quaternion commonsRelative() {
+        return sensorObjects[1].multiply(sensorObjects[0].getInverse());
+    }
+
+    @Benchmark
+    public double[] kernelRelative() {
+        QuatMath.multiplyConjugate(sensors, 4, sensors, 0, absolute, 0);
+        return absolute;
+    }
+
+    @Benchmark
+    public void commonsFrame(Blackhole bh) {
+        for (int i = 0; i < bones; ++i) {
+            absoluteObjects[i] = sensorObjects[i].multiply(alignmentObjects[i]);
+            int p = parents[i];
+            bh.consume(p < 0 ? absoluteObjects[i] : absoluteObjects[i].multiply(absoluteObjects[p].getInverse()));
+        }
+    }
+
+    @Benchmark
+    public double[] kernelFrame() {
+        QuatMath.multiplyAll(sensors, alignments, absolute, bones);
+        QuatMath.relativeAll(absolute, parents, pose, bones);
+        return pose;
+    }
+
+    @Benchmark
+    public double[] skeletonFrame() {
+        skeleton.setRotations(sensors, null);
+        skeleton.copyPose(pose);
+        return pose;
+    }
+
+    /**
+     * What analytics read per sample: expected to allocate nothing.
+     */
+    @Benchmark
+    public double[] boneRotation() {
+        leaf.copyRotation(absolute, 0);
+        return absolute;
+    }
+
+    @Benchmark
+    public Quaternion boneRotationObject() {
+        return leaf.getRotation();
+    }
+
+    private static Quaternion randomRotation(Random random, double[] out, int offset) {
+        for (int c = 0; c < 4; ++c)
+            out[offset + c] = 2 * random.nextDouble() - 1;
+        QuatMath.normalize(out, offset);
+        return new Quaternion(out[offset], out[offset + 1], out[offset + 2], out[offset + 3]);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(QuatMathBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
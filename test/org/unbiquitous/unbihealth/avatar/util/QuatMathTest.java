@@ -0,0 +1,170 @@
+package org.unbiquitous.unbihealth.avatar.util;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.apache.commons.math3.util.FastMath;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.data.Offset.offset;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link QuatMath}, against commons-math's {@link Quaternion}.
+ *
+ * @author Luciano Santos
+ */
+public class QuatMathTest {
+    private static final double EPSILON = 1e-12;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void shouldMatchCommonsMath() {
+        double[] a = new double[4], b = new double[4], out = new double[4];
+        for (int i = 0; i < 1000; ++i) {
+            Quaternion qa = randomQuaternion(a), qb = randomQuaternion(b);
+
+            QuatMath.multiply(a, 0, b, 0, out, 0);
+            assertTrue(toQuaternion(out, 0).equals(Quaternion.multiply(qa, qb), EPSILON));
+            assertThat(QuatMath.dot(a, 0, b, 0)).isEqualTo(Quaternion.dotProduct(qa, qb), offset(EPSILON));
+
+            System.arraycopy(a, 0, out, 0, 4);
+            assertThat(QuatMath.normalize(out, 0)).isEqualTo(qa.getNorm(), offset(EPSILON));
+            assertTrue(toQuaternion(out, 0).equals(qa.normalize(), EPSILON));
+
+            QuatMath.normalize(b, 0);
+            QuatMath.multiplyConjugate(a, 0, b, 0, out, 0);
+            assertTrue(toQuaternion(out, 0).equals(Quaternion.multiply(qa, qb.normalize().getInverse()), EPSILON));
+        }
+    }
+
+    @Test
+    public void shouldWriteOverOperands() {
+        double[] q = {1, 2, 3, 4, 5, 6, 7, 8};
+        Quaternion expected = Quaternion.multiply(toQuaternion(q, 0), toQuaternion(q, 4));
+        QuatMath.multiply(q, 0, q, 4, q, 0);
+        assertTrue(toQuaternion(q, 0).equals(expected, EPSILON));
+    }
+
+    @Test
+    public void shouldLeaveZeroUnnormalized() {
+        double[] q = new double[4];
+        assertThat(QuatMath.normalize(q, 0)).isEqualTo(0);
+        assertThat(q).isEqualTo(new double[4]);
+    }
+
+    @Test
+    public void shouldSlerpLikeCommonsMathPower() {
+        double[] a = new double[4], b = new double[4], out = new double[4];
+        for (int i = 0; i < 1000; ++i) {
+            randomQuaternion(a);
+            QuatMath.normalize(a, 0);
+            randomQuaternion(b);
+            QuatMath.normalize(b, 0);
+            Quaternion qa = toQuaternion(a, 0), qb = toQuaternion(b, 0);
+            if (Quaternion.dotProduct(qa, qb) < 0)
+                qb = qb.multiply(-1);
+            if (Quaternion.dotProduct(qa, qb) > 0.999)
+                continue;
+            double t = random.nextDouble();
+
+            // a * (a^-1 * b)^t, raising the rotation from a to b to t through its angle.
+            Quaternion delta = Quaternion.multiply(qa.getInverse(), qb);
+            double half = FastMath.acos(delta.getQ0());
+            Quaternion axis = delta.getPureQuaternionPart().normalize();
+            Quaternion expected = qa.multiply(new Quaternion(FastMath.cos(t * half),
+                    axis.multiply(FastMath.sin(t * half)).getVectorPart()));
+
+            QuatMath.slerp(a, 0, b, 0, t, out, 0);
+            assertTrue(toQuaternion(out, 0).equals(expected, 1e-9));
+        }
+    }
+
+    @Test
+    public void shouldInterpolateAlongShortestPath() {
+        double[] a = aboutX(0), b = aboutX(FastMath.PI / 2), out = new double[4];
+        QuatMath.slerp(a, 0, b, 0, 0, out, 0);
+        assertThat(QuatMath.angle(out, 0, a, 0)).isEqualTo(0, offset(1e-7));
+        QuatMath.slerp(a, 0, b, 0, 0.25, out, 0);
+        assertTrue(toQuaternion(out, 0).equals(toQuaternion(aboutX(FastMath.PI / 8), 0), EPSILON));
+
+        // -b is the same rotation, so the result must not go the long way around.
+        double[] nb = {-b[0], -b[1], -b[2], -b[3]};
+        QuatMath.slerp(a, 0, nb, 0, 0.5, out, 0);
+        assertThat(QuatMath.angle(out, 0, a, 0)).isEqualTo(FastMath.PI / 4, offset(EPSILON));
+
+        // Nearly parallel: linear, but still unit.
+        double[] c = aboutX(1e-4);
+        QuatMath.slerp(a, 0, c, 0, 0.5, out, 0);
+        assertThat(QuatMath.norm(out, 0)).isEqualTo(1, offset(EPSILON));
+        assertThat(QuatMath.angle(out, 0, a, 0)).isEqualTo(5e-5, offset(1e-9));
+    }
+
+    @Test
+    public void shouldProcessBatches() {
+        int n = 37;
+        double[] a = new double[4 * n], b = new double[4 * n], out = new double[4 * n];
+        Quaternion[] qa = new Quaternion[n], qb = new Quaternion[n];
+        double[] q = new double[4];
+        for (int i = 0; i < n; ++i) {
+            qa[i] = randomQuaternion(q);
+            System.arraycopy(q, 0, a, 4 * i, 4);
+            qb[i] = randomQuaternion(q);
+            System.arraycopy(q, 0, b, 4 * i, 4);
+        }
+
+        QuatMath.multiplyAll(a, b, out, n);
+        for (int i = 0; i < n; ++i)
+            assertTrue(toQuaternion(out, 4 * i).equals(Quaternion.multiply(qa[i], qb[i]), EPSILON));
+        QuatMath.conjugateAll(a, out, n);
+        for (int i = 0; i < n; ++i)
+            assertThat(toQuaternion(out, 4 * i)).isEqualTo(qa[i].getConjugate());
+        QuatMath.normalizeAll(a, n);
+        for (int i = 0; i < n; ++i)
+            assertTrue(toQuaternion(a, 4 * i).equals(qa[i].normalize(), EPSILON));
+    }
+
+    @Test
+    public void shouldMakePosesRelative() {
+        int n = 37;
+        double[] absolute = new double[4 * n], out = new double[4 * n];
+        Quaternion[] q = new Quaternion[n];
+        double[] r = new double[4];
+        // Parents come before their children, as in a topology.
+        Random parentsRandom = new Random(7);
+        int[] parents = new int[n];
+        for (int i = 0; i < n; ++i) {
+            randomQuaternion(r);
+            QuatMath.normalize(r, 0);
+            q[i] = toQuaternion(r, 0);
+            System.arraycopy(r, 0, absolute, 4 * i, 4);
+            parents[i] = i == 0 ? -1 : parentsRandom.nextInt(i);
+        }
+
+        QuatMath.relativeAll(absolute, parents, out, n);
+        assertThat(toQuaternion(out, 0)).isEqualTo(q[0]);
+        for (int i = 1; i < n; ++i)
+            assertTrue(toQuaternion(out, 4 * i).equals(
+                    Quaternion.multiply(q[i], q[parents[i]].getInverse()), EPSILON));
+
+        // In place, too.
+        QuatMath.relativeAll(absolute, parents, absolute, n);
+        assertThat(absolute).isEqualTo(out);
+    }
+
+    private Quaternion randomQuaternion(double[] out) {
+        for (int c = 0; c < 4; ++c)
+            out[c] = 2 * random.nextDouble() - 1;
+        return toQuaternion(out, 0);
+    }
+
+    private static double[] aboutX(double angle) {
+        return new double[]{FastMath.cos(angle / 2), FastMath.sin(angle / 2), 0, 0};
+    }
+
+    private static Quaternion toQuaternion(double[] q, int offset) {
+        return new Quaternion(q[offset], q[offset + 1], q[offset + 2], q[offset + 3]);
+    }
+}